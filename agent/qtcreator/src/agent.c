@@ -44,7 +44,7 @@ static jvmtiEnv *jvmti = NULL;
 
 static jrawMonitorID lock;
 
-Config configuration={ .outputFile=NULL , .maxPidDelay=MAX_DELAY , .verboseMode=0};
+Config configuration={ .outputFile=NULL , .maxPidDelay=MAX_DELAY , .verboseMode=0 , .fileFormat=DEFAULT_FILE_FORMAT };
 
 /* Get name for JVMTI error code */
 static char * getErrorName(jvmtiEnv *jvmti, jvmtiError errnum)
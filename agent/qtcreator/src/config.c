@@ -83,6 +83,7 @@ void initializeConfig(char *options)
 
     configuration.verboseMode = 0;
     configuration.maxPidDelay = MAX_DELAY;
+    configuration.fileFormat = DEFAULT_FILE_FORMAT;
 
     // process options
     if ( options != NULL && *options )
@@ -107,6 +108,14 @@ void initializeConfig(char *options)
                 {
                     configuration.maxPidDelay = atol( value );
                 }
+                else if ( ! strcasecmp( "format" , name ) )
+                {
+                    configuration.fileFormat = atoi( value );
+                    if ( configuration.fileFormat < 1 || configuration.fileFormat > 3 ) {
+                        fprintf(stderr,"ERROR: Unsupported file format %s\n",value);
+                        abort();
+                    }
+                }
             }
         }
     }
@@ -115,5 +124,6 @@ void initializeConfig(char *options)
         printf("INFO: Verbose mode enabled.\n");
         printf("INFO: Output file: %s\n",configuration.outputFile);
         printf("INFO: Max. delay loop iterations: %ld\n",configuration.maxPidDelay);
+        printf("INFO: File format: %d\n",configuration.fileFormat);
     }
 }
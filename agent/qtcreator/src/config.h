@@ -22,6 +22,7 @@ typedef struct Config {
   char *outputFile;
   long maxPidDelay;
   int  verboseMode;
+  int  fileFormat;
 } Config;
 
 extern Config configuration;
@@ -25,6 +25,39 @@ limitations under the License.
 
 #define FILEHEADER_MAGIC 0xdeadbeef
 
+// file header of the compact (varint-encoded) file format
+#define FILEHEADER_MAGIC_V2 0xdeadbef2
+
+// file header of the block-structured file format
+#define FILEHEADER_MAGIC_V3 0xdeadbef3
+
+// default file format (1 = fixed-size records, 2 = compact, 3 = compact records grouped into blocks)
+#define DEFAULT_FILE_FORMAT 3
+
+// compact format: max. number of records between two sync records
+#define SYNC_INTERVAL_RECORDS 4096
+
+// compact format: number of state masks that can be referenced by the record tag
+#define STATE_DICTIONARY_SIZE 63
+
+// compact format: record tag marking a sync record
+#define RECORD_TAG_SYNC 3
+
+// compact format: upper bound for the size of a record (including a sync record)
+#define MAX_COMPACT_RECORD_SIZE 128
+
+// block format: max. size of a block including its header
+#define BLOCK_SIZE 65536
+
+#define BLOCK_HEADER_SIZE 64
+
+#define BLOCK_MAGIC 0x6b6c6274
+
+#define FOOTER_MAGIC 0x72746674
+
+// block format: time in millis after which a block is written even if it is not full yet
+#define BLOCK_FLUSH_INTERVAL_MILLIS 1000
+
 // time in millis the writer thread will sleep if the ringbuffer is empty
 #define WRITERTHREAD_SLEEP_TIME_MILLIS 100
 
@@ -18,6 +18,9 @@ limitations under the License.
 #include <stdlib.h>
 #include <pthread.h>
 #include <unistd.h>
+#include <string.h>
+#include <stdint.h>
+#include <time.h>
 
 #include "config.h"
 #include "global.h"
@@ -29,12 +32,44 @@ static FILE *outputFile = NULL;
 
 static volatile int terminateWriter = 0;
 
+// state of the compact file format encoder, only accessed by the writer thread
+static int syncPending = 1;
+static int recordsSinceSync = 0;
+static struct timespec previousTimestamp;
+static jint stateDictionary[ STATE_DICTIONARY_SIZE ];
+static int stateDictionarySize = 0;
+
+// state of the block format encoder, only accessed by the writer thread
+static unsigned char block[ BLOCK_SIZE ];
+static int blockLength = BLOCK_HEADER_SIZE;
+static int blockRecordCount = 0;
+static long long blockMinTimestamp;
+static long long blockMaxTimestamp;
+static uint64_t blockThreads[4];
+static long long fileOffset = sizeof(unsigned int);
+
+// copies of all block headers (preceded by the block's file offset), written as footer on termination
+static unsigned char *footer = NULL;
+static size_t footerLength = 0;
+static size_t footerCapacity = 0;
+static int blockCount = 0;
+
+static void (*writeCallback)(DataRecord*);
+
 static void *writerThread(RingBuffer *buffer);
+static void writeRecordToFile(DataRecord *record);
+static void writeCompactRecordToFile(DataRecord *record);
+static void writeBlockRecordToFile(DataRecord *record);
 
 void startWriterThread(RingBuffer *buffer,char *file)
 {
   int err;
-  unsigned int magic = FILEHEADER_MAGIC;
+  unsigned int magic;
+  switch( configuration.fileFormat ) {
+    case 1:  magic = FILEHEADER_MAGIC; break;
+    case 2:  magic = FILEHEADER_MAGIC_V2; break;
+    default: magic = FILEHEADER_MAGIC_V3;
+  }
   pthread_attr_t tattr;
   
   if ( configuration.verboseMode ) {
@@ -52,6 +87,11 @@ void startWriterThread(RingBuffer *buffer,char *file)
       fprintf(stderr,"ERROR: Failed to write to output file %s\n",file);
       abort();
    }
+   switch( configuration.fileFormat ) {
+     case 1:  writeCallback = &writeRecordToFile; break;
+     case 2:  writeCallback = &writeCompactRecordToFile; break;
+     default: writeCallback = &writeBlockRecordToFile;
+   }
      
   /* initialized with default attributes */
   pthread_attr_init(&tattr);
@@ -105,6 +145,205 @@ static void writeRecordToFile(DataRecord *record)
 #endif
 }
 
+// writes to the current block when using the block format
+static void writeBytes(void *data,size_t byteCount)
+{
+    if ( configuration.fileFormat == 3 ) {
+        memcpy( &block[ blockLength ] , data , byteCount );
+        blockLength += byteCount;
+    } else {
+        writeMember( data , byteCount );
+    }
+}
+
+// unsigned LEB128
+static void writeVarInt(unsigned long long value)
+{
+    unsigned char bytes[10];
+    int count = 0;
+    while ( value > 0x7f ) 
+    {
+        bytes[count++] = (unsigned char) ( ( value & 0x7f ) | 0x80 );
+        value >>= 7;
+    }
+    bytes[count++] = (unsigned char) value;
+    writeBytes( &bytes[0] , count );
+}
+
+static void writeSyncRecord(struct timespec *timestamp)
+{
+    unsigned char tag = RECORD_TAG_SYNC;
+    writeBytes( &tag , 1 );
+    writeVarInt( (unsigned long long) timestamp->tv_sec );
+    writeVarInt( (unsigned long long) timestamp->tv_nsec );
+
+    previousTimestamp = *timestamp;
+    stateDictionarySize = 0;
+    recordsSinceSync = 0;
+    syncPending = 0;
+}
+
+/*
+ * Writes a record in the compact file format (see RecordDecoder.java for a description).
+ */
+static void writeCompactRecordToFile(DataRecord *record)
+{
+    unsigned char tag = (unsigned char) record->type;
+    long long delta;
+    size_t nameLength;
+    int i;
+
+    // blocks are the unit of seeking in the block format, so they only need a sync record at their start
+    if ( syncPending || ( configuration.fileFormat == 2 && recordsSinceSync >= SYNC_INTERVAL_RECORDS ) ) {
+        writeSyncRecord( &record->timestamp );
+    }
+
+    if ( record->type == EVENT_THREAD_SAMPLE ) 
+    {
+        for ( i = 0 ; i < stateDictionarySize ; i++ ) 
+        {
+            if ( stateDictionary[i] == record->stateChangeEvent.state ) {
+                tag |= (unsigned char) ( (i+1) << 2 );
+                break;
+            }
+        }
+    }
+
+    delta = ( (long long) record->timestamp.tv_sec - previousTimestamp.tv_sec ) * 1000000000LL 
+            + ( record->timestamp.tv_nsec - previousTimestamp.tv_nsec );
+    previousTimestamp = record->timestamp;
+    recordsSinceSync++;
+
+    writeBytes( &tag , 1 );
+    writeVarInt( (unsigned int) record->uniqueThreadId );
+    writeVarInt( (unsigned long long) ( ( delta << 1 ) ^ ( delta >> 63 ) ) );
+
+    switch( record->type ) 
+    {
+        case EVENT_THREAD_START:
+            nameLength = strnlen( &record->startEvent.threadName[0] , MAX_THREAD_NAME_LENGTH );
+            writeVarInt( nameLength );
+            writeBytes( &record->startEvent.threadName[0] , nameLength );
+            break;
+        case EVENT_THREAD_DEATH:
+            break;
+        case EVENT_THREAD_SAMPLE:
+            if ( ( tag >> 2 ) == 0 ) 
+            {
+                writeVarInt( (unsigned int) record->stateChangeEvent.state );
+                if ( stateDictionarySize < STATE_DICTIONARY_SIZE ) {
+                    stateDictionary[ stateDictionarySize++ ] = record->stateChangeEvent.state;
+                }
+            }
+            break;
+        default:
+            fprintf(stderr,"ERROR: Internal error, don't know how to write record with type %d\n",record->type);
+            abort();
+    }
+
+#ifdef DEBUG
+    printf("Writing compact record to file (type: %d)\n",record->type);
+    fflush(stdout);
+#endif
+}
+
+/*
+ * Writes the current block (see BlockIndex.java for a description of the block format).
+ */
+static void flushBlock()
+{
+    int dataLength = blockLength - BLOCK_HEADER_SIZE;
+    int magic = BLOCK_MAGIC;
+    int reserved = 0;
+
+    if ( blockRecordCount == 0 ) {
+        return;
+    }
+
+    memcpy( &block[0] , &magic , 4 );
+    memcpy( &block[4] , &dataLength , 4 );
+    memcpy( &block[8] , &blockRecordCount , 4 );
+    memcpy( &block[12] , &reserved , 4 );
+    memcpy( &block[16] , &blockMinTimestamp , 8 );
+    memcpy( &block[24] , &blockMaxTimestamp , 8 );
+    memcpy( &block[32] , &blockThreads[0] , 32 );
+
+    if ( footerLength + 8 + BLOCK_HEADER_SIZE > footerCapacity ) 
+    {
+        footerCapacity = footerCapacity == 0 ? 64 * ( 8 + BLOCK_HEADER_SIZE ) : footerCapacity * 2;
+        if ( ! ( footer = realloc( footer , footerCapacity ) ) ) {
+            fprintf(stderr,"Failed to allocate memory\n");
+            abort();
+        }
+    }
+    memcpy( &footer[ footerLength ] , &fileOffset , 8 );
+    memcpy( &footer[ footerLength + 8 ] , &block[0] , BLOCK_HEADER_SIZE );
+    footerLength += 8 + BLOCK_HEADER_SIZE;
+    blockCount++;
+
+    writeMember( &block[0] , blockLength );
+    fflush( outputFile );
+    fileOffset += blockLength;
+
+    blockLength = BLOCK_HEADER_SIZE;
+    blockRecordCount = 0;
+    memset( &blockThreads[0] , 0 , sizeof( blockThreads ) );
+    syncPending = 1;
+}
+
+static void writeBlockRecordToFile(DataRecord *record)
+{
+    long long timestamp = (long long) record->timestamp.tv_sec * 1000000000LL + record->timestamp.tv_nsec;
+    unsigned int bit = ( (unsigned int) record->uniqueThreadId ) & 0xff;
+
+    if ( blockLength + MAX_COMPACT_RECORD_SIZE > BLOCK_SIZE ) {
+        flushBlock();
+    }
+
+    if ( blockRecordCount == 0 || timestamp < blockMinTimestamp ) {
+        blockMinTimestamp = timestamp;
+    }
+    if ( blockRecordCount == 0 || timestamp > blockMaxTimestamp ) {
+        blockMaxTimestamp = timestamp;
+    }
+    blockThreads[ bit >> 6 ] |= ( (uint64_t) 1 ) << ( bit & 63 );
+    blockRecordCount++;
+
+    writeCompactRecordToFile( record );
+}
+
+// write blocks that have been open for too long so that the data shows up in viewers following the file
+static void flushBlockIfDue()
+{
+    struct timespec now;
+    long long nowNanos;
+
+    if ( blockRecordCount == 0 ) {
+        return;
+    }
+    clock_gettime( CLOCK_REALTIME , &now );
+    nowNanos = (long long) now.tv_sec * 1000000000LL + now.tv_nsec;
+    if ( nowNanos - blockMinTimestamp >= BLOCK_FLUSH_INTERVAL_MILLIS * 1000000LL ) {
+        flushBlock();
+    }
+}
+
+static void writeFooter()
+{
+    int magic = FOOTER_MAGIC;
+
+    writeMember( &magic , 4 );
+    writeMember( &blockCount , 4 );
+    if ( footerLength > 0 ) {
+        writeMember( footer , footerLength );
+    }
+    writeMember( &fileOffset , 8 );
+    writeMember( &blockCount , 4 );
+    writeMember( &magic , 4 );
+    free( footer );
+    footer = NULL;
+}
+
 static void *writerThread(RingBuffer *buffer) 
 {      
 #ifdef DEBUG
@@ -112,7 +351,15 @@ static void *writerThread(RingBuffer *buffer)
 #endif
     do 
     {
-        while( readRecord( buffer , &writeRecordToFile ) );
+        // start each batch with a sync record so that readers of a file that is still
+        // being written can resume decoding at the beginning of the last batch
+        if ( configuration.fileFormat == 2 ) {
+            syncPending = 1;
+        }
+        while( readRecord( buffer , writeCallback ) );
+        if ( configuration.fileFormat == 3 ) {
+            flushBlockIfDue();
+        }
         usleep( WRITERTHREAD_SLEEP_TIME_MILLIS * 1000);
       __sync_synchronize();        
     } while ( ! terminateWriter );
@@ -121,7 +368,14 @@ static void *writerThread(RingBuffer *buffer)
     printf("Writer thread is terminating.");
 #endif
     
-    while( readRecord( buffer , &writeRecordToFile ) );
+    if ( configuration.fileFormat == 2 ) {
+        syncPending = 1;
+    }
+    while( readRecord( buffer , writeCallback ) );
+    if ( configuration.fileFormat == 3 ) {
+        flushBlock();
+        writeFooter();
+    }
         
     fflush(outputFile);
     fclose(outputFile);
@@ -0,0 +1,344 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Summaries of the blocks of a block-structured (version 3) recording.
+ *
+ * <p>Version 3 recordings consist of blocks of at most {@link #MAX_BLOCK_SIZE} bytes. Each block starts with
+ * a {@link #HEADER_SIZE} byte header followed by records in the compact encoding (see {@link RecordDecoder}),
+ * the first record of each block is a sync record. The header holds (little-endian)
+ * <pre>
+ * int  BLOCK_MAGIC
+ * int  length of the record data following the header
+ * int  number of records
+ * int  reserved (0)
+ * long smallest timestamp (nanoseconds since the epoch)
+ * long largest timestamp (nanoseconds since the epoch)
+ * byte[32] bitmap with bit (threadId &amp; 255) set for each thread that has records in this block
+ * </pre>
+ * When the agent terminates it appends a footer that holds a copy of all block headers so that
+ * they can be read without seeking through the whole file:
+ * <pre>
+ * int  FOOTER_MAGIC
+ * int  block count
+ * (long block offset, block header) for each block
+ * long offset of the footer
+ * int  block count
+ * int  FOOTER_MAGIC
+ * </pre>
+ * Recordings that are still being written (or whose writer crashed) have no footer, in this case
+ * the block headers are read by following the block lengths.</p>
+ *
+ * <p>Instances are immutable.</p>
+ */
+final class BlockIndex
+{
+    public static final int HEADER_SIZE = 64;
+
+    public static final int MAX_BLOCK_SIZE = 64*1024;
+
+    public static final int BLOCK_MAGIC = 0x6b6c6274; // 'tblk'
+
+    public static final int FOOTER_MAGIC = 0x72746674; // 'tftr'
+
+    private static final int TRAILER_SIZE = 16;
+
+    private static final int BITMAP_WORDS = 4;
+
+    private static final boolean DEBUG = false;
+
+    private final long[] offsets;
+    private final int[] dataLengths;
+    private final int[] recordCounts;
+    private final long[] minTimestamps;
+    private final long[] maxTimestamps;
+    private final long[] threadBitmaps;
+    private final int size;
+
+    private BlockIndex(long[] offsets, int[] dataLengths, int[] recordCounts, long[] minTimestamps, long[] maxTimestamps, long[] threadBitmaps, int size)
+    {
+        this.offsets = offsets;
+        this.dataLengths = dataLengths;
+        this.recordCounts = recordCounts;
+        this.minTimestamps = minTimestamps;
+        this.maxTimestamps = maxTimestamps;
+        this.threadBitmaps = threadBitmaps;
+        this.size = size;
+    }
+
+    /**
+     * Reads the block index of a recording.
+     *
+     * @param channel
+     * @param dataStart offset of the first block (right after the file header)
+     * @param previous index read from a shorter version of the same file, only blocks following the last
+     * block of this index are read. May be <code>null</code>.
+     * @return
+     * @throws IOException if the file contains an invalid block header
+     */
+    public static BlockIndex read(FileChannel channel,long dataStart,BlockIndex previous) throws IOException
+    {
+        final long time = System.currentTimeMillis();
+        final Builder builder = new Builder( previous );
+        if ( previous == null && readFooter( channel , dataStart , builder ) ) {
+            return builder.build();
+        }
+
+        final long fileSize = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        long offset = previous != null && previous.size > 0 ? previous.getEnd( previous.size-1 ) : dataStart;
+        while ( offset + HEADER_SIZE <= fileSize )
+        {
+            readFully( channel , header , offset );
+            final int magic = header.getInt( 0 );
+            if ( magic == FOOTER_MAGIC ) {
+                break;
+            }
+            if ( magic != BLOCK_MAGIC ) {
+                throw new IOException("Invalid block header at offset "+offset);
+            }
+            final int dataLength = getDataLength( header , offset );
+            if ( offset + HEADER_SIZE + dataLength > fileSize ) {
+                // block is still being written
+                break;
+            }
+            builder.add( offset , header );
+            offset += HEADER_SIZE + dataLength;
+        }
+
+        if ( DEBUG ) {
+            System.out.println("Read "+(builder.size-(previous != null ? previous.size : 0))+" block headers in "+(System.currentTimeMillis()-time)+" ms");
+        }
+        return builder.build();
+    }
+
+    private static boolean readFooter(FileChannel channel,long dataStart,Builder builder) throws IOException
+    {
+        final long fileSize = channel.size();
+        if ( fileSize - dataStart < TRAILER_SIZE + 8 ) {
+            return false;
+        }
+
+        final ByteBuffer trailer = ByteBuffer.allocate( TRAILER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        readFully( channel , trailer , fileSize - TRAILER_SIZE );
+        final long footerOffset = trailer.getLong( 0 );
+        final int blockCount = trailer.getInt( 8 );
+        if ( trailer.getInt( 12 ) != FOOTER_MAGIC || blockCount < 0 || footerOffset < dataStart ||
+             footerOffset + 8 + blockCount * (8L+HEADER_SIZE) + TRAILER_SIZE != fileSize )
+        {
+            return false;
+        }
+
+        final ByteBuffer footer = ByteBuffer.allocate( (int) ( fileSize - TRAILER_SIZE - footerOffset ) ).order( ByteOrder.LITTLE_ENDIAN );
+        readFully( channel , footer , footerOffset );
+        if ( footer.getInt( 0 ) != FOOTER_MAGIC || footer.getInt( 4 ) != blockCount ) {
+            return false;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( int i = 0 ; i < blockCount ; i++ )
+        {
+            final int entry = 8 + i * (8+HEADER_SIZE);
+            final long offset = footer.getLong( entry );
+            header.clear();
+            for ( int j = 0 ; j < HEADER_SIZE ; j++ ) {
+                header.put( j , footer.get( entry + 8 + j ) );
+            }
+            if ( header.getInt( 0 ) != BLOCK_MAGIC ) {
+                throw new IOException("Invalid block header in footer, block "+i);
+            }
+            getDataLength( header , offset );
+            builder.add( offset , header );
+        }
+        return true;
+    }
+
+    private static int getDataLength(ByteBuffer header,long offset) throws IOException
+    {
+        final int dataLength = header.getInt( 4 );
+        if ( dataLength <= 0 || dataLength > MAX_BLOCK_SIZE - HEADER_SIZE ) {
+            throw new IOException("Invalid length "+dataLength+" of block at offset "+offset);
+        }
+        return dataLength;
+    }
+
+    private static void readFully(FileChannel channel,ByteBuffer buffer,long offset) throws IOException
+    {
+        buffer.clear();
+        while ( buffer.hasRemaining() )
+        {
+            if ( channel.read( buffer , offset + buffer.position() ) == -1 ) {
+                throw new IOException("Premature EOF");
+            }
+        }
+    }
+
+    protected static final class Builder
+    {
+        private long[] offsets;
+        private int[] dataLengths;
+        private int[] recordCounts;
+        private long[] minTimestamps;
+        private long[] maxTimestamps;
+        private long[] threadBitmaps;
+        private int size;
+
+        public Builder(BlockIndex previous)
+        {
+            if ( previous != null )
+            {
+                offsets = Arrays.copyOf( previous.offsets , Math.max( 16 , previous.size ) );
+                dataLengths = Arrays.copyOf( previous.dataLengths , offsets.length );
+                recordCounts = Arrays.copyOf( previous.recordCounts , offsets.length );
+                minTimestamps = Arrays.copyOf( previous.minTimestamps , offsets.length );
+                maxTimestamps = Arrays.copyOf( previous.maxTimestamps , offsets.length );
+                threadBitmaps = Arrays.copyOf( previous.threadBitmaps , offsets.length * BITMAP_WORDS );
+                size = previous.size;
+            }
+            else
+            {
+                offsets = new long[16];
+                dataLengths = new int[16];
+                recordCounts = new int[16];
+                minTimestamps = new long[16];
+                maxTimestamps = new long[16];
+                threadBitmaps = new long[16*BITMAP_WORDS];
+            }
+        }
+
+        public void add(long offset,ByteBuffer header)
+        {
+            if ( size == offsets.length )
+            {
+                final int newCapacity = size * 2;
+                offsets = Arrays.copyOf( offsets , newCapacity );
+                dataLengths = Arrays.copyOf( dataLengths , newCapacity );
+                recordCounts = Arrays.copyOf( recordCounts , newCapacity );
+                minTimestamps = Arrays.copyOf( minTimestamps , newCapacity );
+                maxTimestamps = Arrays.copyOf( maxTimestamps , newCapacity );
+                threadBitmaps = Arrays.copyOf( threadBitmaps , newCapacity * BITMAP_WORDS );
+            }
+            offsets[size] = offset;
+            dataLengths[size] = header.getInt( 4 );
+            recordCounts[size] = header.getInt( 8 );
+            minTimestamps[size] = header.getLong( 16 );
+            maxTimestamps[size] = header.getLong( 24 );
+            for ( int i = 0 ; i < BITMAP_WORDS ; i++ ) {
+                threadBitmaps[ size*BITMAP_WORDS + i ] = header.getLong( 32 + i*8 );
+            }
+            size++;
+        }
+
+        public BlockIndex build() {
+            return new BlockIndex( offsets , dataLengths , recordCounts , minTimestamps , maxTimestamps , threadBitmaps , size );
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getOffset(int block) {
+        return offsets[block];
+    }
+
+    /**
+     * Returns the offset of the first byte after a block.
+     *
+     * @param block
+     * @return
+     */
+    public long getEnd(int block) {
+        return offsets[block] + HEADER_SIZE + dataLengths[block];
+    }
+
+    public int getRecordCount(int block) {
+        return recordCounts[block];
+    }
+
+    /**
+     * Returns the smallest timestamp of a block.
+     *
+     * @param block
+     * @return nanoseconds since the epoch
+     */
+    public long getMinTimestamp(int block) {
+        return minTimestamps[block];
+    }
+
+    /**
+     * Returns the largest timestamp of a block.
+     *
+     * @param block
+     * @return nanoseconds since the epoch
+     */
+    public long getMaxTimestamp(int block) {
+        return maxTimestamps[block];
+    }
+
+    /**
+     * Returns whether a block may contain records of a given thread.
+     *
+     * @param block
+     * @param threadId
+     * @return <code>false</code> if the block definitely has no records of this thread
+     */
+    public boolean mayContainThread(int block,int threadId)
+    {
+        final int bit = threadId & 0xff;
+        return ( threadBitmaps[ block*BITMAP_WORDS + (bit >>> 6) ] & ( 1L << bit ) ) != 0;
+    }
+
+    public boolean mayContainAnyThread(int block,Set<Integer> threadIds)
+    {
+        for ( Integer threadId : threadIds ) {
+            if ( mayContainThread( block , threadId ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the block containing a given file offset.
+     *
+     * @param fileOffset
+     * @return index of the last block starting at or before this offset, -1 if there is none
+     */
+    public int floorBlock(long fileOffset)
+    {
+        int low = 0;
+        int high = size - 1;
+        while ( low <= high )
+        {
+            final int mid = (low + high) >>> 1;
+            if ( offsets[mid] <= fileOffset ) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+}
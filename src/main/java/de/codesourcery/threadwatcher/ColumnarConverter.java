@@ -0,0 +1,219 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map.Entry;
+
+import de.codesourcery.threadwatcher.FileReader.FileScanner;
+import de.codesourcery.threadwatcher.FileReader.FileVisitor;
+import de.codesourcery.threadwatcher.FileReader.ReadMode;
+
+/**
+ * Converts a recording written by the agent into the columnar format (see {@link ColumnarFile}).
+ *
+ * <p>The recording is read twice, once by the scan that counts the records and once to write the columns.
+ * Each column is written through a small buffer of its own, so memory usage does not depend on the
+ * size of the recording. An index file for the result is written as well, no index file
+ * is created for the recording itself.</p>
+ */
+public final class ColumnarConverter
+{
+    public static final String FILE_SUFFIX = ".twcol";
+
+    private static final int COLUMN_BUFFER_SIZE = 64*1024;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static final boolean DEBUG = false;
+
+    public static void main(String[] args) throws IOException
+    {
+        if ( args.length < 1 || args.length > 2 ) {
+            System.err.println("Usage: <event log file> [<output file>]");
+            System.exit(1);
+        }
+        final File input = new File( args[0] );
+        final File output = args.length == 2 ? new File( args[1] ) : new File( input.getAbsolutePath()+FILE_SUFFIX );
+        final long time = System.currentTimeMillis();
+        convert( input , output );
+        System.out.println("Converted "+input.getAbsolutePath()+" to "+output.getAbsolutePath()+" in "+(System.currentTimeMillis()-time)+" ms");
+    }
+
+    /**
+     * Converts a recording.
+     *
+     * @param input recording written by the agent
+     * @param output file to write, gets overwritten if it exists
+     * @throws IOException
+     */
+    public static void convert(File input,File output) throws IOException
+    {
+        if (input == null) {
+            throw new IllegalArgumentException("input must not be NULL.");
+        }
+        if (output == null) {
+            throw new IllegalArgumentException("output must not be NULL.");
+        }
+
+        // the input may be archived somewhere read-only, do not leave an index file next to it
+        final FileReader reader = new FileReader( input , ReadMode.STREAM , false );
+        final long count = reader.getRecordCount();
+        if ( count > Integer.MAX_VALUE ) {
+            throw new IOException("Recording has too many records ("+count+") to be converted");
+        }
+        final int recordCount = (int) count;
+
+        final long timeColumn = ColumnarFile.HEADER_SIZE;
+        final long threadColumn = align( timeColumn + 8L * recordCount );
+        final long stateColumn = align( threadColumn + 4L * recordCount );
+        final long typeColumn = align( stateColumn + 4L * recordCount );
+        final long nameTable = align( typeColumn + recordCount );
+
+        final FileScanner scanner = new FileScanner();
+        try ( RandomAccessFile raf = new RandomAccessFile( output , "rw" ) ; FileChannel channel = raf.getChannel() )
+        {
+            channel.truncate( 0 );
+            final ColumnWriter times = new ColumnWriter( channel , timeColumn );
+            final ColumnWriter threads = new ColumnWriter( channel , threadColumn );
+            final ColumnWriter states = new ColumnWriter( channel , stateColumn );
+            final ColumnWriter types = new ColumnWriter( channel , typeColumn );
+            final IOException[] error = { null };
+            final int[] index = { 0 };
+            reader.visit( new FileVisitor() {
+                @Override
+                public void visit(ThreadEvent event)
+                {
+                    if ( error[0] != null || index[0] == recordCount ) {
+                        return;
+                    }
+                    try
+                    {
+                        times.putLong( event.timestampSeconds * NANOS_PER_SECOND + event.timestampNanos );
+                        threads.putInt( event.threadId );
+                        states.putInt( event.type == ThreadEvent.THREAD_STATE_CHANGE ? event.threadStateMask : 0 );
+                        types.putByte( event.type );
+                    }
+                    catch(IOException e) {
+                        error[0] = e;
+                        return;
+                    }
+                    // record indices are used as positions
+                    scanner.visit( event , index[0] , true , index[0]+1 < recordCount );
+                    index[0]++;
+                }
+            });
+            if ( error[0] != null ) {
+                throw error[0];
+            }
+            times.flush();
+            threads.flush();
+            states.flush();
+            types.flush();
+
+            final ColumnWriter names = new ColumnWriter( channel , nameTable );
+            names.putInt( scanner.threadNamesByID.size() );
+            for ( Entry<Integer, String> entry : scanner.threadNamesByID.entrySet() )
+            {
+                final byte[] name = entry.getValue() != null ? entry.getValue().getBytes("UTF-8") : new byte[0];
+                names.putInt( entry.getKey() );
+                names.putInt( name.length );
+                for ( byte b : name ) {
+                    names.putByte( b );
+                }
+            }
+            names.flush();
+
+            final ColumnWriter header = new ColumnWriter( channel , 0 );
+            for ( byte b : ColumnarFile.FILE_HEADER ) {
+                header.putByte( b );
+            }
+            header.putInt( ColumnarFile.VERSION );
+            header.putLong( recordCount );
+            header.putLong( timeColumn );
+            header.putLong( threadColumn );
+            header.putLong( stateColumn );
+            header.putLong( typeColumn );
+            header.putLong( nameTable );
+            header.flush();
+        }
+
+        scanner.endOffset = recordCount;
+        scanner.createIndex( output ).save( output );
+        if ( DEBUG ) {
+            System.out.println("Wrote "+recordCount+" records to "+output.getAbsolutePath());
+        }
+    }
+
+    private static long align(long offset) {
+        return ( offset + 7 ) & ~7L;
+    }
+
+    /**
+     * Buffered sequential writes starting at a given file offset.
+     */
+    protected static final class ColumnWriter
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate( COLUMN_BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        private long position;
+
+        public ColumnWriter(FileChannel channel, long position)
+        {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        public void putLong(long value) throws IOException
+        {
+            ensureCapacity( 8 );
+            buffer.putLong( value );
+        }
+
+        public void putInt(int value) throws IOException
+        {
+            ensureCapacity( 4 );
+            buffer.putInt( value );
+        }
+
+        public void putByte(byte value) throws IOException
+        {
+            ensureCapacity( 1 );
+            buffer.put( value );
+        }
+
+        private void ensureCapacity(int bytes) throws IOException
+        {
+            if ( buffer.remaining() < bytes ) {
+                flush();
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            buffer.flip();
+            while ( buffer.hasRemaining() ) {
+                position += channel.write( buffer , position );
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only access to a recording that has been converted to the columnar format
+ * by {@link ColumnarConverter}.
+ *
+ * <p>The file is memory-mapped, only the thread names are held on the heap. All values are little-endian,
+ * the file starts with a {@link #HEADER_SIZE} byte header
+ * <pre>
+ * byte[4] FILE_HEADER
+ * int  VERSION
+ * long record count
+ * long offset of the time column (one long per record, nanoseconds since the epoch)
+ * long offset of the thread ID column (one int per record)
+ * long offset of the state mask column (one int per record, 0 for records that are no state changes)
+ * long offset of the type column (one byte per record)
+ * long offset of the thread name table (int count, then (int thread ID, int length, UTF-8 bytes) for each thread)
+ * </pre>
+ * followed by the columns. Each column starts at an offset that is a multiple of 8.</p>
+ *
+ * <p>Record indices are used as positions in keyframes and the time index, see {@link FileReader.ReadMode#IN_MEMORY}.</p>
+ */
+final class ColumnarFile extends RecordStore
+{
+    public static final byte[] FILE_HEADER = { 't' , 'w' , 'c' , 'f' };
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final MappedFile file;
+    private final int size;
+    private final long timeColumn;
+    private final long threadColumn;
+    private final long stateColumn;
+    private final long typeColumn;
+    private final Map<Integer,String> threadNamesByID = new HashMap<>();
+
+    public ColumnarFile(File file) throws IOException
+    {
+        if (file == null) {
+            throw new IllegalArgumentException("file must not be NULL.");
+        }
+        if ( ! isColumnarFile( file ) ) {
+            throw new IOException("Not a columnar file: "+file.getAbsolutePath());
+        }
+        this.file = new MappedFile( file );
+        if ( this.file.size() < HEADER_SIZE ) {
+            throw new IOException("Truncated file header");
+        }
+        final int version = getInt( 4 );
+        if ( version != VERSION ) {
+            throw new IOException("Unsupported columnar file version "+version);
+        }
+        final long recordCount = getLong( 8 );
+        if ( recordCount < 0 || recordCount > Integer.MAX_VALUE ) {
+            throw new IOException("Invalid record count "+recordCount);
+        }
+        this.size = (int) recordCount;
+        this.timeColumn = getLong( 16 );
+        this.threadColumn = getLong( 24 );
+        this.stateColumn = getLong( 32 );
+        this.typeColumn = getLong( 40 );
+        long offset = getLong( 48 );
+        if ( timeColumn + 8L * size > this.file.size() || threadColumn + 4L * size > this.file.size() ||
+             stateColumn + 4L * size > this.file.size() || typeColumn + size > this.file.size() || offset + 4 > this.file.size() )
+        {
+            throw new IOException("File is truncated");
+        }
+
+        final int threadCount = getInt( offset );
+        offset += 4;
+        for ( int i = 0 ; i < threadCount ; i++ )
+        {
+            final int threadId = getInt( offset );
+            final byte[] name = new byte[ getInt( offset + 4 ) ];
+            offset += 8;
+            for ( int j = 0 ; j < name.length ; j++ ) {
+                name[j] = this.file.getSegment( offset ).get( this.file.getSegmentOffset( offset ) );
+                offset++;
+            }
+            threadNamesByID.put( threadId , decode( name ) );
+        }
+    }
+
+    private static String decode(byte[] utf8)
+    {
+        try {
+            return new String( utf8 , "UTF-8" );
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks whether a file starts with {@link #FILE_HEADER}.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static boolean isColumnarFile(File file) throws IOException
+    {
+        final byte[] header = new byte[ FILE_HEADER.length ];
+        int read = 0;
+        try ( FileInputStream in = new FileInputStream( file ) )
+        {
+            int count;
+            while ( read < header.length && ( count = in.read( header , read , header.length - read ) ) != -1 ) {
+                read += count;
+            }
+        }
+        return read == header.length && Arrays.equals( header , FILE_HEADER );
+    }
+
+    private int getInt(long offset) {
+        return file.getSegment( offset ).getInt( file.getSegmentOffset( offset ) );
+    }
+
+    private long getLong(long offset) {
+        return file.getSegment( offset ).getLong( file.getSegmentOffset( offset ) );
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean read(int index, ThreadEvent event)
+    {
+        if ( index >= size ) {
+            return false;
+        }
+        final long epochNanos = getLong( timeColumn + 8L * index );
+        final long typeOffset = typeColumn + index;
+        event.type = file.getSegment( typeOffset ).get( file.getSegmentOffset( typeOffset ) );
+        event.threadId = getInt( threadColumn + 4L * index );
+        event.timestampSeconds = epochNanos / NANOS_PER_SECOND;
+        event.timestampNanos = epochNanos % NANOS_PER_SECOND;
+        switch( event.type )
+        {
+            case ThreadEvent.THREAD_START:
+                event.threadName = threadNamesByID.get( event.threadId );
+                break;
+            case ThreadEvent.THREAD_STATE_CHANGE:
+                event.threadStateMask = getInt( stateColumn + 4L * index );
+                break;
+            default:
+        }
+        return true;
+    }
+}
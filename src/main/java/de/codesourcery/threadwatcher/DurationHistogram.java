@@ -0,0 +1,140 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+/**
+ * Fixed-size histogram of durations with logarithmic buckets.
+ *
+ * <p>Each power of two is split into {@link #SUB_BUCKETS} buckets of equal width, so values reported
+ * for percentiles are at most 1/{@link #SUB_BUCKETS} larger than the actual values. Durations below
+ * {@link #SUB_BUCKETS} nanoseconds are counted exactly, durations of 2^({@link #MAX_EXPONENT}+1)
+ * nanoseconds (about 78 hours) or more share the last bucket. Count, min. and max. are tracked exactly.</p>
+ *
+ * <p>Instances are not thread-safe.</p>
+ */
+public final class DurationHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    public static final int MAX_EXPONENT = 47;
+
+    public static final int BUCKET_COUNT = ( MAX_EXPONENT - SUB_BUCKET_BITS + 2 ) * SUB_BUCKETS;
+
+    private final int[] counts = new int[ BUCKET_COUNT ];
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    /**
+     * Adds a duration.
+     *
+     * @param nanos duration in nanoseconds, negative values are counted as zero
+     */
+    public void add(long nanos)
+    {
+        final long value = Math.max( 0 , nanos );
+        counts[ getBucket( value ) ]++;
+        count++;
+        min = Math.min( min , value );
+        max = Math.max( max , value );
+    }
+
+    /**
+     * Adds all durations of another histogram.
+     *
+     * @param other
+     */
+    public void add(DurationHistogram other)
+    {
+        for ( int i = 0 ; i < BUCKET_COUNT ; i++ ) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        min = Math.min( min , other.min );
+        max = Math.max( max , other.max );
+    }
+
+    protected static int getBucket(long value)
+    {
+        if ( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros( value );
+        if ( exponent > MAX_EXPONENT ) {
+            return BUCKET_COUNT - 1;
+        }
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return ( shift + 1 ) * SUB_BUCKETS + (int) ( ( value >>> shift ) & ( SUB_BUCKETS - 1 ) );
+    }
+
+    // largest value falling into a bucket
+    protected static long getUpperBound(int bucket)
+    {
+        if ( bucket < SUB_BUCKETS ) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowerBound = (long) ( SUB_BUCKETS + bucket % SUB_BUCKETS ) << shift;
+        return lowerBound + ( 1L << shift ) - 1;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return min. duration in nanoseconds, 0 if the histogram is empty
+     */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return max. duration in nanoseconds, 0 if the histogram is empty
+     */
+    public long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    /**
+     * Returns a percentile.
+     *
+     * @param percentile 0...100
+     * @return smallest duration (nanoseconds) that at least <code>percentile</code> percent of all durations do not exceed,
+     * rounded up to the end of its bucket (but never larger than {@link #getMax()}). 0 if the histogram is empty.
+     */
+    public long getPercentile(double percentile)
+    {
+        if ( percentile < 0 || percentile > 100 ) {
+            throw new IllegalArgumentException("Invalid percentile: "+percentile);
+        }
+        if ( count == 0 ) {
+            return 0;
+        }
+        final long rank = Math.max( 1 , (long) Math.ceil( percentile / 100.0 * count ) );
+        long seen = 0;
+        for ( int i = 0 ; i < BUCKET_COUNT ; i++ )
+        {
+            seen += counts[i];
+            if ( seen >= rank ) {
+                return Math.max( min , Math.min( max , getUpperBound( i ) ) );
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * All records of a recording, held in memory as one array per field (struct-of-arrays).
+ *
+ * <p>Records are addressed by their index, thread names are kept in a side table
+ * since they only appear in {@link ThreadEvent#THREAD_START} records. Reading records
+ * does not allocate any objects.</p>
+ *
+ * <p>Instances are not thread-safe.</p>
+ */
+final class EventStore extends RecordStore
+{
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // max. number of records that can be held
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+    // heap needed per record (epoch nanos, thread ID, state mask, type)
+    public static final int BYTES_PER_RECORD = 8 + 4 + 4 + 1;
+
+    private long[] epochNanos;
+    private int[] threadIds;
+    private int[] stateMasks;
+    private byte[] types;
+    private int size;
+
+    private final Map<Integer,String> threadNamesByID = new HashMap<>();
+    private final StateKeyframes.Builder keyframesBuilder = new StateKeyframes.Builder();
+    private StateKeyframes keyframes;
+
+    public EventStore(int expectedSize)
+    {
+        final int capacity = Math.max( 16 , expectedSize );
+        epochNanos = new long[ capacity ];
+        threadIds = new int[ capacity ];
+        stateMasks = new int[ capacity ];
+        types = new byte[ capacity ];
+    }
+
+    /**
+     * Checks whether a number of records comfortably fits into the heap.
+     *
+     * @param recordCount
+     * @return <code>true</code> if the records need less than half of the max. heap size
+     */
+    public static boolean fitsIntoHeap(long recordCount) {
+        return recordCount <= MAX_CAPACITY && recordCount * BYTES_PER_RECORD < Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns keyframes for this store.
+     *
+     * @return keyframes whose positions are record indices
+     */
+    public StateKeyframes getKeyframes()
+    {
+        if ( keyframes == null ) {
+            keyframes = keyframesBuilder.build();
+        }
+        return keyframes;
+    }
+
+    @Override
+    public boolean read(int index,ThreadEvent event)
+    {
+        if ( index >= size ) {
+            return false;
+        }
+        event.type = types[index];
+        event.threadId = threadIds[index];
+        event.timestampSeconds = epochNanos[index] / NANOS_PER_SECOND;
+        event.timestampNanos = epochNanos[index] % NANOS_PER_SECOND;
+        switch( event.type )
+        {
+            case ThreadEvent.THREAD_START:
+                event.threadName = threadNamesByID.get( event.threadId );
+                break;
+            case ThreadEvent.THREAD_STATE_CHANGE:
+                event.threadStateMask = stateMasks[index];
+                break;
+            default:
+        }
+        return true;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param event
+     */
+    public void add(ThreadEvent event)
+    {
+        if ( size == types.length ) {
+            grow();
+        }
+        keyframesBuilder.process( event , size , true );
+        keyframes = null;
+
+        epochNanos[size] = event.timestampSeconds * NANOS_PER_SECOND + event.timestampNanos;
+        threadIds[size] = event.threadId;
+        types[size] = event.type;
+        if ( event.type == ThreadEvent.THREAD_STATE_CHANGE ) {
+            stateMasks[size] = event.threadStateMask;
+        } else if ( event.type == ThreadEvent.THREAD_START ) {
+            threadNamesByID.put( event.threadId , event.threadName );
+        }
+        size++;
+    }
+
+    private void grow()
+    {
+        final long newCapacity = Math.min( MAX_CAPACITY , types.length * 2L );
+        if ( newCapacity <= types.length ) {
+            throw new RuntimeException("Recording has too many records to be held in memory");
+        }
+        epochNanos = Arrays.copyOf( epochNanos , (int) newCapacity );
+        threadIds = Arrays.copyOf( threadIds , (int) newCapacity );
+        stateMasks = Arrays.copyOf( stateMasks , (int) newCapacity );
+        types = Arrays.copyOf( types , (int) newCapacity );
+    }
+}
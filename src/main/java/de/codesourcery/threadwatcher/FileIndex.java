@@ -0,0 +1,339 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Results of scanning a recording, persisted next to it in a sidecar file
+ * so that reopening the recording does not require another full scan.
+ *
+ * <p>The index remembers size and last modification time of the recording
+ * it was created from and is discarded when either of them changes.
+ * Records following {@link #dataEnd} are scanned whenever the recording gets opened.</p>
+ */
+final class FileIndex
+{
+    public static final String FILE_SUFFIX = ".twidx";
+
+    private static final int MAGIC = 0x74776978; // 'twix'
+    private static final int VERSION = 9;
+
+    private static final boolean DEBUG = false;
+
+    public final long recordingSize;
+    public final long recordingLastModified;
+
+    public final HiResInterval dataInterval;
+    public final long recordCount;
+    public final Map<Integer,String> threadNamesByID;
+    public final Map<Integer,HiResInterval> threadLifetimes;
+    public final StateKeyframes keyframes;
+
+    // required to resume scanning when data gets appended to the recording
+    public final long dataEnd;
+    public final long resumeOffset;
+    public final Set<Integer> deadThreadIds;
+    public final Map<Integer,Integer> threadStates;
+
+    public FileIndex(File recording,
+            HiResInterval dataInterval,
+            long recordCount,
+            Map<Integer, String> threadNamesByID,
+            Map<Integer, HiResInterval> threadLifetimes,
+            StateKeyframes keyframes,
+            long dataEnd,
+            long resumeOffset,
+            Set<Integer> deadThreadIds,
+            Map<Integer,Integer> threadStates)
+    {
+        this(recording.length(),recording.lastModified(),dataInterval,recordCount,threadNamesByID,threadLifetimes,keyframes,
+                dataEnd,resumeOffset,deadThreadIds,threadStates);
+    }
+
+    public FileIndex(long recordingSize,
+            long recordingLastModified,
+            HiResInterval dataInterval,
+            long recordCount,
+            Map<Integer, String> threadNamesByID,
+            Map<Integer, HiResInterval> threadLifetimes,
+            StateKeyframes keyframes,
+            long dataEnd,
+            long resumeOffset,
+            Set<Integer> deadThreadIds,
+            Map<Integer,Integer> threadStates)
+    {
+        this.dataEnd = dataEnd;
+        this.resumeOffset = resumeOffset;
+        this.deadThreadIds = deadThreadIds;
+        this.threadStates = threadStates;
+        this.recordingSize = recordingSize;
+        this.recordingLastModified = recordingLastModified;
+        this.dataInterval = dataInterval;
+        this.recordCount = recordCount;
+        this.threadNamesByID = threadNamesByID;
+        this.threadLifetimes = threadLifetimes;
+        this.keyframes = keyframes;
+    }
+
+    public static File getIndexFile(File recording) {
+        return new File( recording.getAbsolutePath()+FILE_SUFFIX );
+    }
+
+    /**
+     * Loads the index for a recording.
+     *
+     * @param recording
+     * @return index or <code>null</code> if there is no index file or it is outdated/unreadable
+     */
+    public static FileIndex load(File recording)
+    {
+        final File indexFile = getIndexFile( recording );
+        if ( ! indexFile.isFile() ) {
+            return null;
+        }
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ) ) ) )
+        {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                return null;
+            }
+            final long recordingSize = in.readLong();
+            final long recordingLastModified = in.readLong();
+            if ( recordingSize != recording.length() || recordingLastModified != recording.lastModified() ) {
+                if ( DEBUG ) {
+                    System.out.println("Index file "+indexFile.getAbsolutePath()+" is outdated");
+                }
+                return null;
+            }
+
+            final HiResInterval dataInterval = in.readBoolean() ? readInterval( in ) : null;
+            final long recordCount = in.readLong();
+
+            int count = in.readInt();
+            final Map<Integer,String> threadNamesByID = new HashMap<>();
+            for ( int i = 0 ; i < count ; i++ ) {
+                final int threadId = in.readInt();
+                threadNamesByID.put( threadId , in.readBoolean() ? in.readUTF() : null );
+            }
+
+            count = in.readInt();
+            final Map<Integer,HiResInterval> threadLifetimes = new HashMap<>();
+            for ( int i = 0 ; i < count ; i++ ) {
+                final int threadId = in.readInt();
+                threadLifetimes.put( threadId , readInterval( in ) );
+            }
+
+            count = in.readInt();
+            final List<StateKeyframes.Keyframe> keyframes = new ArrayList<>( count );
+            long position = 0;
+            for ( int i = 0 ; i < count ; i++ ) 
+            {
+                position += readVarLong( in );
+                final HiResTimestamp timestamp = readTimestamp( in );
+                final boolean full = in.readBoolean();
+                final int threadCount = in.readInt();
+                final int[] threadIds = new int[ threadCount ];
+                final int[] stateMasks = new int[ threadCount ];
+                for ( int j = 0 ; j < threadCount ; j++ ) {
+                    threadIds[j] = in.readInt();
+                    stateMasks[j] = in.readInt();
+                }
+                final int diedCount = in.readInt();
+                final int[] diedThreadIds = new int[ diedCount ];
+                for ( int j = 0 ; j < diedCount ; j++ ) {
+                    diedThreadIds[j] = in.readInt();
+                }
+                keyframes.add( new StateKeyframes.Keyframe( position , timestamp , full , threadIds , stateMasks , diedThreadIds ) );
+            }
+
+            final long dataEnd = in.readLong();
+            final long resumeOffset = in.readLong();
+            count = in.readInt();
+            final Set<Integer> deadThreadIds = new HashSet<>();
+            for ( int i = 0 ; i < count ; i++ ) {
+                deadThreadIds.add( in.readInt() );
+            }
+            count = in.readInt();
+            final Map<Integer,Integer> threadStates = new HashMap<>();
+            for ( int i = 0 ; i < count ; i++ ) {
+                final int threadId = in.readInt();
+                threadStates.put( threadId , in.readInt() );
+            }
+            return new FileIndex(recordingSize,recordingLastModified,dataInterval,recordCount,threadNamesByID,threadLifetimes,
+                    new StateKeyframes( keyframes ),dataEnd,resumeOffset,deadThreadIds,threadStates);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Failed to read index file "+indexFile.getAbsolutePath()+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes this index next to the recording.
+     *
+     * The index is written to a temporary file first and then
+     * renamed so that readers never see a partially written index.
+     *
+     * @param recording
+     * @throws IOException
+     */
+    public void save(File recording) throws IOException
+    {
+        final File indexFile = getIndexFile( recording );
+        final File tmpFile = new File( indexFile.getAbsolutePath()+".tmp" );
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) ) )
+        {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( recordingSize );
+            out.writeLong( recordingLastModified );
+
+            out.writeBoolean( dataInterval != null );
+            if ( dataInterval != null ) {
+                writeInterval( dataInterval , out );
+            }
+            out.writeLong( recordCount );
+
+            out.writeInt( threadNamesByID.size() );
+            for ( Entry<Integer, String> entry : threadNamesByID.entrySet() )
+            {
+                out.writeInt( entry.getKey() );
+                out.writeBoolean( entry.getValue() != null );
+                if ( entry.getValue() != null ) {
+                    out.writeUTF( entry.getValue() );
+                }
+            }
+
+            out.writeInt( threadLifetimes.size() );
+            for ( Entry<Integer, HiResInterval> entry : threadLifetimes.entrySet() )
+            {
+                out.writeInt( entry.getKey() );
+                writeInterval( entry.getValue() , out );
+            }
+
+            // keyframe positions are delta-encoded
+            out.writeInt( keyframes.size() );
+            long previousPosition = 0;
+            for ( StateKeyframes.Keyframe keyframe : keyframes.getKeyframes() )
+            {
+                writeVarLong( keyframe.position - previousPosition , out );
+                previousPosition = keyframe.position;
+                writeTimestamp( keyframe.timestamp , out );
+                out.writeBoolean( keyframe.full );
+                out.writeInt( keyframe.getThreadCount() );
+                for ( int i = 0 ; i < keyframe.getThreadCount() ; i++ ) {
+                    out.writeInt( keyframe.getThreadId( i ) );
+                    out.writeInt( keyframe.getStateMask( i ) );
+                }
+                out.writeInt( keyframe.getDiedThreadCount() );
+                for ( int i = 0 ; i < keyframe.getDiedThreadCount() ; i++ ) {
+                    out.writeInt( keyframe.getDiedThreadId( i ) );
+                }
+            }
+
+            out.writeLong( dataEnd );
+            out.writeLong( resumeOffset );
+            out.writeInt( deadThreadIds.size() );
+            for ( Integer threadId : deadThreadIds ) {
+                out.writeInt( threadId );
+            }
+            out.writeInt( threadStates.size() );
+            for ( Entry<Integer, Integer> entry : threadStates.entrySet() )
+            {
+                out.writeInt( entry.getKey() );
+                out.writeInt( entry.getValue() );
+            }
+        }
+        catch(IOException e)
+        {
+            tmpFile.delete();
+            throw e;
+        }
+        Files.move( tmpFile.toPath() , indexFile.toPath() , StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    private static void writeInterval(HiResInterval interval,DataOutputStream out) throws IOException
+    {
+        writeTimestamp( interval.start , out );
+        writeTimestamp( interval.end , out );
+    }
+
+    private static void writeTimestamp(HiResTimestamp ts,DataOutputStream out) throws IOException
+    {
+        out.writeLong( ts.secondsSinceEpoch );
+        out.writeLong( ts.nanoseconds );
+        out.writeBoolean( ts.truncatedToMillis );
+    }
+
+    // unsigned LEB128, values written here are never negative 
+    private static void writeVarLong(long value,DataOutputStream out) throws IOException
+    {
+        while ( ( value & ~0x7fL ) != 0 ) 
+        {
+            out.writeByte( (int) ( ( value & 0x7f ) | 0x80 ) );
+            value >>>= 7;
+        }
+        out.writeByte( (int) value );
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException
+    {
+        long result = 0;
+        int shift = 0;
+        int b;
+        do 
+        {
+            if ( shift > 63 ) {
+                throw new IOException("Malformed variable-length integer");
+            }
+            b = in.readUnsignedByte();
+            result |= (long) ( b & 0x7f ) << shift;
+            shift += 7;
+        } while ( ( b & 0x80 ) != 0 );
+        return result;
+    }
+
+    private static HiResInterval readInterval(DataInputStream in) throws IOException
+    {
+        final HiResTimestamp start = readTimestamp( in );
+        return new HiResInterval( start , readTimestamp( in ) );
+    }
+
+    private static HiResTimestamp readTimestamp(DataInputStream in) throws IOException
+    {
+        final long seconds = in.readLong();
+        final long nanos = in.readLong();
+        return new HiResTimestamp( seconds , nanos , in.readBoolean() );
+    }
+}
@@ -15,43 +15,112 @@
  */
 package de.codesourcery.threadwatcher;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.lang.StringUtils;
 
 public class FileReader
 {
     private static final byte[] FILE_HEADER_LITTLE_ENDIAN = { (byte) 0xef , (byte) 0xbe, (byte) 0xad , (byte) 0xde };    
+    // compact file format, see RecordDecoder
+    private static final byte[] FILE_HEADER_V2_LITTLE_ENDIAN = { (byte) 0xf2 , (byte) 0xbe, (byte) 0xad , (byte) 0xde };    
+    // block-structured file format, see BlockIndex
+    private static final byte[] FILE_HEADER_V3_LITTLE_ENDIAN = { (byte) 0xf3 , (byte) 0xbe, (byte) 0xad , (byte) 0xde };    
     
     private static final boolean DEBUG = false;
     
-    private final byte[] buffer = new byte[ ThreadEvent.BUFFER_LENGTH ];
+    public static enum ReadMode 
+    {
+        /**
+         * Read the file sequentially through a small heap buffer.
+         */
+        STREAM,
+        /**
+         * Decode records directly from a read-only memory mapping of the file.
+         */
+        MEMORY_MAPPED,
+        /**
+         * Load all records into memory once and serve all visits from there.
+         * 
+         * Note that {@link FileReader#visit(LookAheadFileVisitor)} reports record indices
+         * instead of file offsets in this mode.
+         * 
+         * Files in the columnar format (see {@link ColumnarFile}) are always read in this mode, 
+         * their records stay in the memory-mapped file though.
+         */
+        IN_MEMORY,
+        /**
+         * Use {@link #IN_MEMORY} if the records comfortably fit into the heap, {@link #MEMORY_MAPPED} otherwise.
+         * 
+         * {@link FileReader#getReadMode()} returns the mode that has been chosen.
+         */
+        AUTO;
+    }
     
     private final File file;    
-    private BufferedInputStream in;
+    private ReadMode readMode;
+    
+    // used in STREAM mode
+    private ByteBuffer buffer;
+    private FileChannel in;
+    
+    // used in MEMORY_MAPPED mode
+    private MappedFile mappedFile;
+    
+    // used in IN_MEMORY mode
+    private RecordStore store;
+    // records loaded into memory, null for columnar files
+    private EventStore eventStore;
     
-    private int bytesInBuffer;
-    private int bytesConsumed;
-    private int readPtr;
-    private int writePtr;
+    // decoder for the file's format, null for columnar files
+    private final RecordDecoder decoder;
+    
+    // file offset (or record index in IN_MEMORY mode) of the next record to read
+    private long readOffset;
+    // whether reading may start at the offset of the record read last
+    private boolean lastEventSeekable;
+    // index of the first block starting at or after readOffset, only maintained while visiting an interval
+    private int nextBlock;
+    // total number of bytes decoded by this reader
+    private long bytesRead;
     
     private final ThreadEvent event1=new ThreadEvent();
     private final ThreadEvent event2=new ThreadEvent();    
     
-    // data discovered during file scan
-    private final HiResInterval dataInterval;
-    private final Map<Integer,String> threadNamesByID;
-    private final Map<HiResTimestamp,Long> fileOffsetsByMilliseconds;
-    private final Map<Integer,HiResInterval> threadLifetimes;
+    // data discovered during file scan, updated by refresh()
+    private volatile FileIndex index;
+    private volatile HiResInterval dataInterval;
+    private volatile Map<Integer,String> threadNamesByID;
+    private volatile Map<Integer,HiResInterval> threadLifetimes;
+    private volatile StateKeyframes keyframes;
+    // only available for block-structured files
+    private volatile BlockIndex blockIndex;
+    
+    // scan state, only created when the file is refreshed for the first time
+    private FileScanner scanner;
+    
+    // summaries, created while loading records into memory or on demand, updated by refresh()
+    private volatile StatePyramid statePyramid;
+    private volatile StateDurationIndex stateDurationIndex;
+    // creates missing summaries, guarded by summaryLock
+    private FutureTask<Void> summaryBuilder;
+    private final Object summaryLock = new Object();
     
     public static void main(String[] args) throws IOException
     {
@@ -67,35 +136,427 @@ public class FileReader
     }
     
     public FileReader(File file) throws IOException 
+    {
+        this(file,ReadMode.MEMORY_MAPPED);
+    }
+    
+    public FileReader(File file,ReadMode readMode) throws IOException 
+    {
+        this(file,readMode,true);
+    }
+    
+    /**
+     * @param file recording to read
+     * @param readMode how to access records
+     * @param saveIndex whether to write an index file next to the recording if there is no valid one yet
+     * @throws IOException
+     */
+    FileReader(File file,ReadMode readMode,boolean saveIndex) throws IOException 
     {
         if (file == null) {
             throw new IllegalArgumentException("file must not be NULL.");
         }
+        if (readMode == null) {
+            throw new IllegalArgumentException("readMode must not be NULL.");
+        }
         this.file = file;
-        final FileScanner visitor = new FileScanner();
-        visit( visitor );        
-        this.dataInterval = visitor.getInterval();
-        this.threadNamesByID = Collections.unmodifiableMap( visitor.threadNamesByID );
-        this.fileOffsetsByMilliseconds = Collections.unmodifiableMap( visitor.fileOffsetsByMilliseconds );
-        
-        final Map<Integer,HiResInterval> tmp = new HashMap<>();
-        for ( Entry<Integer, HiResTimestamp> entry : visitor.threadStartTimes.entrySet() ) {
-        	HiResTimestamp end = visitor.threadDeathTimes.get( entry.getKey() );
-        	if ( end == null ) {
-        	    end = visitor.lastEvent;
-        	}
-       		tmp.put( entry.getKey() , new HiResInterval( entry.getValue() , end ) );
+        if ( ColumnarFile.isColumnarFile( file ) ) 
+        {
+            this.readMode = ReadMode.IN_MEMORY;
+            this.decoder = null;
+            this.store = new ColumnarFile( file );
+        } 
+        else 
+        {
+            // the number of records is only known after the file has been scanned
+            this.readMode = readMode == ReadMode.AUTO ? ReadMode.MEMORY_MAPPED : readMode;
+            this.decoder = RecordDecoder.create( readFormatVersion( file ) );
+            if ( decoder.getFormatVersion() == 3 ) {
+                blockIndex = readBlockIndex( null );
+            }
+        }
+        
+        FileIndex index = FileIndex.load( file );
+        if ( index == null ) 
+        {
+            // records appended while scanning must invalidate the index file
+            final long recordingSize = file.length();
+            final long recordingLastModified = file.lastModified();
+            index = scan( recordingSize , recordingLastModified );
+            if ( saveIndex ) 
+            {
+                try {
+                    index.save( file );
+                } 
+                catch(IOException e) {
+                    System.err.println("Failed to write index file for "+file.getAbsolutePath()+": "+e.getMessage());
+                }
+            }
         }
-        this.threadLifetimes = Collections.unmodifiableMap( tmp );
+        
+        if ( readMode == ReadMode.AUTO && store == null && EventStore.fitsIntoHeap( index.recordCount ) ) {
+            this.readMode = ReadMode.IN_MEMORY;
+        }
+        if ( this.readMode == ReadMode.IN_MEMORY && store == null ) 
+        {
+            eventStore = loadEventStore( index );
+            store = eventStore;
+            mappedFile = null;
+        }
+        applyIndex( index );
+        // pick up records appended after the index has been created
+        refresh();
         
         if ( DEBUG ) {
             System.out.println("Time interval: "+getInterval());
             System.out.println("Threads: \n"+getThreadNamesByID() );
-            System.out.println("Offsets: "+StringUtils.join( fileOffsetsByMilliseconds.entrySet() , "\n"));
             System.out.println("Lifetimes: \n"+StringUtils.join(threadLifetimes.entrySet(),"\n" ) );
+            System.out.println("Keyframes: \n"+StringUtils.join(keyframes.getKeyframes(),"\n" ) );
+        }
+    }
+    
+    private void applyIndex(FileIndex index) 
+    {
+        this.index = index;
+        this.dataInterval = index.dataInterval;
+        this.threadNamesByID = Collections.unmodifiableMap( index.threadNamesByID );
+        this.threadLifetimes = Collections.unmodifiableMap( index.threadLifetimes );
+        this.keyframes = eventStore != null ? eventStore.getKeyframes() : index.keyframes;
+    }
+    
+    private FileIndex scan(long recordingSize,long recordingLastModified) throws IOException 
+    {
+        if ( readMode != ReadMode.STREAM && store == null ) 
+        {
+            reset();
+            readFileHeader();
+            final FileScanner scanner = new ParallelFileScanner( mappedFile , decoder.getFormatVersion() , blockIndex ).scan( readOffset );
+            if ( scanner != null ) {
+                return scanner.createIndex( recordingSize , recordingLastModified );
+            }
+        }
+        final FileScanner visitor = new FileScanner();
+        visit( visitor );
+        visitor.endOffset = readOffset;
+        return visitor.createIndex( recordingSize , recordingLastModified );
+    }
+    
+    private EventStore loadEventStore(FileIndex index) throws IOException 
+    {
+        final long time = System.currentTimeMillis();
+        if ( index.recordCount > EventStore.MAX_CAPACITY ) {
+            throw new IOException("Recording "+file.getAbsolutePath()+" has too many records to be held in memory");
+        }
+        final EventStore result = new EventStore( (int) index.recordCount );
+        // create the summaries along the way instead of reading all records again later on
+        final StatePyramid pyramid = index.dataInterval != null ? 
+                new StatePyramid( StatePyramid.toEpochNanos( index.dataInterval.start ) , StatePyramid.toEpochNanos( index.dataInterval.end ) ) : null;
+        final StateDurationIndex durations = new StateDurationIndex();
+        reset();
+        readFileHeader();
+        mappedFile.visit( readOffset , index.dataEnd , decoder , new LookAheadFileVisitor() {
+            
+            @Override
+            public boolean visit(ThreadEvent event, long fileoffset, boolean seekable, boolean hasMore) {
+                result.add( event );
+                pyramid.add( event );
+                durations.add( event );
+                return true;
+            }
+        });
+        if ( pyramid != null ) 
+        {
+            pyramid.finish( StatePyramid.toEpochNanos( index.dataInterval.end ) );
+            statePyramid = pyramid;
+            stateDurationIndex = durations;
+        }
+        if ( DEBUG ) {
+            System.out.println("Loaded "+result.size()+" records into memory in "+(System.currentTimeMillis()-time)+" ms");
+        }
+        return result;
+    }
+    
+    /**
+     * Scans records that have been appended to the file since it was last scanned,
+     * for following recordings that are still being written.
+     * 
+     * <p>Thread names, lifetimes, the data interval and all indices are extended accordingly.
+     * A record that has been only partially written is picked up by the next refresh.</p>
+     * 
+     * @return <code>true</code> if new records have been found
+     * @throws IOException
+     */
+    public synchronized boolean refresh() throws IOException 
+    {
+        final long dataEnd = index.dataEnd;
+        if ( decoder == null || file.length() <= dataEnd ) {
+            // columnar files are never appended to
+            return false;
+        }
+        
+        if ( scanner == null ) {
+            scanner = FileScanner.resume( index );
+        }
+        if ( blockIndex != null ) {
+            blockIndex = readBlockIndex( blockIndex );
+        }
+        
+        final MappedFile mapped;
+        if ( readMode == ReadMode.MEMORY_MAPPED ) 
+        {
+            mapped = mappedFile != null ? mappedFile.grow( file ) : new MappedFile( file );
+            mappedFile = mapped;
+        } else {
+            // only records following the last seekable record scanned are needed
+            mapped = new MappedFile( file , index.resumeOffset );
+        }
+        
+        // decoding needs to start at a seekable record, skip records that have already been scanned
+        final FileScanner appended = new FileScanner();
+        appended.endOffset = mapped.visit( index.resumeOffset , Long.MAX_VALUE , decoder , new LookAheadFileVisitor() 
+        {
+            @Override
+            public boolean visit(ThreadEvent event, long fileoffset, boolean seekable, boolean hasMore)
+            {
+                if ( fileoffset < dataEnd ) {
+                    return true;
+                }
+                appended.visit( event , fileoffset , seekable , hasMore );
+                if ( eventStore != null ) {
+                    eventStore.add( event );
+                }
+                if ( statePyramid != null ) {
+                    statePyramid.add( event );
+                }
+                if ( stateDurationIndex != null ) {
+                    stateDurationIndex.add( event );
+                }
+                return true;
+            }
+        });
+        
+        if ( appended.endOffset <= dataEnd ) {
+            return false;
+        }
+        scanner.append( appended );
+        applyIndex( scanner.createIndex( file ) );
+        if ( statePyramid != null ) 
+        {
+            statePyramid.finish( StatePyramid.toEpochNanos( dataInterval.end ) );
+            if ( statePyramid.isFull() ) {
+                // recreated with wider buckets on demand
+                statePyramid = null;
+            }
+        }
+        
+        if ( DEBUG ) {
+            System.out.println("Refresh: Scanned "+(appended.endOffset-dataEnd)+" bytes, data interval is now "+dataInterval);
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the number of bytes decoded by this reader so far.
+     * 
+     * @return total bytes read from the file, records held in memory are not counted
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+    
+    /**
+     * Returns a multi-resolution summary of all thread states in this recording.
+     * 
+     * <p>The summary is created on first access (which requires reading the whole file unless
+     * its records have been loaded into memory) and kept up-to-date by {@link #refresh()}.
+     * This reader is not locked while the summary is created.</p>
+     * 
+     * @return state pyramid or <code>null</code> if the recording contains no records
+     * @throws IOException
+     * @throws InterruptedIOException if the current thread got interrupted while the summary was being created
+     */
+    public StatePyramid getStatePyramid() throws IOException
+    {
+        if ( statePyramid == null && dataInterval != null ) {
+            createSummaries();
+        }
+        return statePyramid;
+    }
+    
+    /**
+     * Returns the time each thread spent in each state, for calculating interval statistics.
+     * 
+     * <p>The index is created on first access (which requires reading the whole file unless
+     * its records have been loaded into memory) and kept up-to-date by {@link #refresh()}.
+     * This reader is not locked while the index is created.</p>
+     * 
+     * @return index or <code>null</code> if the recording contains no records
+     * @throws IOException
+     * @throws InterruptedIOException if the current thread got interrupted while the index was being created
+     */
+    public StateDurationIndex getStateDurationIndex() throws IOException
+    {
+        if ( stateDurationIndex == null && dataInterval != null ) {
+            createSummaries();
+        }
+        return stateDurationIndex;
+    }
+    
+    /**
+     * Creates all missing summaries in a single pass over the records.
+     * 
+     * <p>Concurrent callers wait for the pass started by the first one. If that caller
+     * gets interrupted, the pass is aborted and restarted by the next caller.</p>
+     */
+    private void createSummaries() throws IOException
+    {
+        while ( true )
+        {
+            final FutureTask<Void> task;
+            boolean run = false;
+            synchronized( summaryLock ) 
+            {
+                if ( summaryBuilder == null || summaryBuilder.isDone() ) 
+                {
+                    if ( statePyramid != null && stateDurationIndex != null ) {
+                        return;
+                    }
+                    summaryBuilder = new FutureTask<>( new Callable<Void>() {
+
+                        @Override
+                        public Void call() throws Exception
+                        {
+                            buildSummaries();
+                            return null;
+                        }
+                    });
+                    run = true;
+                }
+                task = summaryBuilder;
+            }
+            
+            if ( run ) {
+                task.run();
+            }
+            try {
+                task.get();
+                return;
+            } 
+            catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for summaries of "+file.getAbsolutePath());
+            } 
+            catch (ExecutionException e) 
+            {
+                if ( e.getCause() instanceof InterruptedIOException && ! run ) {
+                    // the thread creating the summaries got interrupted, try again
+                    continue;
+                }
+                if ( e.getCause() instanceof IOException ) {
+                    throw (IOException) e.getCause();
+                }
+                if ( e.getCause() instanceof RuntimeException ) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException( e.getCause() );
+            }
         }
     }
     
+    private void buildSummaries() throws IOException 
+    {
+        final long time = System.currentTimeMillis();
+        final FileIndex snapshot = index;
+        final StatePyramid pyramid = statePyramid == null ? 
+                new StatePyramid( StatePyramid.toEpochNanos( snapshot.dataInterval.start ) , StatePyramid.toEpochNanos( snapshot.dataInterval.end ) ) : null;
+        final StateDurationIndex durations = stateDurationIndex == null ? new StateDurationIndex() : null;
+        
+        final LookAheadFileVisitor visitor = new LookAheadFileVisitor() {
+            
+            private int count;
+            
+            @Override
+            public boolean visit(ThreadEvent event, long fileoffset, boolean seekable, boolean hasMore)
+            {
+                if ( ( ++count & 0xffff ) == 0 && Thread.currentThread().isInterrupted() ) {
+                    return false;
+                }
+                if ( pyramid != null ) {
+                    pyramid.add( event );
+                }
+                if ( durations != null ) {
+                    durations.add( event );
+                }
+                return true;
+            }
+        };
+        
+        // read without locking this reader, refresh() never changes records that have already been scanned
+        if ( decoder == null ) 
+        {
+            final ThreadEvent event = new ThreadEvent();
+            for ( int i = 0 ; store.read( i , event ) ; i++ ) 
+            {
+                if ( ! visitor.visit( event , i , true , true ) ) {
+                    break;
+                }
+            }
+        } else {
+            new MappedFile( file ).visit( FILE_HEADER_LITTLE_ENDIAN.length , snapshot.dataEnd , RecordDecoder.create( decoder.getFormatVersion() ) , visitor );
+        }
+        if ( Thread.currentThread().isInterrupted() ) {
+            throw new InterruptedIOException("Interrupted while creating summaries of "+file.getAbsolutePath());
+        }
+        
+        synchronized( this ) 
+        {
+            // catch up with records that have been appended meanwhile
+            if ( index.dataEnd > snapshot.dataEnd ) 
+            {
+                new MappedFile( file , snapshot.resumeOffset ).visit( snapshot.resumeOffset , index.dataEnd , RecordDecoder.create( decoder.getFormatVersion() ) , new LookAheadFileVisitor() {
+                    
+                    @Override
+                    public boolean visit(ThreadEvent event, long fileoffset, boolean seekable, boolean hasMore)
+                    {
+                        return fileoffset < snapshot.dataEnd || visitor.visit( event , fileoffset , seekable , hasMore );
+                    }
+                });
+                if ( Thread.currentThread().isInterrupted() ) {
+                    throw new InterruptedIOException("Interrupted while creating summaries of "+file.getAbsolutePath());
+                }
+            }
+            if ( pyramid != null ) 
+            {
+                pyramid.finish( StatePyramid.toEpochNanos( dataInterval.end ) );
+                // the next attempt uses wider buckets
+                statePyramid = pyramid.isFull() ? null : pyramid;
+            }
+            if ( durations != null ) {
+                stateDurationIndex = durations;
+            }
+        }
+        if ( DEBUG ) {
+            System.out.println("Created summaries in "+(System.currentTimeMillis()-time)+" ms");
+        }
+    }
+    
+    private BlockIndex readBlockIndex(BlockIndex previous) throws IOException
+    {
+        try ( FileInputStream stream = new FileInputStream( file ) ) {
+            return BlockIndex.read( stream.getChannel() , FILE_HEADER_LITTLE_ENDIAN.length , previous );
+        }
+    }
+    
+    /**
+     * Returns summaries of the file's blocks.
+     * 
+     * @return block index or <code>null</code> if the file is not block-structured
+     */
+    public BlockIndex getBlockIndex() {
+        return blockIndex;
+    }
+    
     public Map<Integer, HiResInterval> getThreadLifetimes() {
 		return threadLifetimes;
 	}
@@ -117,21 +578,34 @@ public class FileReader
 		return threadNamesByID;
 	}
     
-    protected final class FileScanner extends LookAheadFileVisitor
+    /**
+     * Gathers the data stored in the {@link FileIndex}.
+     */
+    protected static final class FileScanner extends LookAheadFileVisitor
     {
         public HiResTimestamp firstEvent;
         public HiResTimestamp lastEvent;
+        // offset of the first byte after the last record scanned
+        public long endOffset;
+        // offset of the last seekable record
+        public long resumeOffset;
+        public long recordCount;
         
         public final Map<Integer,String> threadNamesByID = new HashMap<>();
-        public final Map<HiResTimestamp,Long> fileOffsetsByMilliseconds = new HashMap<>();
         public final Map<Integer,HiResTimestamp> threadStartTimes=new HashMap<>();
         public final Map<Integer,HiResTimestamp> threadDeathTimes=new HashMap<>();
+        public final StateKeyframes.Builder keyframes;
+        
+        public FileScanner() {
+            this( new StateKeyframes.Builder() );
+        }
         
-        private long previousTimestampSeconds;
-        private long previousTimestampNanos;
+        private FileScanner(StateKeyframes.Builder keyframes) {
+            this.keyframes = keyframes;
+        }
         
         @Override
-        public boolean visit(ThreadEvent event,long fileOffset,boolean hasNext)
+        public boolean visit(ThreadEvent event,long fileOffset,boolean seekable,boolean hasNext)
         {
         	if ( event.type == ThreadEvent.THREAD_START ) 
         	{
@@ -146,17 +620,15 @@ public class FileReader
         			throw new RuntimeException("Thread #"+event.threadId+" died more than once?");
         		}
         	}
+        	keyframes.process( event , fileOffset , seekable );
+        	recordCount++;
         	
             if ( firstEvent == null ) 
             {
                 firstEvent = event.getTimestamp();
-                previousTimestampSeconds = event.timestampSeconds;
-                previousTimestampNanos = event.timestampNanos;
-                fileOffsetsByMilliseconds.put( event.getMillisecondTimestamp() , fileOffset );
             } 
-            else if ( ! event.isSameMillisecond( previousTimestampSeconds , previousTimestampNanos ) ) 
-            {
-                fileOffsetsByMilliseconds.put( event.getMillisecondTimestamp() , fileOffset );            	
+            if ( seekable ) {
+                resumeOffset = fileOffset;
             }
             
             if ( ! hasNext ) {
@@ -173,6 +645,97 @@ public class FileReader
         	}
         	return null;
         }
+        
+        /**
+         * Merges the results of a scanner that visited the records
+         * immediately following the ones visited by this scanner.
+         * 
+         * @param next
+         */
+        public void append(FileScanner next) 
+        {
+            for ( Entry<Integer, HiResTimestamp> entry : next.threadStartTimes.entrySet() ) 
+            {
+                if ( threadStartTimes.put( entry.getKey() , entry.getValue() ) != null ) {
+                    throw new RuntimeException("Thread #"+entry.getKey()+" started more than once?");
+                }
+            }
+            for ( Entry<Integer, HiResTimestamp> entry : next.threadDeathTimes.entrySet() ) 
+            {
+                if ( threadDeathTimes.put( entry.getKey() , entry.getValue() ) != null ) {
+                    throw new RuntimeException("Thread #"+entry.getKey()+" died more than once?");
+                }
+            }
+            threadNamesByID.putAll( next.threadNamesByID );
+            keyframes.append( next.keyframes );
+            
+            if ( firstEvent == null ) {
+                firstEvent = next.firstEvent;
+            }
+            if ( next.lastEvent != null ) {
+                lastEvent = next.lastEvent;
+            }
+            endOffset = next.endOffset;
+            recordCount += next.recordCount;
+            if ( next.resumeOffset != 0 ) {
+                resumeOffset = next.resumeOffset;
+            }
+        }
+        
+        /**
+         * Recreates the scan state from an index.
+         * 
+         * @param index
+         * @return scanner that can be used to {@link #append(FileScanner) append} the results of scanning 
+         * records following the ones covered by the index
+         */
+        public static FileScanner resume(FileIndex index) 
+        {
+            final FileScanner result = new FileScanner( new StateKeyframes.Builder( index.keyframes , index.threadStates ) );
+            result.threadNamesByID.putAll( index.threadNamesByID );
+            for ( Entry<Integer, HiResInterval> entry : index.threadLifetimes.entrySet() ) 
+            {
+                result.threadStartTimes.put( entry.getKey() , entry.getValue().start );
+                if ( index.deadThreadIds.contains( entry.getKey() ) ) {
+                    result.threadDeathTimes.put( entry.getKey() , entry.getValue().end );
+                }
+            }
+            if ( index.dataInterval != null ) 
+            {
+                result.firstEvent = index.dataInterval.start;
+                result.lastEvent = index.dataInterval.end;
+            }
+            result.endOffset = index.dataEnd;
+            result.resumeOffset = index.resumeOffset;
+            result.recordCount = index.recordCount;
+            return result;
+        }
+        
+        public FileIndex createIndex(File file) 
+        {
+            return createIndex( file.length() , file.lastModified() );
+        }
+        
+        /**
+         * Creates an index of the records scanned so far.
+         * 
+         * @param recordingSize size of the recording the index is valid for
+         * @param recordingLastModified modification time of the recording the index is valid for
+         * @return index
+         */
+        public FileIndex createIndex(long recordingSize,long recordingLastModified) 
+        {
+            final Map<Integer,HiResInterval> threadLifetimes = new HashMap<>();
+            for ( Entry<Integer, HiResTimestamp> entry : threadStartTimes.entrySet() ) {
+            	HiResTimestamp end = threadDeathTimes.get( entry.getKey() );
+            	if ( end == null ) {
+            	    end = lastEvent;
+            	}
+           		threadLifetimes.put( entry.getKey() , new HiResInterval( entry.getValue() , end ) );
+            }
+            return new FileIndex( recordingSize , recordingLastModified , getInterval() , recordCount , new HashMap<>( threadNamesByID ) , threadLifetimes , keyframes.build() , 
+                    endOffset , resumeOffset , new HashSet<>( threadDeathTimes.keySet() ) , keyframes.getCurrentStates() );
+        }
     }    
     
     public static abstract class FileVisitor 
@@ -182,21 +745,71 @@ public class FileReader
     
     public static abstract class LookAheadFileVisitor 
     {
-        public abstract boolean visit(ThreadEvent event,long fileoffset,boolean hasMore);
+        /**
+         * Visits a record.
+         * 
+         * @param event
+         * @param fileoffset offset of the record
+         * @param seekable whether reading may start at this offset
+         * @param hasMore whether more records follow
+         * @return
+         */
+        public abstract boolean visit(ThreadEvent event,long fileoffset,boolean seekable,boolean hasMore);
     }    
     
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+    
+    /**
+     * Positions the reader on a record boundary. 
+     * 
+     * @param fileOffset offset of a record previously reported by {@link #visit(LookAheadFileVisitor)}
+     * @throws IOException
+     */
+    private void seek(long fileOffset) throws IOException 
+    {
+        if ( in != null ) 
+        {
+            // no need to re-open the file
+            buffer.clear();
+            buffer.flip();
+        } else {
+            reset();
+        }
+        if ( in != null ) {
+            in.position( fileOffset );
+        }
+        if ( decoder != null ) {
+            decoder.reset();
+        }
+        readOffset = fileOffset;
+    }
+    
     private void reset() throws IOException 
     {
+        readOffset = 0;
+        
+        if ( readMode != ReadMode.STREAM ) 
+        {
+            if ( store == null && mappedFile == null ) {
+                mappedFile = new MappedFile( file );
+            }
+            return;
+        }
+        
         if ( in != null ) {
             in.close();
             in = null;
         }
         
-        in = new BufferedInputStream(new FileInputStream( file ) );
+        in = new FileInputStream( file ).getChannel();
         
-        bytesInBuffer = 0;
-        readPtr = 0;
-        writePtr = 0;     
+        if ( buffer == null ) {
+            buffer = ByteBuffer.allocate( ThreadEvent.BUFFER_LENGTH ).order( ByteOrder.LITTLE_ENDIAN );
+        }
+        buffer.clear();
+        buffer.flip();
     }
     
     public HiResInterval getInterval() 
@@ -204,6 +817,16 @@ public class FileReader
         return dataInterval;
     }
     
+    /**
+     * Returns the number of records scanned so far.
+     * 
+     * @return number of records
+     */
+    long getRecordCount() 
+    {
+        return index.recordCount;
+    }
+    
     public Set<Integer> getAliveThreadsInInterval(HiResInterval interval) 
     {
     	Set<Integer> result = new HashSet<>();
@@ -215,7 +838,7 @@ public class FileReader
     	return result;
     }
     
-    public void visit(FileVisitor visitor) throws IOException 
+    public synchronized void visit(FileVisitor visitor) throws IOException 
     {
         reset();
         
@@ -231,22 +854,39 @@ public class FileReader
         
     }
     
-    public void visit(FileVisitor visitor,HiResInterval interval,final Set<Integer> threadIds) throws IOException 
+    public synchronized void visit(FileVisitor visitor,HiResInterval interval,final Set<Integer> threadIds) throws IOException 
     {
         
         final HiResTimestamp start=interval.start;
         final HiResTimestamp end=interval.end;
         
-        reset();
-        
-        readFileHeader();
-        
         // for each requested thread determine its state at the start of the requested interval        
         final Map<Integer,Integer> initialThreadStatesByThread=new HashMap<>();
+        
+        // start replaying from the closest keyframe instead of the beginning of the file
+        final int keyframe = keyframes.findLastIndexBefore( start );
+        if ( keyframe >= 0 ) 
+        {
+            seek( keyframes.getKeyframe( keyframe ).position );
+            for ( Entry<Integer, Integer> entry : keyframes.getStates( keyframe ).entrySet() ) 
+            {
+                if ( threadIds.contains( entry.getKey() ) ) {
+                    initialThreadStatesByThread.put( entry.getKey() , entry.getValue() );
+                }
+            }
+        } 
+        else 
+        {
+            reset();
+            readFileHeader();
+        }
+        if ( blockIndex != null ) {
+            nextBlock = blockIndex.floorBlock( readOffset - 1 ) + 1;
+        }
 
         do 
         {
-            if ( ! readOneEvent( event1 ) ) {
+            if ( ! readOneEvent( event1 , threadIds ) ) {
                 return;
             }
             
@@ -259,7 +899,7 @@ public class FileReader
                 case ThreadEvent.THREAD_START:
                     if ( threadIds.contains( event1.threadId ) ) 
                     {
-                        initialThreadStatesByThread.put( event1.threadId , JVMTIThreadState.RUNNABLE.getBitMask() );
+                        initialThreadStatesByThread.put( event1.threadId , JVMTIThreadState.ALIVE.getBitMask() | JVMTIThreadState.RUNNABLE.getBitMask() );
                     }
                     break;
                 case ThreadEvent.THREAD_DEATH:
@@ -302,7 +942,7 @@ public class FileReader
             {
                 visitor.visit( event1 );
             }
-            if ( ! readOneEvent( event1 ) ) {
+            if ( ! readOneEvent( event1 , threadIds ) ) {
                 break;
             }            
         } while ( true );
@@ -326,22 +966,78 @@ public class FileReader
         
     }    
     
-    private boolean readOneEvent(ThreadEvent toPopulate) throws IOException 
+    private boolean readOneEvent(ThreadEvent toPopulate,Set<Integer> threadIds) throws IOException
     {
-        if ( bytesInBuffer <= ThreadEvent.MAX_RECORD_SIZE ) {
-            fillBuffer();
+        if ( blockIndex != null && store == null ) {
+            skipBlocks( threadIds );
+        }
+        return readOneEvent( toPopulate );
+    }
+    
+    /**
+     * Skips blocks that have no records of any of the given threads
+     * if the reader is positioned at the start of a block.
+     */
+    private void skipBlocks(Set<Integer> threadIds) throws IOException
+    {
+        final BlockIndex blocks = blockIndex;
+        if ( nextBlock >= blocks.size() || readOffset < blocks.getOffset( nextBlock ) ) {
+            return;
+        }
+        if ( readOffset > blocks.getOffset( nextBlock ) ) {
+            nextBlock = blocks.floorBlock( readOffset ) + 1;
+            return;
         }
         
-        if ( bytesInBuffer < ThreadEvent.MAX_RECORD_SIZE ) 
+        long offset = readOffset;
+        while ( nextBlock < blocks.size() && blocks.getOffset( nextBlock ) == offset ) 
         {
-            return false;
+            if ( blocks.mayContainAnyThread( nextBlock , threadIds ) ) {
+                nextBlock++;
+                break;
+            }
+            offset = blocks.getEnd( nextBlock++ );
+        }
+        if ( offset != readOffset ) {
+            seek( offset );
+        }
+    }
+    
+    private boolean readOneEvent(ThreadEvent toPopulate) throws IOException 
+    {
+        final int consumed;
+        if ( store != null ) 
+        {
+            consumed = store.read( (int) readOffset , toPopulate ) ? 1 : 0;
+        } 
+        else if ( mappedFile != null ) 
+        {
+            consumed = mappedFile.readEvent( readOffset , decoder , toPopulate );
+        } 
+        else 
+        {
+            if ( buffer.remaining() < RecordDecoder.MAX_RECORD_SIZE ) {
+                fillBuffer();
+            }
+            if ( ! buffer.hasRemaining() ) {
+                return false;
+            }
+            consumed = decoder.decode( buffer , buffer.position() , buffer.limit() , toPopulate );
+            buffer.position( buffer.position() + consumed );
         }
         
-        consumed( toPopulate.parseBuffer( buffer , readPtr ) );
+        if ( consumed == 0 ) {
+            return false;
+        }
+        lastEventSeekable = store != null || decoder.isSeekable();
+        readOffset += consumed;
+        if ( store == null ) {
+            bytesRead += consumed;
+        }
         return true;
     }
     
-    public void visit(LookAheadFileVisitor visitor) throws IOException 
+    public synchronized void visit(LookAheadFileVisitor visitor) throws IOException 
     {
         reset();
         
@@ -350,21 +1046,24 @@ public class FileReader
         ThreadEvent current = event1;
         ThreadEvent next = event2;    
         
-        long offset = bytesConsumed;
+        long offset = readOffset;
         if ( ! readOneEvent( current ) ) {
             return;
         }
+        boolean seekable = lastEventSeekable;
         
         do 
         {
+            final long nextOffset = readOffset;
             if ( ! readOneEvent( next ) ) 
             {
-                visitor.visit(current,offset,false);
+                visitor.visit(current,offset,seekable,false);
                 break;
             }   
             
-            visitor.visit( current , offset , true );
-            offset += bytesConsumed;
+            visitor.visit( current , offset , seekable , true );
+            offset = nextOffset;
+            seekable = lastEventSeekable;
             if ( current == event1 ) {
                 current = event2;
                 next = event1;
@@ -376,79 +1075,105 @@ public class FileReader
         } while ( true );
     }    
     
-    private void consumed(int numberOfBytes) 
-    {
-        bytesInBuffer -= numberOfBytes;
-        if ( bytesInBuffer < 0 ) {
-            throw new IllegalStateException("Consumed more bytes than are in buffer?");
-        }
-    	bytesConsumed += numberOfBytes;
-        readPtr = (readPtr+numberOfBytes) % ThreadEvent.BUFFER_LENGTH;
-    }
-    
     private void readFileHeader() throws IOException
     {
-        if ( bytesInBuffer < FILE_HEADER_LITTLE_ENDIAN.length ) {
-            if ( ! fillBuffer() ) {
+        if ( store != null ) 
+        {
+            readOffset = 0;
+            return;
+        }
+        
+        final ByteBuffer data;
+        final int offset;
+        if ( mappedFile != null ) 
+        {
+            if ( mappedFile.size() == 0 ) {
                 throw new IOException("Premature EOF");
             }
-            if ( bytesInBuffer < FILE_HEADER_LITTLE_ENDIAN.length ) 
-            {
+            if ( mappedFile.size() < FILE_HEADER_LITTLE_ENDIAN.length ) {
                 throw new IOException("Truncated file header");
             }
+            data = mappedFile.getSegment( 0 );
+            offset = 0;
+        } 
+        else 
+        {
+            if ( buffer.remaining() < FILE_HEADER_LITTLE_ENDIAN.length ) 
+            {
+                if ( ! fillBuffer() ) {
+                    throw new IOException("Premature EOF");
+                }
+                if ( buffer.remaining() < FILE_HEADER_LITTLE_ENDIAN.length ) 
+                {
+                    throw new IOException("Truncated file header");
+                }
+            }
+            data = buffer;
+            offset = buffer.position();
         }
         
-        for ( int i = 0 ; i < FILE_HEADER_LITTLE_ENDIAN.length ; i++ ) 
+        final byte[] expected = getFileHeader( decoder.getFormatVersion() );
+        for ( int i = 0 ; i < expected.length ; i++ ) 
         {
-            if ( buffer[readPtr+i] != FILE_HEADER_LITTLE_ENDIAN[i] ) 
+            if ( data.get( offset+i ) != expected[i] ) 
             {
                 throw new IOException("Invalid file header, file is truncated");
             }
         }
-        consumed(FILE_HEADER_LITTLE_ENDIAN.length);
+        decoder.reset();
+        
+        if ( mappedFile == null ) {
+            buffer.position( offset + FILE_HEADER_LITTLE_ENDIAN.length );
+        }
+        readOffset = FILE_HEADER_LITTLE_ENDIAN.length;
     }
 
-    private boolean fillBuffer() throws IOException
+    private static int readFormatVersion(File file) throws IOException
     {
-        if ( writePtr >= readPtr ) {
-            return fillBuffer1();
-        } 
-        return fillBuffer2();
+        final byte[] header = new byte[ FILE_HEADER_LITTLE_ENDIAN.length ];
+        int read = 0;
+        try ( FileInputStream in = new FileInputStream( file ) ) 
+        {
+            int count;
+            while ( read < header.length && ( count = in.read( header , read , header.length - read ) ) != -1 ) {
+                read += count;
+            }
+        }
+        if ( read == 0 ) {
+            throw new IOException("Premature EOF");
+        }
+        if ( read < header.length ) {
+            throw new IOException("Truncated file header");
+        }
+        for ( int version = 1 ; version <= 3 ; version++ ) 
+        {
+            if ( Arrays.equals( header , getFileHeader( version ) ) ) {
+                return version;
+            }
+        }
+        throw new IOException("Invalid file header, file is truncated");
     }
     
-    private boolean fillBuffer1() throws IOException 
+    private static byte[] getFileHeader(int formatVersion) 
     {
-        int bytesToRead = ThreadEvent.BUFFER_LENGTH - writePtr ;
-        int read1 = in.read( buffer , writePtr , bytesToRead );
-        if ( read1 >= 0 ) 
+        switch( formatVersion ) 
         {
-            writePtr = (writePtr+read1) % ThreadEvent.BUFFER_LENGTH;
-            bytesInBuffer+= read1;
-        } 
-        
-        if ( read1 < bytesToRead ) 
-        {
-            return read1 == -1 ? false : true;
-        }
-      
-        int read2 = in.read( buffer , 0 , readPtr );
-        if ( read2 >= 0 ) {
-            writePtr = (writePtr+read2) % ThreadEvent.BUFFER_LENGTH;            
-            bytesInBuffer+= read2;
+            case 1:
+                return FILE_HEADER_LITTLE_ENDIAN;
+            case 2:
+                return FILE_HEADER_V2_LITTLE_ENDIAN;
+            default:
+                return FILE_HEADER_V3_LITTLE_ENDIAN;
         }
-        return true;
     }
     
-    private boolean fillBuffer2() throws IOException 
+    private boolean fillBuffer() throws IOException
     {
-        int bytesToRead = readPtr-writePtr ;
-        int read1 = in.read( buffer , writePtr , bytesToRead );
-        if ( read1 > 0 ) 
-        {
-            writePtr = (writePtr+read1) % ThreadEvent.BUFFER_LENGTH;
-            bytesInBuffer+= read1;
-            return true;
-        } 
-        return false;
-    }    
-}
\ No newline at end of file
+        buffer.compact();
+        try {
+            return in.read( buffer ) != -1;
+        } finally {
+            buffer.flip();
+        }
+    }
+}
@@ -105,7 +105,7 @@ public final class HiResTimestamp implements Comparable<HiResTimestamp>
 			return false;
 		}
 		final HiResTimestamp other = (HiResTimestamp) obj;
-		return nanoseconds == other.nanoseconds && secondsSinceEpoch != other.secondsSinceEpoch;
+		return nanoseconds == other.nanoseconds && secondsSinceEpoch == other.secondsSinceEpoch;
 	}
 	
 	public HiResTimestamp truncateToMilliseconds() {
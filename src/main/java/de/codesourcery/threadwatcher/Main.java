@@ -15,6 +15,7 @@
  */
 package de.codesourcery.threadwatcher;
 
+import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Cursor;
@@ -27,25 +28,37 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
+import javax.swing.SwingUtilities;
 
+import de.codesourcery.threadwatcher.FileReader.ReadMode;
 import de.codesourcery.threadwatcher.ui.HorizontalSelectionHelper;
 import de.codesourcery.threadwatcher.ui.HorizontalSelectionHelper.DraggedMarker;
 import de.codesourcery.threadwatcher.ui.IntervalPanel;
+import de.codesourcery.threadwatcher.ui.OverviewPanel;
 import de.codesourcery.threadwatcher.ui.StatisticsPanel;
 import de.codesourcery.threadwatcher.ui.ThreadPanel;
 
 public class Main 
 {
+    // how often to check for new data in follow mode
+    private static final int FOLLOW_INTERVAL_MILLIS = 1000;
+    
     private FileReader fileReader;
     private IntervalPanel viewIntervalPanel;
     private IntervalPanel selectionIntervalPanel;
     
     private ThreadPanel chartPanel;
+    private OverviewPanel overviewPanel;
     private StatisticsPanel statisticsPanel;
     
     protected static enum SelectionType {
@@ -113,12 +126,8 @@ public class Main
             {
                 selection = tmp;
                 chartPanel.repaint();
-                try {
-                    statisticsPanel.setInterval( tmp );
-                    selectionIntervalPanel.updateTextFields( tmp );
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                statisticsPanel.setInterval( tmp );
+                selectionIntervalPanel.updateTextFields( tmp );
             }
         }
         
@@ -151,13 +160,8 @@ public class Main
                 }
             }
             
-            try 
-            {
-                statisticsPanel.setInterval( this.selection );
-                selectionIntervalPanel.updateTextFields( this.selection );
-            } catch (IOException e) {
-                e.printStackTrace();
-            }             
+            statisticsPanel.setInterval( this.selection );
+            selectionIntervalPanel.updateTextFields( this.selection );
             return interval;
         }
         
@@ -263,13 +267,13 @@ public class Main
                 case START:
                 	if ( infoIntervalChooser.isValid( e.getPoint() ) ) {
                 		infoIntervalChooser.setLastSelection(infoIntervalChooser.getLastSelection().withMinX( e.getPoint().x ) );
-                		chartPanel.repaint();
+                		chartPanel.repaintSelection();
                 	}
                     return;
                 case END:
                 	if ( infoIntervalChooser.isValid( e.getPoint() ) ) {
                 		infoIntervalChooser.setLastSelection(infoIntervalChooser.getLastSelection().withMaxX( e.getPoint().x ) );
-                		chartPanel.repaint();
+                		chartPanel.repaintSelection();
                 	}
                     return;
                 default:
@@ -350,32 +354,49 @@ public class Main
                     viewIntervalPanel.updateTextFields( chartPanel.getInterval() );
                 }                   
             }
+            else if ( e.getKeyChar() == 'h' ) 
+            {
+                chartPanel.setRenderStatisticsVisible( ! chartPanel.isRenderStatisticsVisible() );
+            }
+            else if ( e.getKeyChar() == 'H' ) 
+            {
+                chartPanel.getRenderStatistics().dump( System.out );
+            }
         }
     };    
     
     public static void main(String[] args) throws IOException
     {
+    	if ( args.length > 0 && "--convert".equals( args[0] ) ) 
+    	{
+    	    ColumnarConverter.main( Arrays.copyOfRange( args , 1 , args.length ) );
+    	    return;
+    	}
+    	
     	final File file;
-    	if ( args.length != 1 ) {
-    		System.err.println("Usage: <event log file>");
+    	final boolean follow = args.length > 0 && "--follow".equals( args[0] );
+    	final int fileArgument = follow ? 1 : 0;
+    	if ( args.length != fileArgument+1 ) {
+    		System.err.println("Usage: [--follow] <event log file> | --convert <event log file> [<output file>]");
     		file = new File( "/tmp/threadwatcher.out");    		
     		System.err.println("Trying to use default file "+file.getAbsolutePath()); 
     	} else {
-    		file = new File( args[0] );
+    		file = new File( args[fileArgument] );
     	}
     		
     	if ( ! file.exists() || ! file.isFile() || ! file.canRead() ) {
     		throw new IOException("File "+file.getAbsolutePath()+" is not accessible / not a reglar file");
     	}
-    	new Main().run( file );
+    	new Main().run( file , follow );
     }
     
     private static void setBackgroundColor(Component c) {
     	c.setBackground( Color.WHITE );
     }
-    public void run(File file) throws IOException
+    public void run(File file,boolean follow) throws IOException
     {
-        fileReader = new FileReader(file);
+        // keep recordings in memory if they comfortably fit into the heap
+        fileReader = new FileReader(file,ReadMode.AUTO);
         final HiResInterval interval = fileReader.getInterval();
         
         // setup top-level interval panel
@@ -398,6 +419,21 @@ public class Main
         chartPanel.addMouseMotionListener( mouseListener );
         chartPanel.addKeyListener( keyListener );
         
+        // setup overview of the whole recording
+        overviewPanel = new OverviewPanel( fileReader , chartPanel ) 
+        {
+            @Override
+            protected void viewIntervalChanged(HiResInterval interval)
+            {
+                viewIntervalPanel.updateTextFields( interval );
+            }
+        };
+        overviewPanel.addKeyListener( keyListener );
+        
+        final JPanel top = new JPanel( new BorderLayout() );
+        top.add( overviewPanel , BorderLayout.NORTH );
+        top.add( new JScrollPane( chartPanel ) , BorderLayout.CENTER );
+        
         // setup main frame
         final JFrame frame = new JFrame("Thread-Watcher V1.0");
         frame.setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE);
@@ -445,7 +481,7 @@ public class Main
         bottom.add( statisticsPanel , cnstrs );
 
         // add split pane
-        final JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT , new JScrollPane( chartPanel ) , bottom );
+        final JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT , top , bottom );
         
         cnstrs = new GridBagConstraints();
         cnstrs.fill = GridBagConstraints.BOTH;
@@ -459,5 +495,56 @@ public class Main
 
         frame.pack();
         frame.setVisible( true );
+        
+        if ( follow ) {
+            startFollowing();
+        }
+    }
+    
+    private void startFollowing() 
+    {
+        // refreshing needs to wait while the reader is busy, keep it off the EDT
+        final ScheduledExecutorService follower = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread result = new Thread( r , "file-follower" );
+                result.setDaemon( true );
+                return result;
+            }
+        });
+        follower.scheduleWithFixedDelay( new Runnable() {
+            
+            @Override
+            public void run()
+            {
+                final HiResInterval previousInterval = fileReader.getInterval();
+                try 
+                {
+                    if ( ! fileReader.refresh() ) {
+                        return;
+                    }
+                } 
+                catch (Exception ex) {
+                    ex.printStackTrace();
+                    return;
+                }
+                
+                final HiResInterval interval = fileReader.getInterval();
+                // the file might have been empty before
+                final HiResTimestamp previousEnd = previousInterval != null ? previousInterval.end : interval.start;
+                SwingUtilities.invokeLater( new Runnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        chartPanel.dataAppended( previousEnd , interval.end );
+                        overviewPanel.dataChanged();
+                        viewIntervalPanel.updateTextFields( chartPanel.getInterval() );
+                    }
+                });
+            }
+        } , FOLLOW_INTERVAL_MILLIS , FOLLOW_INTERVAL_MILLIS , TimeUnit.MILLISECONDS );
     }   
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * Read-only, little-endian memory mapping of a file.
+ *
+ * <p>Since a single {@link java.nio.MappedByteBuffer} cannot address more than 2 GB,
+ * the file is mapped as a sequence of fixed-size segments. Each segment
+ * extends {@link #SEGMENT_OVERLAP} bytes into the next one so that a record starting
+ * inside a segment can always be decoded from that segment alone.</p>
+ */
+final class MappedFile
+{
+    private static final int SEGMENT_SHIFT = 30;
+
+    public static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    // must be larger than the largest record we'll ever decode
+    public static final int SEGMENT_OVERLAP = 256;
+
+    private final ByteBuffer[] segments;
+    // file offset where the first segment starts
+    private final long start;
+    private final long size;
+
+    public MappedFile(File file) throws IOException
+    {
+        this( file , 0 , null );
+    }
+
+    /**
+     * Maps the part of a file starting at a given offset.
+     *
+     * @param file
+     * @param start offset of the first byte to map, offsets passed to all other methods are still relative to the start of the file
+     * @throws IOException
+     */
+    public MappedFile(File file,long start) throws IOException
+    {
+        this( file , start , null );
+    }
+
+    private MappedFile(File file,long start,ByteBuffer[] completeSegments) throws IOException
+    {
+        if (file == null) {
+            throw new IllegalArgumentException("file must not be NULL.");
+        }
+        try ( RandomAccessFile raf = new RandomAccessFile( file , "r" ) ; FileChannel channel = raf.getChannel() )
+        {
+            this.start = Math.min( start , channel.size() );
+            this.size = channel.size();
+            final int segmentCount = (int) ( ( size - this.start + SEGMENT_SIZE - 1 ) >>> SEGMENT_SHIFT );
+            this.segments = new ByteBuffer[ segmentCount ];
+            final int reused = completeSegments != null ? Math.min( completeSegments.length , segmentCount ) : 0;
+            if ( reused > 0 ) {
+                System.arraycopy( completeSegments , 0 , segments , 0 , reused );
+            }
+            for ( int i = reused ; i < segmentCount ; i++ )
+            {
+                final long segmentStart = this.start + ( (long) i << SEGMENT_SHIFT );
+                final long length = Math.min( SEGMENT_SIZE + SEGMENT_OVERLAP , size - segmentStart );
+                segments[i] = channel.map( MapMode.READ_ONLY , segmentStart , length ).order( ByteOrder.LITTLE_ENDIAN );
+            }
+        }
+    }
+
+    /**
+     * Maps a file that has grown since this mapping was created.
+     *
+     * <p>Segments of this mapping that are already complete are shared
+     * with the new mapping, only the data following them gets mapped.</p>
+     *
+     * @param file the file this mapping was created from
+     * @return new mapping covering the whole file
+     * @throws IOException
+     */
+    public MappedFile grow(File file) throws IOException
+    {
+        int complete = 0;
+        while ( complete < segments.length && segments[complete].limit() == SEGMENT_SIZE + SEGMENT_OVERLAP ) {
+            complete++;
+        }
+        return new MappedFile( file , start , complete > 0 ? Arrays.copyOf( segments , complete ) : null );
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns the segment containing a given file offset.
+     *
+     * @param fileOffset
+     * @return segment buffer, use {@link #getSegmentOffset(long)} to get the position of <code>fileOffset</code> within it
+     */
+    public ByteBuffer getSegment(long fileOffset) {
+        return segments[ (int) ( ( fileOffset - start ) >>> SEGMENT_SHIFT ) ];
+    }
+
+    public int getSegmentOffset(long fileOffset) {
+        return (int) ( ( fileOffset - start ) & ( SEGMENT_SIZE - 1 ) );
+    }
+
+    /**
+     * Decodes the record at a given file offset.
+     *
+     * @param fileOffset
+     * @param decoder
+     * @param event event to populate
+     * @return number of bytes consumed or 0 if there is no complete record at this offset
+     */
+    public int readEvent(long fileOffset,RecordDecoder decoder,ThreadEvent event)
+    {
+        if ( fileOffset >= size || fileOffset < start ) {
+            return 0;
+        }
+        final ByteBuffer segment = getSegment( fileOffset );
+        return decoder.decode( segment , getSegmentOffset( fileOffset ) , segment.limit() , event );
+    }
+
+    /**
+     * Visits all complete records starting at a given offset.
+     *
+     * @param fileOffset offset of a seekable record to start at
+     * @param limit visiting stops at the first seekable record starting at or after this offset
+     * @param decoder decoder to use, gets reset before decoding starts
+     * @param visitor
+     * @return offset of the first record that was not visited
+     */
+    public long visit(long fileOffset,long limit,RecordDecoder decoder,FileReader.LookAheadFileVisitor visitor)
+    {
+        ThreadEvent current = new ThreadEvent();
+        ThreadEvent next = new ThreadEvent();
+
+        decoder.reset();
+        long offset = fileOffset;
+        int size = offset < limit ? readEvent( offset , decoder , current ) : 0;
+        if ( size == 0 ) {
+            return offset;
+        }
+        boolean seekable = decoder.isSeekable();
+
+        while ( true )
+        {
+            final long nextOffset = offset + size;
+            int nextSize = readEvent( nextOffset , decoder , next );
+            if ( nextSize > 0 && nextOffset >= limit && decoder.isSeekable() ) {
+                nextSize = 0;
+            }
+            if ( ! visitor.visit( current , offset , seekable , nextSize > 0 ) || nextSize == 0 ) {
+                return nextOffset;
+            }
+            final ThreadEvent tmp = current;
+            current = next;
+            next = tmp;
+            offset = nextOffset;
+            size = nextSize;
+            seekable = decoder.isSeekable();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import de.codesourcery.threadwatcher.FileReader.FileScanner;
+
+/**
+ * Scans a memory-mapped recording using multiple threads.
+ *
+ * <p>The file is split into byte ranges (chunks) that are scanned independently. Since records
+ * have variable length, each chunk first needs to find the start of a seekable record by trying
+ * successive offsets until {@link #RESYNC_RECORDS} consecutive records with a valid type
+ * and non-decreasing timestamps can be decoded. The scanner for a chunk stops at the first seekable record
+ * starting within the next chunk, the results of adjacent chunks are only merged if
+ * this record is the very same the next chunk synchronized on.</p>
+ *
+ * <p>Block-structured files are split on block boundaries instead, no resynchronization is necessary.</p>
+ */
+final class ParallelFileScanner
+{
+    // files need to have at least two chunks of this size to be scanned in parallel
+    public static final long DEFAULT_MIN_CHUNK_SIZE = 8*1024*1024;
+
+    // number of consecutive valid records required to accept a resync position
+    private static final int RESYNC_RECORDS = 16;
+
+    private static final boolean DEBUG = false;
+
+    private final MappedFile file;
+    private final int formatVersion;
+    private final BlockIndex blocks;
+    private final int parallelism;
+    private final long minChunkSize;
+
+    private long[] chunkStarts;
+    private int chunkCount;
+
+    protected static final class Chunk
+    {
+        public final long syncOffset;
+        public long stopOffset;
+        public final FileScanner scanner;
+
+        public Chunk(long syncOffset, long stopOffset, FileScanner scanner)
+        {
+            this.syncOffset = syncOffset;
+            this.stopOffset = stopOffset;
+            this.scanner = scanner;
+        }
+    }
+
+    /**
+     * @param file
+     * @param formatVersion
+     * @param blocks block index of a block-structured file, <code>null</code> for other files
+     */
+    public ParallelFileScanner(MappedFile file,int formatVersion,BlockIndex blocks)
+    {
+        this(file,formatVersion,blocks,Runtime.getRuntime().availableProcessors(),DEFAULT_MIN_CHUNK_SIZE);
+    }
+
+    public ParallelFileScanner(MappedFile file,int formatVersion,BlockIndex blocks,int parallelism,long minChunkSize)
+    {
+        if (file == null) {
+            throw new IllegalArgumentException("file must not be NULL.");
+        }
+        if ( parallelism < 1 ) {
+            throw new IllegalArgumentException("parallelism must be >= 1");
+        }
+        if ( minChunkSize < RecordDecoder.MAX_RECORD_SIZE*RESYNC_RECORDS ) {
+            throw new IllegalArgumentException("Min. chunk size too small: "+minChunkSize);
+        }
+        this.file = file;
+        this.formatVersion = formatVersion;
+        this.blocks = blocks;
+        this.parallelism = parallelism;
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * Scans the file.
+     *
+     * @param dataStart offset of the first record (right after the file header)
+     * @return scan results or <code>null</code> if the file is too small to benefit from
+     * a parallel scan or resynchronization failed. In both cases the caller needs to scan the file sequentially.
+     */
+    public FileScanner scan(long dataStart)
+    {
+        final long dataLength = file.size() - dataStart;
+        this.chunkCount = (int) Math.min( parallelism*4L , dataLength / minChunkSize );
+        if ( blocks != null ) {
+            chunkCount = Math.min( chunkCount , blocks.size() );
+        }
+        if ( chunkCount < 2 ) {
+            return null;
+        }
+
+        chunkStarts = new long[ chunkCount ];
+        for ( int i = 0 ; i < chunkCount ; i++ ) 
+        {
+            if ( blocks != null ) {
+                chunkStarts[i] = blocks.getOffset( (int) ( (long) i * blocks.size() / chunkCount ) );
+            } else {
+                chunkStarts[i] = dataStart + i * ( dataLength / chunkCount );
+            }
+        }
+
+        final long time = System.currentTimeMillis();
+        final ForkJoinPool pool = new ForkJoinPool( parallelism );
+        final Chunk result;
+        try {
+            result = pool.invoke( new ScanTask( 0 , chunkCount ) );
+        } finally {
+            pool.shutdown();
+        }
+
+        if ( DEBUG ) {
+            System.out.println("Parallel scan of "+chunkCount+" chunks took "+(System.currentTimeMillis()-time)+" ms, success: "+(result != null));
+        }
+        if ( result == null ) {
+            return null;
+        }
+        result.scanner.endOffset = result.stopOffset;
+        return result.scanner;
+    }
+
+    protected final class ScanTask extends RecursiveTask<Chunk>
+    {
+        private final int firstChunk;
+        private final int lastChunk;
+
+        public ScanTask(int firstChunk, int lastChunk)
+        {
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+        }
+
+        @Override
+        protected Chunk compute()
+        {
+            if ( lastChunk - firstChunk == 1 ) {
+                return scanChunk( firstChunk );
+            }
+
+            final int mid = (firstChunk + lastChunk) >>> 1;
+            final ScanTask left = new ScanTask( firstChunk , mid );
+            left.fork();
+            final Chunk right = new ScanTask( mid , lastChunk ).compute();
+            return merge( left.join() , right );
+        }
+    }
+
+    private static Chunk merge(Chunk left,Chunk right)
+    {
+        if ( left == null || right == null || left.stopOffset != right.syncOffset ) {
+            return null;
+        }
+        left.scanner.append( right.scanner );
+        left.stopOffset = right.stopOffset;
+        return left;
+    }
+
+    protected Chunk scanChunk(int chunk)
+    {
+        final long chunkStart = chunkStarts[ chunk ];
+        final long limit = chunk == chunkCount - 1 ? Long.MAX_VALUE : chunkStarts[ chunk+1 ];
+
+        final RecordDecoder decoder = RecordDecoder.create( formatVersion );
+        final long syncOffset = chunk == 0 || blocks != null ? chunkStart : resync( chunkStart , limit , decoder );
+        if ( syncOffset == -1 )
+        {
+            if ( DEBUG ) {
+                System.out.println("Failed to resync chunk "+chunk+" @ "+chunkStart);
+            }
+            return null;
+        }
+
+        final FileScanner scanner = new FileScanner();
+        final long stopOffset = file.visit( syncOffset , limit , decoder , scanner );
+        return new Chunk( syncOffset , stopOffset , scanner );
+    }
+
+    /**
+     * Finds the first record boundary within a given range.
+     *
+     * @param start
+     * @param end
+     * @return offset of the first record at or after <code>start</code> or -1 if none could be found before <code>end</code>
+     */
+    private long resync(long start,long end,RecordDecoder decoder)
+    {
+        final long max = Math.min( end , file.size() );
+        final ThreadEvent event = new ThreadEvent();
+        for ( long offset = start ; offset < max ; offset++ )
+        {
+            if ( isRecordBoundary( offset , decoder , event ) ) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isRecordBoundary(long offset,RecordDecoder decoder,ThreadEvent event)
+    {
+        if ( formatVersion == 1 )
+        {
+            // the type is written as a 32-bit integer, checking all of its bytes rules out a lot of candidates early
+            if ( offset + 4 > file.size() || ThreadEvent.getRecordSize( file.getSegment( offset ).getInt( file.getSegmentOffset( offset ) ) ) == -1 ) {
+                return false;
+            }
+        }
+
+        decoder.reset();
+        long previousSeconds = Long.MIN_VALUE;
+        long previousNanos = Long.MIN_VALUE;
+        for ( int i = 0 ; i < RESYNC_RECORDS ; i++ )
+        {
+            if ( offset == file.size() ) {
+                return i > 0;
+            }
+
+            final int recordSize;
+            try {
+                recordSize = file.readEvent( offset , decoder , event );
+            } catch(RuntimeException e) {
+                return false;
+            }
+            if ( recordSize == 0 || ( i == 0 && ! decoder.isSeekable() ) ) {
+                return false;
+            }
+
+            final long seconds = event.timestampSeconds;
+            final long nanos = event.timestampNanos;
+            // timestamps come from CLOCK_REALTIME, rejecting zero seconds also rules out the zero padding of thread names
+            if ( seconds <= 0 || nanos < 0 || nanos >= 1000000000 ) {
+                return false;
+            }
+            if ( seconds < previousSeconds || ( seconds == previousSeconds && nanos < previousNanos ) ) {
+                return false;
+            }
+            previousSeconds = seconds;
+            previousNanos = nanos;
+            offset += recordSize;
+        }
+        return true;
+    }
+}
@@ -16,65 +16,83 @@
 package de.codesourcery.threadwatcher;
 
 import java.text.DecimalFormat;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
 
 import org.apache.commons.lang.StringUtils;
 
 import de.codesourcery.threadwatcher.ui.LegendItem;
 import de.codesourcery.threadwatcher.ui.UIConstants;
 
+/**
+ * Time a thread spent in each state.
+ * 
+ * <p>Durations are stored in nanoseconds per state, states are identified by
+ * their index in {@link UIConstants#LEGEND_ITEMS}. The durations of individual runs 
+ * (periods without a state change) are recorded in a {@link DurationHistogram} per state.</p>
+ * 
+ * <p>Both are filled from a {@link StateDurationIndex}, which also takes care of cutting off
+ * runs at the boundaries of the statistics interval.</p>
+ */
 public final class PerThreadStatistics 
 {
     public final int threadId;
     
-    private LegendItem lastThreadState;
-    
-    private long lastEventSeconds;
-    private long lastEventNanos;
-    
     public boolean containsData=false;
     
-    public final Map<LegendItem,Double> sumDurationInMillis = new HashMap<>();
+    private final long[] durations = new long[ StatePyramid.STATE_COUNT ];
+    
+    // created on demand
+    private final DurationHistogram[] runs = new DurationHistogram[ StatePyramid.STATE_COUNT ];
     
     public PerThreadStatistics(int threadId)
     {
         this.threadId = threadId;
-        for ( LegendItem item : UIConstants.LEGEND_ITEMS) {
-            sumDurationInMillis.put( item , new Double(0) );
-        }
     }
     
-    public Double getDurationMillisFor(LegendItem item) {
-    	return sumDurationInMillis.get(item);
+    public double getDurationMillisFor(LegendItem item) {
+    	return getDurationMillis( UIConstants.getLegendItemIndex( item ) );
     }
     
-    public void processEvent(ThreadEvent event) 
+    public double getDurationMillis(int state) {
+        return durations[state] / 1000000d;
+    }
+    
+    public long getDurationNanos(int state) {
+        return durations[state];
+    }
+    
+    /**
+     * Sets the time spent in each state.
+     * 
+     * @param nanosByState nanoseconds spent in each state, indexed like {@link UIConstants#LEGEND_ITEMS}
+     */
+    public void setDurations(long[] nanosByState)
     {
-        if ( lastThreadState != null ) 
-        {
-            Double total = sumDurationInMillis.get( lastThreadState );
-            total = total + HiResInterval.getDurationInMilliseconds( lastEventSeconds,lastEventNanos , event.timestampSeconds,event.timestampNanos);
-            sumDurationInMillis.put( lastThreadState , total );
-        }
-        lastThreadState = UIConstants.getLegendItemForEvent( event );
-        lastEventSeconds = event.timestampSeconds;
-        lastEventNanos = event.timestampNanos;
-        containsData=true;        
+        System.arraycopy( nanosByState , 0 , durations , 0 , durations.length );
+        containsData = true;
     }
     
-    public void finish(HiResInterval statisticsInterval) 
+    /**
+     * Records the duration of a single run.
+     * 
+     * @param state
+     * @param nanos
+     */
+    public void addRun(int state,long nanos) 
     {
-        if ( lastThreadState != null ) 
-        {
-            final HiResTimestamp end = statisticsInterval.end;
-            Double total = sumDurationInMillis.get( lastThreadState );
-            total = total + HiResInterval.getDurationInMilliseconds( lastEventSeconds,lastEventNanos , end.secondsSinceEpoch,end.nanoseconds);
-            sumDurationInMillis.put( lastThreadState , total );            
-            lastThreadState = null;
+        if ( runs[state] == null ) {
+            runs[state] = new DurationHistogram();
         }
+        runs[state].add( nanos );
+    }
+    
+    /**
+     * Returns the durations of the runs of a state.
+     * 
+     * @param state
+     * @return histogram or <code>null</code> if there were no runs of this state
+     */
+    public DurationHistogram getRuns(int state) {
+        return runs[state];
     }
     
     @Override
@@ -93,16 +111,38 @@ public final class PerThreadStatistics
         result.append("-------------").append("\n");
         
         final DecimalFormat DF = new DecimalFormat("##0.0##");
-        for (Iterator<Entry<LegendItem, Double>> it = sumDurationInMillis.entrySet().iterator(); it.hasNext();) 
+        boolean first = true;
+        for ( int state = 0 ; state < durations.length ; state++ ) 
         {
-            final Entry<LegendItem, Double> entry = it.next();
-            double millis = entry.getValue();
-            if ( millis != 0.0 ) {
-                double percentage = 100.0*( millis / totalIntervalMillis );
-                result.append( StringUtils.leftPad( entry.getKey().title , 20 )+": "+DF.format( percentage )+" % ("+millis+" ms)");
-                if ( it.hasNext() ) {
+            double millis = getDurationMillis( state );
+            if ( millis != 0.0 ) 
+            {
+                if ( ! first ) {
                     result.append("\n");
-                }                
+                }
+                first = false;
+                double percentage = 100.0*( millis / totalIntervalMillis );
+                result.append( StringUtils.leftPad( UIConstants.LEGEND_ITEMS.get( state ).title , 20 )+": "+DF.format( percentage )+" % ("+millis+" ms)");
+            }
+        }
+        return result.toString();
+    }
+    
+    /**
+     * Returns a table of the run durations of each state.
+     * 
+     * @return
+     */
+    public String getRunsAsString()
+    {
+        final StringBuilder result = new StringBuilder( String.format( "%-20s %8s %10s %10s %10s %10s" , "state" , "runs" , "p50 ms" , "p90 ms" , "p99 ms" , "max ms" ) );
+        for ( int state = 0 ; state < runs.length ; state++ ) 
+        {
+            final DurationHistogram histogram = runs[state];
+            if ( histogram != null ) 
+            {
+                result.append("\n").append( String.format( "%-20s %8d %10.3f %10.3f %10.3f %10.3f" , UIConstants.LEGEND_ITEMS.get( state ).title , histogram.getCount() , 
+                        histogram.getPercentile( 50 ) / 1000000d , histogram.getPercentile( 90 ) / 1000000d , histogram.getPercentile( 99 ) / 1000000d , histogram.getMax() / 1000000d ) );
             }
         }
         return result.toString();
@@ -113,4 +153,4 @@ public final class PerThreadStatistics
     {
         return threadId;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,385 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes records written in one of the file formats the agent supports.
+ *
+ * <p>Decoders may keep context from previously decoded records, so records
+ * need to be decoded in file order and decoding may only start at offsets
+ * for which {@link #isSeekable()} returned <code>true</code> (after calling {@link #reset()}).</p>
+ *
+ * <p>Version 1 uses fixed-size records (see {@link ThreadEvent#parseBuffer(ByteBuffer, int, int)}).
+ * Version 2 records start with a tag byte whose lower two bits hold the record type
+ * (with {@link #TAG_SYNC} marking a sync record), followed by
+ * <ul>
+ *   <li>the thread ID as unsigned varint,</li>
+ *   <li>the nanoseconds elapsed since the previous record as zig-zag encoded varint,</li>
+ *   <li>for thread start records: the length of the thread name as varint followed by the (modified UTF-8) name,</li>
+ *   <li>for state change records: if the upper six bits of the tag are zero the state mask as unsigned varint,
+ *   otherwise the state mask is entry <code>(tag &gt;&gt;&gt; 2)-1</code> of a dictionary holding the
+ *   literal state masks in order of appearance</li>
+ * </ul>
+ * Sync records hold an absolute timestamp (seconds and nanoseconds as unsigned varints) the time delta of the following
+ * record refers to and clear the dictionary. The agent writes them before the first record, after each {@link #SYNC_INTERVAL_RECORDS} records
+ * and whenever it starts writing a new batch of records, decoding can start at any sync record.</p>
+ *
+ * <p>Version 3 groups version 2 records into blocks, see {@link BlockIndex}. Decoding can only start
+ * at the beginning of a block.</p>
+ */
+abstract class RecordDecoder
+{
+    // upper bound for the encoded size of a single record in all supported formats
+    // (including a block header preceding the record)
+    public static final int MAX_RECORD_SIZE = 192;
+
+    public static final int TAG_SYNC = 3;
+
+    public static final int SYNC_INTERVAL_RECORDS = 4096;
+
+    public static final int STATE_DICTIONARY_SIZE = 63;
+
+    /**
+     * Creates a decoder.
+     *
+     * @param formatVersion file format version (1, 2 or 3)
+     * @return
+     */
+    public static RecordDecoder create(int formatVersion)
+    {
+        switch( formatVersion )
+        {
+            case 1:
+                return new FixedSizeDecoder();
+            case 2:
+                return new CompactDecoder();
+            case 3:
+                return new BlockDecoder();
+            default:
+                throw new IllegalArgumentException("Unsupported file format version "+formatVersion);
+        }
+    }
+
+    public abstract int getFormatVersion();
+
+    /**
+     * Clears any context kept from previously decoded records.
+     */
+    public abstract void reset();
+
+    /**
+     * Decodes the next record.
+     *
+     * <p>Records that do not correspond to an event (like sync records) are consumed
+     * together with the next event record.</p>
+     *
+     * @param buffer buffer with {@link java.nio.ByteOrder#LITTLE_ENDIAN} byte order
+     * @param offset offset of the record within the buffer
+     * @param limit offset of the first byte past the available data
+     * @param event event to populate
+     * @return the number of bytes consumed or 0 if the buffer does not contain a complete record (the decoder's context is left untouched in this case)
+     */
+    public abstract int decode(ByteBuffer buffer,int offset,int limit,ThreadEvent event);
+
+    /**
+     * Returns whether decoding may start at the offset of the record
+     * that was decoded last.
+     *
+     * @return
+     */
+    public abstract boolean isSeekable();
+
+    protected static final class FixedSizeDecoder extends RecordDecoder
+    {
+        @Override
+        public int getFormatVersion() {
+            return 1;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public int decode(ByteBuffer buffer, int offset, int limit, ThreadEvent event) {
+            return event.parseBuffer( buffer , offset , limit );
+        }
+
+        @Override
+        public boolean isSeekable() {
+            return true;
+        }
+    }
+
+    protected static final class CompactDecoder extends RecordDecoder
+    {
+        private static final long NANOS_PER_SECOND = 1000000000L;
+
+        private final int[] dictionary = new int[ STATE_DICTIONARY_SIZE ];
+        private int dictionarySize;
+
+        private long previousSeconds;
+        private long previousNanos;
+        private boolean synced;
+
+        private boolean seekable;
+
+        // current read position
+        private int position;
+
+        @Override
+        public int getFormatVersion() {
+            return 2;
+        }
+
+        @Override
+        public void reset()
+        {
+            dictionarySize = 0;
+            synced = false;
+        }
+
+        @Override
+        public boolean isSeekable() {
+            return seekable;
+        }
+
+        @Override
+        public int decode(ByteBuffer buffer, int offset, int limit, ThreadEvent event)
+        {
+            position = offset;
+            if ( position >= limit ) {
+                return 0;
+            }
+
+            int tag = buffer.get( position ) & 0xff;
+            long seconds = previousSeconds;
+            long nanos = previousNanos;
+            final boolean sync = ( tag & 0x03 ) == TAG_SYNC;
+            if ( sync )
+            {
+                if ( tag != TAG_SYNC ) {
+                    throw new RuntimeException("Invalid sync record at offset "+offset);
+                }
+                position++;
+                seconds = readVarLong( buffer , limit );
+                if ( seconds == -1 ) {
+                    return 0;
+                }
+                nanos = readVarLong( buffer , limit );
+                if ( nanos == -1 ) {
+                    return 0;
+                }
+                if ( position >= limit ) {
+                    return 0;
+                }
+                tag = buffer.get( position ) & 0xff;
+                if ( ( tag & 0x03 ) == TAG_SYNC ) {
+                    throw new RuntimeException("Sync record at offset "+offset+" is not followed by an event");
+                }
+            }
+            else if ( ! synced )
+            {
+                throw new RuntimeException("Decoding did not start at a sync record, offset "+offset);
+            }
+            position++;
+
+            final long threadId = readVarLong( buffer , limit );
+            if ( threadId == -1 ) {
+                return 0;
+            }
+            final long zigzag = readVarLong( buffer , limit );
+            if ( zigzag == -1 ) {
+                return 0;
+            }
+            final long delta = ( zigzag >>> 1 ) ^ -( zigzag & 1 );
+            nanos += delta;
+            if ( nanos < 0 || nanos >= NANOS_PER_SECOND )
+            {
+                long carry = nanos / NANOS_PER_SECOND;
+                if ( nanos < 0 && carry * NANOS_PER_SECOND != nanos ) {
+                    carry--;
+                }
+                seconds += carry;
+                nanos -= carry * NANOS_PER_SECOND;
+            }
+
+            final int type = tag & 0x03;
+            String threadName = null;
+            int stateMask = 0;
+            int newDictionaryEntry = -1;
+            switch( type )
+            {
+                case ThreadEvent.THREAD_START:
+                    final long nameLength = readVarLong( buffer , limit );
+                    if ( nameLength == -1 ) {
+                        return 0;
+                    }
+                    if ( nameLength >= ThreadEvent.MAX_THREADNAME_LENGTH ) {
+                        throw new RuntimeException("Invalid thread name length "+nameLength+" at offset "+offset);
+                    }
+                    if ( position + nameLength > limit ) {
+                        return 0;
+                    }
+                    final byte[] utf8 = new byte[ (int) nameLength ];
+                    for ( int i = 0 ; i < utf8.length ; i++ ) {
+                        utf8[i] = buffer.get( position++ );
+                    }
+                    try {
+                        threadName = ThreadEvent.convertFromModifiedUTF8( utf8 , 0 , utf8.length );
+                    } catch (UTFDataFormatException e) {
+                        threadName="<no valid UTF-8>";
+                    }
+                    break;
+                case ThreadEvent.THREAD_DEATH:
+                    break;
+                case ThreadEvent.THREAD_STATE_CHANGE:
+                    final int index = tag >>> 2;
+                    if ( index == 0 )
+                    {
+                        final long literal = readVarLong( buffer , limit );
+                        if ( literal == -1 ) {
+                            return 0;
+                        }
+                        stateMask = (int) literal;
+                        newDictionaryEntry = stateMask;
+                    }
+                    else
+                    {
+                        final int size = sync ? 0 : dictionarySize;
+                        if ( index > size ) {
+                            throw new RuntimeException("Invalid state dictionary index "+index+" at offset "+offset);
+                        }
+                        stateMask = dictionary[ index - 1 ];
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("Unhandled event type "+type);
+            }
+
+            // record is complete, update context
+            if ( sync ) {
+                dictionarySize = 0;
+                synced = true;
+            }
+            if ( newDictionaryEntry != -1 && dictionarySize < STATE_DICTIONARY_SIZE ) {
+                dictionary[ dictionarySize++ ] = newDictionaryEntry;
+            }
+            previousSeconds = seconds;
+            previousNanos = nanos;
+            seekable = sync;
+
+            event.type = (byte) type;
+            event.threadId = (int) threadId;
+            event.timestampSeconds = seconds;
+            event.timestampNanos = nanos;
+            if ( type == ThreadEvent.THREAD_START ) {
+                event.threadName = threadName;
+            } else if ( type == ThreadEvent.THREAD_STATE_CHANGE ) {
+                event.threadStateMask = stateMask;
+            }
+            return position - offset;
+        }
+
+        // unsigned LEB128, returns -1 if the buffer ends before the value is complete
+        // (the agent never writes values that do not fit into a signed long)
+        private long readVarLong(ByteBuffer buffer,int limit)
+        {
+            long result = 0;
+            int shift = 0;
+            int b;
+            do
+            {
+                if ( position >= limit ) {
+                    return -1;
+                }
+                if ( shift > 63 ) {
+                    throw new RuntimeException("Malformed variable-length integer at offset "+position);
+                }
+                b = buffer.get( position++ );
+                result |= (long) ( b & 0x7f ) << shift;
+                shift += 7;
+            } while ( ( b & 0x80 ) != 0 );
+            return result;
+        }
+    }
+
+    protected static final class BlockDecoder extends RecordDecoder
+    {
+        private final CompactDecoder records = new CompactDecoder();
+
+        // bytes of the current block that have not been decoded yet
+        private int remainingInBlock;
+
+        private boolean seekable;
+
+        @Override
+        public int getFormatVersion() {
+            return 3;
+        }
+
+        @Override
+        public void reset()
+        {
+            records.reset();
+            remainingInBlock = 0;
+        }
+
+        @Override
+        public boolean isSeekable() {
+            return seekable;
+        }
+
+        @Override
+        public int decode(ByteBuffer buffer, int offset, int limit, ThreadEvent event)
+        {
+            if ( remainingInBlock > 0 )
+            {
+                final int consumed = records.decode( buffer , offset , Math.min( limit , offset + remainingInBlock ) , event );
+                if ( consumed > 0 ) {
+                    remainingInBlock -= consumed;
+                    seekable = false;
+                }
+                return consumed;
+            }
+
+            if ( offset + 4 > limit || buffer.getInt( offset ) == BlockIndex.FOOTER_MAGIC || offset + BlockIndex.HEADER_SIZE > limit ) {
+                return 0;
+            }
+            if ( buffer.getInt( offset ) != BlockIndex.BLOCK_MAGIC ) {
+                throw new RuntimeException("Invalid block header at offset "+offset);
+            }
+            final int dataLength = buffer.getInt( offset + 4 );
+            if ( dataLength <= 0 || dataLength > BlockIndex.MAX_BLOCK_SIZE - BlockIndex.HEADER_SIZE ) {
+                throw new RuntimeException("Invalid length "+dataLength+" of block at offset "+offset);
+            }
+
+            // first record of a block is always a sync record
+            records.reset();
+            final int dataStart = offset + BlockIndex.HEADER_SIZE;
+            final int consumed = records.decode( buffer , dataStart , Math.min( limit , dataStart + dataLength ) , event );
+            if ( consumed == 0 ) {
+                return 0;
+            }
+            remainingInBlock = dataLength - consumed;
+            seekable = true;
+            return BlockIndex.HEADER_SIZE + consumed;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+/**
+ * Random access to the records of a recording by record index.
+ */
+abstract class RecordStore
+{
+    /**
+     * Returns the number of records.
+     * 
+     * @return
+     */
+    public abstract int size();
+
+    /**
+     * Populates an event with the record at a given index.
+     *
+     * @param index
+     * @param event
+     * @return <code>false</code> if there is no record with this index
+     */
+    public abstract boolean read(int index,ThreadEvent event);
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.codesourcery.threadwatcher.ui.UIConstants;
+
+/**
+ * Cumulative time each thread spent in each state, for answering interval statistics
+ * without reading any records.
+ *
+ * <p>For each thread and state the runs (maximal periods without a state change) are stored as their start
+ * times along with the total duration of all preceding runs of the same state. The time spent in a state until
+ * a given point in time is then found by a binary search, the time spent within an interval is the difference
+ * of two such lookups. States are identified by their index in {@link UIConstants#LEGEND_ITEMS}.</p>
+ *
+ * <p>The last state of each thread is assumed to last until the end of the recording, threads that
+ * did not die are considered dead after it (just like {@link FileReader#visit(FileReader.FileVisitor, HiResInterval, java.util.Set)} does).</p>
+ *
+ * <p>Events need to be added in chronological order. Instances are thread-safe, queries
+ * from multiple threads do not block each other.</p>
+ */
+public final class StateDurationIndex
+{
+    private static final int DEAD = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_DEAD );
+
+    private final Map<Integer,ThreadRuns> threads = new HashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // timestamp of the latest event (nanoseconds since the epoch)
+    private long end = Long.MIN_VALUE;
+
+    private static final class ThreadRuns
+    {
+        // start times of the finished runs of each state
+        private final long[][] starts = new long[ StatePyramid.STATE_COUNT ][];
+        // prefix[state][k] is the total duration of the first k finished runs of this state
+        private final long[][] prefix = new long[ StatePyramid.STATE_COUNT ][];
+        private final int[] counts = new int[ StatePyramid.STATE_COUNT ];
+
+        private final long firstTime;
+        private int openState = StatePyramid.NO_STATE;
+        private long openStart;
+
+        public ThreadRuns(long firstTime) {
+            this.firstTime = firstTime;
+        }
+
+        public void add(long time,int state)
+        {
+            if ( state == openState ) {
+                return;
+            }
+            if ( openState != StatePyramid.NO_STATE ) {
+                finishRun( openState , openStart , time );
+            }
+            openState = state;
+            openStart = time;
+        }
+
+        private void finishRun(int state,long start,long end)
+        {
+            int count = counts[state];
+            if ( starts[state] == null )
+            {
+                starts[state] = new long[16];
+                prefix[state] = new long[17];
+            }
+            else if ( count == starts[state].length )
+            {
+                starts[state] = Arrays.copyOf( starts[state] , count * 2 );
+                prefix[state] = Arrays.copyOf( prefix[state] , count * 2 + 1 );
+            }
+            starts[state][count] = start;
+            prefix[state][count+1] = prefix[state][count] + Math.max( 0 , end - start );
+            counts[state] = count + 1;
+        }
+
+        // number of finished runs of a state starting before a given point in time
+        private int countRunsBefore(int state,long time)
+        {
+            final long[] runStarts = starts[state];
+            int low = 0;
+            int high = counts[state] - 1;
+            while ( low <= high )
+            {
+                final int mid = (low + high) >>> 1;
+                if ( runStarts[mid] < time ) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        public void addRuns(long start,long end,long recordingEnd,PerThreadStatistics target)
+        {
+            for ( int state = 0 ; state < StatePyramid.STATE_COUNT ; state++ )
+            {
+                final int count = counts[state];
+                // the last run starting before the interval may still overlap it
+                for ( int i = Math.max( 0 , countRunsBefore( state , start ) - 1 ) ; i < count && starts[state][i] < end ; i++ )
+                {
+                    final long runEnd = starts[state][i] + prefix[state][i+1] - prefix[state][i];
+                    final long duration = Math.min( runEnd , end ) - Math.max( starts[state][i] , start );
+                    if ( duration > 0 ) {
+                        target.addRun( state , duration );
+                    }
+                }
+            }
+            if ( openState != StatePyramid.NO_STATE )
+            {
+                final long runEnd = openState == DEAD ? end : Math.min( end , recordingEnd );
+                final long duration = runEnd - Math.max( openStart , start );
+                if ( duration > 0 ) {
+                    target.addRun( openState , duration );
+                }
+                // threads that did not die are dead after the end of the recording
+                final long deadDuration = end - Math.max( recordingEnd , start );
+                if ( openState != DEAD && deadDuration > 0 ) {
+                    target.addRun( DEAD , deadDuration );
+                }
+            }
+        }
+
+        /**
+         * Returns the time spent in a state before a given point in time.
+         */
+        public long getCumulativeDuration(int state,long time,long recordingEnd)
+        {
+            long result = 0;
+            final int runsBefore = countRunsBefore( state , time );
+            if ( runsBefore > 0 )
+            {
+                final long[] sums = prefix[state];
+                final long lastRun = sums[runsBefore] - sums[runsBefore-1];
+                result = sums[runsBefore-1] + Math.min( time - starts[state][runsBefore-1] , lastRun );
+            }
+
+            if ( time > openStart )
+            {
+                if ( state == openState ) {
+                    result += ( openState == DEAD ? time : Math.min( time , recordingEnd ) ) - openStart;
+                } else if ( state == DEAD && openState != StatePyramid.NO_STATE && time > recordingEnd ) {
+                    result += time - Math.max( recordingEnd , openStart );
+                }
+            }
+            return result;
+        }
+    }
+
+    public void add(ThreadEvent event)
+    {
+        final long time = StatePyramid.toEpochNanos( event.timestampSeconds , event.timestampNanos );
+        final int state = StatePyramid.getState( event );
+        lock.writeLock().lock();
+        try 
+        {
+            ThreadRuns runs = threads.get( event.threadId );
+            if ( runs == null ) {
+                runs = new ThreadRuns( time );
+                threads.put( event.threadId , runs );
+            }
+            runs.add( time , state );
+            end = Math.max( end , time );
+        } 
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Calculates the time a thread spent in each state during an interval.
+     *
+     * @param threadId
+     * @param start start of interval (nanoseconds since the epoch)
+     * @param end end of interval (nanoseconds since the epoch)
+     * @param result receives the nanoseconds spent in each state, needs to hold at least {@link StatePyramid#STATE_COUNT} elements
+     * @return <code>false</code> if the recording holds no records of this thread up to the end of the interval
+     */
+    public boolean getDurations(int threadId,long start,long end,long[] result)
+    {
+        Arrays.fill( result , 0 , StatePyramid.STATE_COUNT , 0 );
+        lock.readLock().lock();
+        try 
+        {
+            final ThreadRuns runs = threads.get( threadId );
+            if ( runs == null || runs.firstTime > end ) {
+                return false;
+            }
+            for ( int state = 0 ; state < StatePyramid.STATE_COUNT ; state++ ) {
+                result[state] = runs.getCumulativeDuration( state , end , this.end ) - runs.getCumulativeDuration( state , start , this.end );
+            }
+            return true;
+        } 
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records the durations of all runs of a thread that overlap an interval.
+     *
+     * <p>Runs are cut off at the interval boundaries. This takes time proportional
+     * to the number of runs within the interval.</p>
+     *
+     * @param threadId
+     * @param start start of interval (nanoseconds since the epoch)
+     * @param end end of interval (nanoseconds since the epoch)
+     * @param target receives the run durations
+     * @see PerThreadStatistics#addRun(int, long)
+     */
+    public void addRuns(int threadId,long start,long end,PerThreadStatistics target)
+    {
+        lock.readLock().lock();
+        try 
+        {
+            final ThreadRuns runs = threads.get( threadId );
+            if ( runs != null ) {
+                runs.addRuns( start , end , this.end , target );
+            }
+        } 
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Periodic snapshots of the state of all live threads.
+ *
+ * <p>Replaying records starting at {@link Keyframe#position} with the states
+ * returned by {@link #getStates(int)} (the state mask every live thread had <b>before</b> 
+ * the record at this position was processed) yields the exact thread states
+ * without having to read the data from the very beginning.</p>
+ * 
+ * <p>Most keyframes only hold the threads whose state changed or that died since the previous 
+ * keyframe. A full snapshot is only stored once the changes since the last full snapshot reach 
+ * the number of live threads (or after {@link #MAX_DELTA_KEYFRAMES} keyframes), so reconstructing
+ * the states of a keyframe never needs to look at many more entries than a full snapshot holds.
+ * Time-triggered keyframes are spaced so that each of them covers at least
+ * {@link #KEYFRAME_RECORDS_PER_THREAD} records per live thread, which keeps the memory 
+ * needed by the keyframes a small fraction of the records, no matter how many threads are alive.</p>
+ */
+final class StateKeyframes
+{
+    // create a new keyframe after this many milliseconds (provided enough records have been processed)...
+    public static final long KEYFRAME_INTERVAL_MILLIS = 1000;
+    // ... or after this many records, whatever comes first
+    public static final int KEYFRAME_INTERVAL_RECORDS = 64*1024;
+    // min. number of records per live thread between time-triggered keyframes 
+    public static final int KEYFRAME_RECORDS_PER_THREAD = 16;
+    // max. number of keyframes holding changes only between two full keyframes
+    public static final int MAX_DELTA_KEYFRAMES = 64;
+
+    private static final int[] NO_THREADS = new int[0];
+
+    private final List<Keyframe> keyframes;
+
+    public static final class Keyframe
+    {
+        public final long position;
+        public final HiResTimestamp timestamp;
+        // whether threadIds/stateMasks hold all live threads or just changes since the previous keyframe
+        public final boolean full;
+        private final int[] threadIds;
+        private final int[] stateMasks;
+        // threads that died since the previous keyframe, always empty for full keyframes
+        private final int[] diedThreadIds;
+
+        public Keyframe(long position, HiResTimestamp timestamp, boolean full, int[] threadIds, int[] stateMasks, int[] diedThreadIds)
+        {
+            if ( threadIds.length != stateMasks.length ) {
+                throw new IllegalArgumentException("Thread IDs and state masks differ in length");
+            }
+            if ( full && diedThreadIds.length != 0 ) {
+                throw new IllegalArgumentException("Full keyframes cannot have died threads");
+            }
+            this.position = position;
+            this.timestamp = timestamp;
+            this.full = full;
+            this.threadIds = threadIds;
+            this.stateMasks = stateMasks;
+            this.diedThreadIds = diedThreadIds;
+        }
+
+        public int getThreadCount() {
+            return threadIds.length;
+        }
+
+        public int getThreadId(int index) {
+            return threadIds[index];
+        }
+
+        public int getStateMask(int index) {
+            return stateMasks[index];
+        }
+
+        public int getDiedThreadCount() {
+            return diedThreadIds.length;
+        }
+
+        public int getDiedThreadId(int index) {
+            return diedThreadIds[index];
+        }
+
+        protected int getEntryCount() {
+            return threadIds.length + diedThreadIds.length;
+        }
+
+        protected void applyTo(Map<Integer,Integer> states)
+        {
+            if ( full ) {
+                states.clear();
+            }
+            for ( int threadId : diedThreadIds ) {
+                states.remove( threadId );
+            }
+            for ( int i = 0 ; i < threadIds.length ; i++ ) {
+                states.put( threadIds[i] , stateMasks[i] );
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Keyframe[ position="+position+", timestamp="+timestamp+", full="+full+", threads="+threadIds.length+", died="+diedThreadIds.length+" ]";
+        }
+    }
+
+    public StateKeyframes(List<Keyframe> keyframes) 
+    {
+        if ( ! keyframes.isEmpty() && ! keyframes.get( 0 ).full ) {
+            throw new IllegalArgumentException("First keyframe needs to be a full keyframe");
+        }
+        this.keyframes = Collections.unmodifiableList( new ArrayList<>( keyframes ) );
+    }
+
+    public List<Keyframe> getKeyframes() {
+        return keyframes;
+    }
+
+    public int size() {
+        return keyframes.size();
+    }
+
+    public Keyframe getKeyframe(int index) {
+        return keyframes.get( index );
+    }
+
+    /**
+     * Reconstructs the states of all live threads at a keyframe.
+     *
+     * @param index keyframe index
+     * @return state masks by thread ID
+     */
+    public Map<Integer,Integer> getStates(int index)
+    {
+        int first = index;
+        while ( ! keyframes.get( first ).full ) {
+            first--;
+        }
+        final Map<Integer,Integer> result = new HashMap<>();
+        for ( int i = first ; i <= index ; i++ ) {
+            keyframes.get( i ).applyTo( result );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the last keyframe whose timestamp is strictly before a given time.
+     *
+     * @param timestamp
+     * @return keyframe or <code>null</code> if there is none
+     */
+    public Keyframe findLastBefore(HiResTimestamp timestamp)
+    {
+        final int index = findLastIndexBefore( timestamp );
+        return index < 0 ? null : keyframes.get( index );
+    }
+
+    /**
+     * Returns the index of the last keyframe whose timestamp is strictly before a given time.
+     *
+     * @param timestamp
+     * @return keyframe index or -1 if there is none
+     */
+    public int findLastIndexBefore(HiResTimestamp timestamp)
+    {
+        int low = 0;
+        int high = keyframes.size() - 1;
+        while ( low <= high )
+        {
+            final int mid = (low + high) >>> 1;
+            if ( keyframes.get( mid ).timestamp.compareTo( timestamp ) < 0 ) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Tracks thread states while records are being scanned and
+     * creates a keyframe whenever enough time has passed / enough records
+     * have been processed since the last one.
+     *
+     * <p>A builder that did not start at the beginning of the file only knows
+     * about state changes within the records it processed, builders for consecutive
+     * ranges of the file need to be combined using {@link #append(Builder)}. While processing 
+     * records, builders only create keyframes holding changes, {@link #build()} turns some
+     * of them into full keyframes and therefore may only be invoked on builders that 
+     * (possibly after appending others) processed all records from the beginning of the file.</p>
+     */
+    public static final class Builder
+    {
+        private final List<Keyframe> keyframes = new ArrayList<>();
+        // number of records processed between the previous keyframe and each keyframe
+        private final List<Integer> recordsBeforeKeyframe = new ArrayList<>();
+
+        private final Map<Integer,Integer> stateByThread = new HashMap<>();
+        // changes since the last keyframe
+        private final Map<Integer,Integer> changedStates = new HashMap<>();
+        private final Set<Integer> diedThreads = new HashSet<>();
+
+        // keyframes before this index have been finalized by build()
+        private int finalized;
+        // states at keyframe 'finalized-1' and entries stored since the last full keyframe up to it
+        private final Map<Integer,Integer> finalizedStates = new HashMap<>();
+        private int entriesSinceFullKeyframe;
+        private int keyframesSinceFullKeyframe;
+
+        private HiResTimestamp lastKeyframeTime;
+        private int recordsSinceLastKeyframe;
+
+        public Builder() {
+        }
+
+        /**
+         * Creates a builder that continues where the builder
+         * that created some keyframes stopped.
+         *
+         * @param keyframes keyframes created so far
+         * @param currentStates states of all live threads after the last record processed
+         */
+        public Builder(StateKeyframes keyframes,Map<Integer,Integer> currentStates)
+        {
+            this.keyframes.addAll( keyframes.getKeyframes() );
+            recordsBeforeKeyframe.addAll( Collections.nCopies( this.keyframes.size() , 0 ) );
+            stateByThread.putAll( currentStates );
+            finalized = this.keyframes.size();
+            if ( finalized > 0 )
+            {
+                for ( int i = 0 ; i < finalized ; i++ ) 
+                {
+                    final Keyframe keyframe = this.keyframes.get( i );
+                    keyframe.applyTo( finalizedStates );
+                    entriesSinceFullKeyframe = keyframe.full ? 0 : entriesSinceFullKeyframe + keyframe.getEntryCount();
+                    keyframesSinceFullKeyframe = keyframe.full ? 0 : keyframesSinceFullKeyframe + 1;
+                }
+                lastKeyframeTime = this.keyframes.get( finalized - 1 ).timestamp;
+            }
+            
+            // changes since the last keyframe
+            for ( Entry<Integer, Integer> entry : currentStates.entrySet() ) 
+            {
+                if ( ! entry.getValue().equals( finalizedStates.get( entry.getKey() ) ) ) {
+                    changedStates.put( entry.getKey() , entry.getValue() );
+                }
+            }
+            for ( Integer threadId : finalizedStates.keySet() ) 
+            {
+                if ( ! currentStates.containsKey( threadId ) ) {
+                    diedThreads.add( threadId );
+                }
+            }
+        }
+
+        /**
+         * Returns the states of all live threads after the last record processed.
+         *
+         * @return
+         */
+        public Map<Integer,Integer> getCurrentStates() {
+            return new HashMap<>( stateByThread );
+        }
+
+        /**
+         * Processes a record.
+         * 
+         * @param event
+         * @param position position of the record
+         * @param seekable whether reading may start at this position, keyframes are only created for such positions
+         */
+        public void process(ThreadEvent event,long position,boolean seekable)
+        {
+            if ( seekable && isKeyframeDue( event.timestampSeconds , event.timestampNanos ) ) {
+                addKeyframe( position , event.getTimestamp() );
+            }
+            recordsSinceLastKeyframe++;
+
+            switch( event.type )
+            {
+                case ThreadEvent.THREAD_START:
+                    setState( event.threadId , JVMTIThreadState.ALIVE.getBitMask() | JVMTIThreadState.RUNNABLE.getBitMask() );
+                    break;
+                case ThreadEvent.THREAD_DEATH:
+                    threadDied( event.threadId );
+                    break;
+                case ThreadEvent.THREAD_STATE_CHANGE:
+                    setState( event.threadId , event.threadStateMask );
+                    break;
+                default:
+                    throw new RuntimeException("Unhandled event type: "+event.type);
+            }
+        }
+
+        private void setState(int threadId,int stateMask)
+        {
+            stateByThread.put( threadId , stateMask );
+            changedStates.put( threadId , stateMask );
+            diedThreads.remove( threadId );
+        }
+
+        private void threadDied(int threadId)
+        {
+            stateByThread.remove( threadId );
+            changedStates.remove( threadId );
+            diedThreads.add( threadId );
+        }
+
+        private void addKeyframe(long position,HiResTimestamp timestamp)
+        {
+            final int[] threadIds = new int[ changedStates.size() ];
+            final int[] stateMasks = new int[ changedStates.size() ];
+            int i = 0;
+            for ( Entry<Integer, Integer> entry : changedStates.entrySet() )
+            {
+                threadIds[i] = entry.getKey();
+                stateMasks[i++] = entry.getValue();
+            }
+            keyframes.add( new Keyframe( position , timestamp , false , threadIds , stateMasks , toArray( diedThreads ) ) );
+            recordsBeforeKeyframe.add( recordsSinceLastKeyframe );
+            changedStates.clear();
+            diedThreads.clear();
+            lastKeyframeTime = timestamp;
+            recordsSinceLastKeyframe = 0;
+        }
+
+        /**
+         * Appends the keyframes of a builder that processed the records
+         * immediately following the ones processed by this builder.
+         * 
+         * <p>As the other builder only knew about the threads within its range of records,
+         * its keyframes are dropped if they are too close to each other given all live threads.</p>
+         *
+         * @param next
+         */
+        public void append(Builder next)
+        {
+            if ( next.finalized != 0 ) {
+                throw new IllegalArgumentException("Cannot append a builder that has already been built");
+            }
+            for ( int i = 0 ; i < next.keyframes.size() ; i++ )
+            {
+                final Keyframe keyframe = next.keyframes.get( i );
+                apply( keyframe.threadIds , keyframe.stateMasks , keyframe.diedThreadIds );
+                recordsSinceLastKeyframe += next.recordsBeforeKeyframe.get( i );
+                if ( isKeyframeDue( keyframe.timestamp.secondsSinceEpoch , keyframe.timestamp.nanoseconds ) ) {
+                    addKeyframe( keyframe.position , keyframe.timestamp );
+                }
+            }
+            for ( int threadId : next.diedThreads ) {
+                threadDied( threadId );
+            }
+            for ( Entry<Integer, Integer> entry : next.changedStates.entrySet() ) {
+                setState( entry.getKey() , entry.getValue() );
+            }
+            recordsSinceLastKeyframe += next.recordsSinceLastKeyframe;
+        }
+
+        private void apply(int[] threadIds,int[] stateMasks,int[] died)
+        {
+            for ( int threadId : died ) {
+                threadDied( threadId );
+            }
+            for ( int i = 0 ; i < threadIds.length ; i++ ) {
+                setState( threadIds[i] , stateMasks[i] );
+            }
+        }
+
+        private boolean isKeyframeDue(long seconds,long nanos)
+        {
+            if ( lastKeyframeTime == null || recordsSinceLastKeyframe >= KEYFRAME_INTERVAL_RECORDS ) {
+                return true;
+            }
+            final long elapsedNanos = (seconds - lastKeyframeTime.secondsSinceEpoch)*1000000000L + (nanos - lastKeyframeTime.nanoseconds);
+            return elapsedNanos >= KEYFRAME_INTERVAL_MILLIS*1000000 && 
+                   recordsSinceLastKeyframe >= (long) KEYFRAME_RECORDS_PER_THREAD*stateByThread.size();
+        }
+
+        private static int[] toArray(Set<Integer> threadIds)
+        {
+            if ( threadIds.isEmpty() ) {
+                return NO_THREADS;
+            }
+            final int[] result = new int[ threadIds.size() ];
+            int i = 0;
+            for ( Integer threadId : threadIds ) {
+                result[i++] = threadId;
+            }
+            return result;
+        }
+
+        public StateKeyframes build()
+        {
+            // replace keyframes with full ones once the changes since the last full keyframe reach the number of live threads
+            // or too many keyframes would need to be looked at to reconstruct the states
+            for ( ; finalized < keyframes.size() ; finalized++ )
+            {
+                final Keyframe keyframe = keyframes.get( finalized );
+                keyframe.applyTo( finalizedStates );
+                entriesSinceFullKeyframe += keyframe.getEntryCount();
+                keyframesSinceFullKeyframe++;
+                if ( finalized == 0 || entriesSinceFullKeyframe >= finalizedStates.size() || keyframesSinceFullKeyframe > MAX_DELTA_KEYFRAMES ) 
+                {
+                    final int[] threadIds = new int[ finalizedStates.size() ];
+                    final int[] stateMasks = new int[ finalizedStates.size() ];
+                    int i = 0;
+                    for ( Entry<Integer, Integer> entry : finalizedStates.entrySet() )
+                    {
+                        threadIds[i] = entry.getKey();
+                        stateMasks[i++] = entry.getValue();
+                    }
+                    keyframes.set( finalized , new Keyframe( keyframe.position , keyframe.timestamp , true , threadIds , stateMasks , NO_THREADS ) );
+                    entriesSinceFullKeyframe = 0;
+                    keyframesSinceFullKeyframe = 0;
+                }
+            }
+            return new StateKeyframes( keyframes );
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.codesourcery.threadwatcher.ui.UIConstants;
+
+/**
+ * Multi-resolution summary of thread states for rendering zoomed-out views.
+ *
+ * <p>The time axis (starting at the beginning of the recording) is divided into buckets of equal width,
+ * each level of the pyramid uses buckets {@link #LEVEL_FACTOR} times wider than the level below it.
+ * For each thread and bucket the fraction of the bucket's width spent in each state and the dominant
+ * state (the one the thread spent most time in) are stored. States are identified by their
+ * index in {@link UIConstants#LEGEND_ITEMS}.</p>
+ *
+ * <p>The width of the finest level's buckets is the smallest power of ten (in milliseconds) that covers the
+ * recording with at most {@link #MAX_BASE_BUCKETS} buckets, so memory usage does not depend on
+ * the number of records. Fractions are stored with a resolution of 1/255.</p>
+ *
+ * <p>Buckets are stored per thread, starting with the bucket of the thread's first event and ending
+ * with the last bucket of the recording (dead threads keep their final state). A thread that is alive
+ * for the whole recording takes up to <code>MAX_BASE_BUCKETS * (STATE_COUNT+1)</code> bytes
+ * on the finest level (about 72 KB) plus another ninth of that for the coarser levels, so the
+ * pyramid of a recording with thousands of long-lived threads takes hundreds of megabytes.</p>
+ *
+ * <p>Events need to be added in chronological order and {@link #finish(long)} needs to be invoked
+ * after each batch of events. Instances are thread-safe.</p>
+ */
+public final class StatePyramid
+{
+    public static final int LEVEL_FACTOR = 10;
+
+    public static final int MAX_BASE_BUCKETS = 8192;
+
+    public static final int STATE_COUNT = UIConstants.LEGEND_ITEMS.size();
+
+    // number of levels needed until a recording covered by MAX_BASE_BUCKETS fits into a single bucket
+    public static final int LEVEL_COUNT = 5;
+
+    public static final int NO_STATE = -1;
+
+    private static final long NANOS_PER_MILLISECOND = 1000000L;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static final int MAX_FRACTION = 255;
+
+    private final long origin;
+    private final long[] bucketWidths = new long[ LEVEL_COUNT ];
+    private final int[] bucketCounts = new int[ LEVEL_COUNT ];
+
+    private final Map<Integer,ThreadBuckets> threads = new HashMap<>();
+
+    private final class ThreadBuckets
+    {
+        // dominant state per bucket, NO_STATE if the thread's state is not known for any part of the bucket
+        private final byte[][] states = new byte[ LEVEL_COUNT ][];
+        // STATE_COUNT unsigned fractions per bucket
+        private final byte[][] fractions = new byte[ LEVEL_COUNT ][];
+        // bucket stored at index 0 of each level, nothing is stored for buckets before the thread's first event
+        private final int[] firstBuckets = new int[ LEVEL_COUNT ];
+
+        private int lastState = NO_STATE;
+        private long lastTime;
+        // finest-level bucket containing lastTime
+        private int openBucket;
+        // nanoseconds spent in each state within openBucket before lastTime
+        private final long[] openDurations = new long[ STATE_COUNT ];
+        // first finest-level bucket written since the coarser levels were updated
+        private int dirtyFrom = Integer.MAX_VALUE;
+
+        public ThreadBuckets()
+        {
+            for ( int level = 0 ; level < LEVEL_COUNT ; level++ ) {
+                states[level] = new byte[0];
+                fractions[level] = new byte[0];
+            }
+        }
+
+        public void add(long time,int state)
+        {
+            time = Math.max( time , lastTime );
+            if ( lastState == NO_STATE )
+            {
+                openBucket = (int) ( time / bucketWidths[0] );
+            }
+            else
+            {
+                final long width = bucketWidths[0];
+                long bucketEnd = ( openBucket + 1 ) * width;
+                while ( time >= bucketEnd )
+                {
+                    openDurations[ lastState ] += bucketEnd - lastTime;
+                    writeBucket( openBucket , openDurations );
+                    Arrays.fill( openDurations , 0 );
+                    lastTime = bucketEnd;
+                    openBucket++;
+                    bucketEnd += width;
+                }
+                openDurations[ lastState ] += time - lastTime;
+            }
+            lastState = state;
+            lastTime = time;
+        }
+
+        /**
+         * Writes the buckets from the last event up to a given time, assuming
+         * the thread stays in its current state.
+         *
+         * These buckets are written again when the next event is added.
+         */
+        public void writeProvisionalBuckets(long end)
+        {
+            if ( lastState == NO_STATE ) {
+                return;
+            }
+            final long[] durations = Arrays.copyOf( openDurations , STATE_COUNT );
+            final long width = bucketWidths[0];
+            long from = lastTime;
+            int bucket = openBucket;
+            while ( true )
+            {
+                final long bucketEnd = ( bucket + 1 ) * width;
+                final long to = Math.min( bucketEnd , end );
+                if ( to > from ) {
+                    durations[ lastState ] += to - from;
+                }
+                writeBucket( bucket , durations );
+                if ( end <= bucketEnd ) {
+                    break;
+                }
+                Arrays.fill( durations , 0 );
+                from = bucketEnd;
+                bucket++;
+            }
+        }
+
+        private void writeBucket(int bucket,long[] durations)
+        {
+            ensureCapacity( 0 , bucket , bucket + 1 );
+            final long width = bucketWidths[0];
+            final byte[] levelFractions = fractions[0];
+            final int index = bucket - firstBuckets[0];
+            int dominantState = NO_STATE;
+            long maxDuration = 0;
+            for ( int state = 0 ; state < STATE_COUNT ; state++ )
+            {
+                final long duration = durations[ state ];
+                levelFractions[ index*STATE_COUNT + state ] = (byte) ( ( duration * MAX_FRACTION + width/2 ) / width );
+                if ( duration > maxDuration ) {
+                    maxDuration = duration;
+                    dominantState = state;
+                }
+            }
+            states[0][index] = (byte) dominantState;
+            dirtyFrom = Math.min( dirtyFrom , bucket );
+        }
+
+        public void updateCoarserLevels()
+        {
+            if ( dirtyFrom == Integer.MAX_VALUE ) {
+                return;
+            }
+            int first = dirtyFrom;
+            for ( int level = 1 ; level < LEVEL_COUNT ; level++ )
+            {
+                first /= LEVEL_FACTOR;
+                final int firstChild = firstBuckets[ level-1 ];
+                final int childEnd = getEnd( level-1 );
+                final int end = ( childEnd + LEVEL_FACTOR - 1 ) / LEVEL_FACTOR;
+                ensureCapacity( level , first , end );
+                final byte[] childFractions = fractions[ level-1 ];
+                final int offset = firstBuckets[ level ];
+                final int[] sums = new int[ STATE_COUNT ];
+                for ( int bucket = first ; bucket < end ; bucket++ )
+                {
+                    Arrays.fill( sums , 0 );
+                    final int lastChild = Math.min( childEnd , ( bucket + 1 ) * LEVEL_FACTOR );
+                    for ( int child = Math.max( firstChild , bucket * LEVEL_FACTOR ) ; child < lastChild ; child++ )
+                    {
+                        for ( int state = 0 ; state < STATE_COUNT ; state++ ) {
+                            sums[ state ] += childFractions[ (child-firstChild)*STATE_COUNT + state ] & 0xff;
+                        }
+                    }
+                    int dominantState = NO_STATE;
+                    int maxSum = 0;
+                    for ( int state = 0 ; state < STATE_COUNT ; state++ )
+                    {
+                        fractions[ level ][ (bucket-offset)*STATE_COUNT + state ] = (byte) ( ( sums[ state ] + LEVEL_FACTOR/2 ) / LEVEL_FACTOR );
+                        if ( sums[ state ] > maxSum ) {
+                            maxSum = sums[ state ];
+                            dominantState = state;
+                        }
+                    }
+                    states[ level ][ bucket-offset ] = (byte) dominantState;
+                }
+            }
+            dirtyFrom = Integer.MAX_VALUE;
+        }
+
+        /**
+         * Returns the bucket following the last one stored for a level.
+         */
+        public int getEnd(int level) {
+            return firstBuckets[ level ] + states[ level ].length;
+        }
+
+        private void ensureCapacity(int level,int firstBucket,int endBucket)
+        {
+            final int oldCount = states[ level ].length;
+            if ( oldCount == 0 ) {
+                // buckets are written in ascending order, starting with the thread's first one
+                firstBuckets[ level ] = firstBucket;
+            }
+            final int bucketCount = endBucket - firstBuckets[ level ];
+            if ( bucketCount <= oldCount ) {
+                return;
+            }
+            final int newCount = Math.max( bucketCount , oldCount + oldCount / 2 );
+            states[ level ] = Arrays.copyOf( states[ level ] , newCount );
+            Arrays.fill( states[ level ] , oldCount , newCount , (byte) NO_STATE );
+            fractions[ level ] = Arrays.copyOf( fractions[ level ] , newCount * STATE_COUNT );
+        }
+    }
+
+    /**
+     * Create an empty pyramid.
+     *
+     * @param start start of the recording (nanoseconds since the epoch)
+     * @param end end of the recording (nanoseconds since the epoch), determines the width of the finest level's buckets
+     */
+    public StatePyramid(long start,long end)
+    {
+        if ( end < start ) {
+            throw new IllegalArgumentException("end must not be before start");
+        }
+        this.origin = start;
+        long width = NANOS_PER_MILLISECOND;
+        while ( ( end - start ) / width >= MAX_BASE_BUCKETS ) {
+            width *= LEVEL_FACTOR;
+        }
+        for ( int level = 0 ; level < LEVEL_COUNT ; level++ ) {
+            bucketWidths[ level ] = width;
+            width *= LEVEL_FACTOR;
+        }
+    }
+
+    public static long toEpochNanos(long seconds,long nanos) {
+        return seconds * NANOS_PER_SECOND + nanos;
+    }
+
+    public static long toEpochNanos(HiResTimestamp timestamp) {
+        return toEpochNanos( timestamp.secondsSinceEpoch , timestamp.nanoseconds );
+    }
+
+    /**
+     * Returns the state an event puts a thread into.
+     *
+     * @param event
+     * @return index into {@link UIConstants#LEGEND_ITEMS}
+     */
+    public static int getState(ThreadEvent event) {
+        return UIConstants.getLegendItemIndex( event );
+    }
+
+    public synchronized void add(ThreadEvent event)
+    {
+        final long time = Math.max( 0 , toEpochNanos( event.timestampSeconds , event.timestampNanos ) - origin );
+        ThreadBuckets buckets = threads.get( event.threadId );
+        if ( buckets == null ) {
+            buckets = new ThreadBuckets();
+            threads.put( event.threadId , buckets );
+        }
+        buckets.add( time , getState( event ) );
+    }
+
+    /**
+     * Makes the events added so far visible.
+     *
+     * @param end end of the recording (nanoseconds since the epoch), the last state of each thread
+     * is assumed to last until this time
+     */
+    public synchronized void finish(long end)
+    {
+        final long time = Math.max( 0 , end - origin );
+        for ( ThreadBuckets buckets : threads.values() )
+        {
+            buckets.writeProvisionalBuckets( time );
+            buckets.updateCoarserLevels();
+        }
+        for ( int level = 0 ; level < LEVEL_COUNT ; level++ ) {
+            bucketCounts[ level ] = (int) Math.max( 1 , ( time + bucketWidths[ level ] - 1 ) / bucketWidths[ level ] );
+        }
+    }
+
+    /**
+     * Returns whether the recording outgrew the finest level
+     * and the pyramid should be recreated with wider buckets.
+     *
+     * @return
+     */
+    public synchronized boolean isFull() {
+        return bucketCounts[0] > MAX_BASE_BUCKETS;
+    }
+
+    /**
+     * Returns the start of the first bucket.
+     *
+     * @return nanoseconds since the epoch
+     */
+    public long getOrigin() {
+        return origin;
+    }
+
+    public long getBucketWidth(int level) {
+        return bucketWidths[ level ];
+    }
+
+    public synchronized int getBucketCount(int level) {
+        return bucketCounts[ level ];
+    }
+
+    /**
+     * Finds the coarsest level whose buckets are not wider than a given duration.
+     *
+     * @param maxBucketWidth max. bucket width in nanoseconds (usually the duration covered by one pixel)
+     * @return level or -1 if even the finest level's buckets are wider
+     */
+    public int getLevel(double maxBucketWidth)
+    {
+        for ( int level = LEVEL_COUNT - 1 ; level >= 0 ; level-- )
+        {
+            if ( bucketWidths[ level ] <= maxBucketWidth ) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copies the dominant states for a range of buckets.
+     *
+     * @param threadId
+     * @param level
+     * @param firstBucket
+     * @param result receives one state per bucket, {@link #NO_STATE} for buckets without data
+     */
+    public synchronized void getDominantStates(int threadId,int level,int firstBucket,byte[] result)
+    {
+        Arrays.fill( result , (byte) NO_STATE );
+        final ThreadBuckets buckets = threads.get( threadId );
+        if ( buckets == null ) {
+            return;
+        }
+        final int offset = buckets.firstBuckets[ level ];
+        final int srcStart = Math.max( offset , firstBucket );
+        final int srcEnd = Math.min( Math.min( bucketCounts[ level ] , buckets.getEnd( level ) ) , firstBucket + result.length );
+        if ( srcStart < srcEnd ) {
+            System.arraycopy( buckets.states[ level ] , srcStart - offset , result , srcStart - firstBucket , srcEnd - srcStart );
+        }
+    }
+
+    public synchronized int getDominantState(int threadId,int level,int bucket)
+    {
+        final ThreadBuckets buckets = threads.get( threadId );
+        if ( buckets == null || bucket < buckets.firstBuckets[ level ] || bucket >= bucketCounts[ level ] || bucket >= buckets.getEnd( level ) ) {
+            return NO_STATE;
+        }
+        return buckets.states[ level ][ bucket - buckets.firstBuckets[ level ] ];
+    }
+
+    /**
+     * Sums the fractions of all threads for each bucket of a level.
+     *
+     * @param level
+     * @return {@link #STATE_COUNT} sums per bucket, a bucket fully spent in a state by
+     * one thread contributes 255 to the sum of this state
+     */
+    public synchronized long[] getTotals(int level)
+    {
+        final int count = bucketCounts[ level ];
+        final long[] result = new long[ count * STATE_COUNT ];
+        for ( ThreadBuckets buckets : threads.values() )
+        {
+            final byte[] fractions = buckets.fractions[ level ];
+            final int offset = buckets.firstBuckets[ level ] * STATE_COUNT;
+            final int end = Math.min( count , buckets.getEnd( level ) ) * STATE_COUNT;
+            for ( int i = offset ; i < end ; i++ ) {
+                result[i] += fractions[i - offset] & 0xff;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the fraction of a bucket a thread spent in a given state.
+     *
+     * @param threadId
+     * @param level
+     * @param bucket
+     * @param state
+     * @return value between 0 and 1
+     */
+    public synchronized double getFraction(int threadId,int level,int bucket,int state)
+    {
+        final ThreadBuckets buckets = threads.get( threadId );
+        if ( buckets == null || bucket < buckets.firstBuckets[ level ] || bucket >= bucketCounts[ level ] || bucket >= buckets.getEnd( level ) ) {
+            return 0;
+        }
+        return ( buckets.fractions[ level ][ ( bucket - buckets.firstBuckets[ level ] )*STATE_COUNT + state ] & 0xff ) / (double) MAX_FRACTION;
+    }
+}
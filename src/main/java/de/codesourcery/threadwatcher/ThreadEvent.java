@@ -54,35 +54,6 @@ public final class ThreadEvent
     public int threadStateMask;
     public String threadName;
 
-    protected void parseCommonFields(byte[] buffer,int offset) 
-    {
-        this.type = buffer[offset]; // offset 0
-        this.threadId = read16Bit( buffer          , (offset + 4) % BUFFER_LENGTH );
-        this.timestampSeconds = read64Bit( buffer , (offset + 8) % BUFFER_LENGTH);
-        this.timestampNanos = read64Bit( buffer  , (offset + 16) % BUFFER_LENGTH);        
-    }
-    
-    protected int parseThreadStartEvent(byte[] buffer,int offset) {
-        parseCommonFields(buffer,offset);
-        try {
-			threadName = readModifiedUTF8String(buffer, (offset+24)%BUFFER_LENGTH, MAX_THREADNAME_LENGTH);
-		} catch (UTFDataFormatException e) {
-			threadName="<no valid UTF-8>";
-		}
-        return ThreadEvent.SIZEOF_THREAD_START_EVENT;
-    }
-    
-    protected int parseThreadDeathEvent(byte[] buffer,int offset) {
-        parseCommonFields(buffer,offset);
-        return ThreadEvent.SIZEOF_THREAD_DEATH_EVENT;
-    }    
-    
-    protected int parseThreadStateChangeEvent(byte[] buffer,int offset) {
-        parseCommonFields(buffer,offset);
-        threadStateMask = read32Bit(buffer, (offset+24)%BUFFER_LENGTH);
-        return ThreadEvent.SIZEOF_THREAD_STATE_CHANGE_EVENT;
-    }    
-    
     public ThreadEvent() {
     }
     
@@ -97,25 +68,68 @@ public final class ThreadEvent
     }
     
     /**
+     * Returns the total size of a record with a given type.
      * 
-     * @param target
-     * @param buffer
-     * @param offset
-     * @return the number of bytes consumed from the buffer
+     * @param type
+     * @return record size in bytes or -1 if the type is unknown
      */
-    public int parseBuffer(byte[] buffer,int offset) 
+    public static int getRecordSize(int type) 
     {
-        switch(buffer[offset]) 
+        switch(type) 
         {
             case ThreadEvent.THREAD_START:
-                return parseThreadStartEvent(buffer, offset);
+                return SIZEOF_THREAD_START_EVENT;
             case ThreadEvent.THREAD_DEATH:
-                return parseThreadDeathEvent(buffer, offset);
+                return SIZEOF_THREAD_DEATH_EVENT;
             case ThreadEvent.THREAD_STATE_CHANGE:      
-                return parseThreadStateChangeEvent(buffer, offset);                
+                return SIZEOF_THREAD_STATE_CHANGE_EVENT;
+            default:
+                return -1;
+        }
+    }
+    
+    /**
+     * Populates this event from a little-endian buffer.
+     * 
+     * Only absolute <code>get()</code> methods are used so the buffer's position
+     * is left untouched. 
+     * 
+     * @param buffer buffer with {@link java.nio.ByteOrder#LITTLE_ENDIAN} byte order
+     * @param offset offset of the record within the buffer
+     * @param limit offset of the first byte past the available data 
+     * @return the number of bytes consumed from the buffer or 0 if the buffer does not contain a complete record
+     */
+    public int parseBuffer(ByteBuffer buffer,int offset,int limit) 
+    {
+        final byte recordType = buffer.get(offset);
+        final int recordSize = getRecordSize( recordType );
+        if ( recordSize < 0 ) {
+            throw new RuntimeException("Unhandled event type "+recordType);
+        }
+        if ( offset + recordSize > limit ) {
+            return 0;
+        }
+        
+        this.type = recordType; // offset 0
+        this.threadId = buffer.getInt( offset + 4 );
+        this.timestampSeconds = buffer.getLong( offset + 8 );
+        this.timestampNanos = buffer.getLong( offset + 16 );
+        
+        switch( recordType ) 
+        {
+            case ThreadEvent.THREAD_START:
+                try {
+                    threadName = readModifiedUTF8String(buffer, offset+24, MAX_THREADNAME_LENGTH);
+                } catch (UTFDataFormatException e) {
+                    threadName="<no valid UTF-8>";
+                }
+                break;
+            case ThreadEvent.THREAD_STATE_CHANGE:
+                threadStateMask = buffer.getInt( offset + 24 );
+                break;
             default:
-        }      
-        throw new RuntimeException("Unhandled event type "+buffer[offset]);        
+        }
+        return recordSize;
     }
 
     @Override
@@ -141,28 +155,24 @@ public final class ThreadEvent
         return "event_type="+sType+" ("+type+")"+result;
     }
     
-    protected final int read16Bit(byte[] buffer,int offset) 
-    {
-        final int low = buffer[offset] & 0xff;
-        final int hi = buffer[(offset+1)%BUFFER_LENGTH] & 0xff;
-        return (hi<<8)|low;
-    }
-
-    protected final String readModifiedUTF8String(byte[] buffer,int startOffset,int maxLength) throws UTFDataFormatException
+    protected final String readModifiedUTF8String(ByteBuffer buffer,int startOffset,int maxLength) throws UTFDataFormatException
     {
-        int zeroByteIndex=-1;
+        int length=-1;
         for ( int idx = 0 ; idx < maxLength ;idx++ ) 
         {
-            final int offset = (startOffset+idx) % BUFFER_LENGTH;
-            if ( buffer[ offset ] == 0 ) {
-                zeroByteIndex = offset;
+            if ( buffer.get( startOffset+idx ) == 0 ) {
+                length = idx;
                 break;
             }
         }
-        if ( zeroByteIndex == -1 ) {
+        if ( length == -1 ) {
             return null;
         }
-       	return convertFromModifiedUTF8(buffer,startOffset,zeroByteIndex);
+        final byte[] utf8 = new byte[ length ];
+        for ( int idx = 0 ; idx < length ; idx++ ) {
+            utf8[idx] = buffer.get( startOffset+idx );
+        }
+       	return convertFromModifiedUTF8(utf8,0,length);
     }
     
     public static String convertFromModifiedUTF8(byte[] in, int offset, int zeroByteIndex) throws UTFDataFormatException 
@@ -203,20 +213,6 @@ public final class ThreadEvent
         return new String(out,0,s);
     }
     
-    protected final int read32Bit(byte[] buffer,int offset) 
-    {
-        final int loWord = read16Bit(buffer,offset) & 0xffff;
-        final int hiWord = read16Bit(buffer,(offset+2)%BUFFER_LENGTH) & 0xffff;         
-        return ((hiWord<<16)|loWord);
-    }
-    
-    protected final long read64Bit(byte[] buffer,int offset) 
-    {
-        final long  loWord = read32Bit(buffer,offset);
-        final long  hiWord = read32Bit(buffer,(offset+4)%BUFFER_LENGTH);         
-        return ((hiWord<<32)|loWord) & 0xffffffff;
-    }    
-
     public long getTimestampMicros()
     {
         return timestampNanos;
@@ -276,6 +272,10 @@ public final class ThreadEvent
 		return this.timestampNanos >= timestamp.nanoseconds;
     }    
     
+    public long getEpochMillis() {
+        return timestampSeconds*1000 + timestampNanos / 1000000;
+    }
+    
     public HiResTimestamp getMillisecondTimestamp() {
 		int millis = (int) (timestampNanos / 1000000.0);
 		return new HiResTimestamp( timestampSeconds , millis*1000000 , true );
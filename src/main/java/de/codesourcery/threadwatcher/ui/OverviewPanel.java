@@ -0,0 +1,297 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher.ui;
+
+import static de.codesourcery.threadwatcher.ui.UIConstants.*;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+import de.codesourcery.threadwatcher.FileReader;
+import de.codesourcery.threadwatcher.HiResInterval;
+import de.codesourcery.threadwatcher.HiResTimestamp;
+import de.codesourcery.threadwatcher.StatePyramid;
+
+/**
+ * Thin bar showing how much time all threads spent in each state over the whole recording, 
+ * with the interval currently displayed by a {@link ThreadPanel} highlighted.
+ * 
+ * <p>Each pixel column shows the states of all live threads stacked on top of each other, 
+ * proportional to the time spent in them. The data is taken from the coarse levels of 
+ * the recording's {@link StatePyramid} so painting does not depend on the size of the recording.</p>
+ * 
+ * <p>Clicking or dragging centers the {@link ThreadPanel} on the time under the mouse cursor.</p>
+ */
+public class OverviewPanel extends JPanel 
+{
+    private static final long NANOS_PER_MILLISECOND = 1000000L;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    
+    // use the finest pyramid level with at most this many buckets
+    private static final int MAX_BUCKETS = 1024;
+    
+    private static final int DEAD_STATE = getLegendItemIndex( LEGENDITEM_DEAD );
+    
+    private static final Color VIEW_COLOR = new Color( 0 , 0 , 0 , 48 );
+    
+    // the state pyramid may need to be built first, this is done in the background 
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            final Thread result = new Thread( r , "overview-loader" );
+            result.setDaemon( true );
+            return result;
+        }
+    });
+    
+    private final FileReader reader;
+    private final ThreadPanel threadPanel;
+    
+    // incremented whenever the data changes, only accessed by the EDT
+    private int dataGeneration;
+    private Totals totals;
+    
+    protected static final class Totals 
+    {
+        public final HiResInterval dataInterval;
+        public final long origin;
+        public final long bucketWidth;
+        // StatePyramid.STATE_COUNT sums per bucket
+        public final long[] sums;
+        
+        public Totals(HiResInterval dataInterval,long origin,long bucketWidth,long[] sums) 
+        {
+            this.dataInterval = dataInterval;
+            this.origin = origin;
+            this.bucketWidth = bucketWidth;
+            this.sums = sums;
+        }
+        
+        public int getBucketCount() {
+            return sums.length / StatePyramid.STATE_COUNT;
+        }
+    }
+    
+    private final MouseAdapter mouseListener = new MouseAdapter() 
+    {
+        @Override
+        public void mousePressed(MouseEvent e) 
+        {
+            if ( e.getButton() == MouseEvent.BUTTON1 ) {
+                centerViewOn( e.getX() );
+            }
+        }
+        
+        @Override
+        public void mouseDragged(MouseEvent e) 
+        {
+            if ( SwingUtilities.isLeftMouseButton( e ) ) {
+                centerViewOn( e.getX() );
+            }
+        }
+    };
+    
+    public OverviewPanel(FileReader reader,ThreadPanel threadPanel) 
+    {
+        if ( reader == null ) {
+            throw new IllegalArgumentException("reader must not be NULL.");
+        }
+        if ( threadPanel == null ) {
+            throw new IllegalArgumentException("threadPanel must not be NULL.");
+        }
+        this.reader = reader;
+        this.threadPanel = threadPanel;
+        
+        setBackground( Color.WHITE );
+        setPreferredSize( new Dimension( 640 , 24 ) );
+        addMouseListener( mouseListener );
+        addMouseMotionListener( mouseListener );
+        threadPanel.addPropertyChangeListener( ThreadPanel.INTERVAL_PROPERTY , new PropertyChangeListener() {
+            
+            @Override
+            public void propertyChange(PropertyChangeEvent evt)
+            {
+                repaint();
+            }
+        });
+        dataChanged();
+    }
+    
+    /**
+     * Needs to be invoked after the recording has changed.
+     */
+    public void dataChanged() 
+    {
+        final int generation = ++dataGeneration;
+        LOADER.submit( new Runnable() {
+            
+            @Override
+            public void run()
+            {
+                final Totals result;
+                try {
+                    result = loadTotals();
+                } 
+                catch (IOException e) 
+                {
+                    e.printStackTrace();
+                    return;
+                }
+                SwingUtilities.invokeLater( new Runnable() {
+                    
+                    @Override
+                    public void run()
+                    {
+                        if ( generation == dataGeneration ) {
+                            totals = result;
+                            repaint();
+                        }
+                    }
+                });
+            }
+        });
+    }
+    
+    private Totals loadTotals() throws IOException 
+    {
+        final HiResInterval dataInterval = reader.getInterval();
+        final StatePyramid pyramid = dataInterval != null ? reader.getStatePyramid() : null;
+        if ( pyramid == null ) {
+            return null;
+        }
+        int level = 0;
+        while ( level < StatePyramid.LEVEL_COUNT - 1 && pyramid.getBucketCount( level ) > MAX_BUCKETS ) {
+            level++;
+        }
+        return new Totals( dataInterval , pyramid.getOrigin() , pyramid.getBucketWidth( level ) , pyramid.getTotals( level ) );
+    }
+    
+    /**
+     * Invoked after the interval displayed by the {@link ThreadPanel} has been changed 
+     * by clicking into this panel.
+     * 
+     * @param interval
+     */
+    protected void viewIntervalChanged(HiResInterval interval) {
+    }
+    
+    private void centerViewOn(int x) 
+    {
+        if ( totals == null || getWidth() <= 0 ) {
+            return;
+        }
+        final long lengthMillis = threadPanel.getIntervalLengthMillis();
+        final long center = toNanos( x );
+        threadPanel.setInterval( toTimestamp( center - lengthMillis * NANOS_PER_MILLISECOND / 2 ) , lengthMillis );
+        viewIntervalChanged( threadPanel.getInterval() );
+    }
+    
+    private long getDataStart() {
+        return StatePyramid.toEpochNanos( totals.dataInterval.start );
+    }
+    
+    private long getDataLength() {
+        return Math.max( 1 , StatePyramid.toEpochNanos( totals.dataInterval.end ) - getDataStart() );
+    }
+    
+    private long toNanos(double x) {
+        return getDataStart() + Math.round( x / getWidth() * getDataLength() );
+    }
+    
+    private int toX(HiResTimestamp timestamp) {
+        return (int) Math.round( ( StatePyramid.toEpochNanos( timestamp ) - getDataStart() ) / (double) getDataLength() * getWidth() );
+    }
+    
+    private static HiResTimestamp toTimestamp(long epochNanos) {
+        return new HiResTimestamp( epochNanos / NANOS_PER_SECOND , epochNanos % NANOS_PER_SECOND , false );
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g)
+    {
+        super.paintComponent( g );
+        if ( totals == null ) {
+            return;
+        }
+        
+        final int width = getWidth();
+        final int height = getHeight();
+        final int bucketCount = totals.getBucketCount();
+        final long[] columnSums = new long[ StatePyramid.STATE_COUNT ];
+        for ( int x = 0 ; x < width ; x++ ) 
+        {
+            // buckets overlapping this column
+            final int firstBucket = (int) Math.max( 0 , ( toNanos( x ) - totals.origin ) / totals.bucketWidth );
+            final int lastBucket = (int) Math.min( bucketCount - 1 , ( toNanos( x + 1 ) - 1 - totals.origin ) / totals.bucketWidth );
+            if ( lastBucket < firstBucket ) {
+                continue;
+            }
+            long total = 0;
+            for ( int state = 0 ; state < StatePyramid.STATE_COUNT ; state++ ) 
+            {
+                columnSums[ state ] = 0;
+                if ( state == DEAD_STATE ) {
+                    continue;
+                }
+                for ( int bucket = firstBucket ; bucket <= lastBucket ; bucket++ ) {
+                    columnSums[ state ] += totals.sums[ bucket * StatePyramid.STATE_COUNT + state ];
+                }
+                total += columnSums[ state ];
+            }
+            if ( total == 0 ) {
+                continue;
+            }
+            
+            // stack states bottom-up in legend order
+            long sum = 0;
+            int y1 = height;
+            for ( int state = 0 ; state < StatePyramid.STATE_COUNT ; state++ ) 
+            {
+                if ( columnSums[ state ] == 0 ) {
+                    continue;
+                }
+                sum += columnSums[ state ];
+                final int y0 = height - (int) Math.round( sum * height / (double) total );
+                g.setColor( LEGEND_ITEMS.get( state ).color );
+                g.drawLine( x , y0 , x , y1 - 1 );
+                y1 = y0;
+            }
+        }
+        
+        // highlight the interval currently displayed
+        final HiResInterval view = threadPanel.getInterval();
+        final int x0 = toX( view.start );
+        final int x1 = Math.max( x0 + 2 , toX( view.end ) );
+        g.setColor( VIEW_COLOR );
+        g.fillRect( x0 , 0 , x1 - x0 , height );
+        g.setColor( Color.BLACK );
+        g.drawRect( x0 , 0 , x1 - x0 - 1 , height - 1 );
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher.ui;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters of the most recently rendered timeline frames.
+ * 
+ * <p>A frame is the work done by one render job. Since tiles are rendered in parallel, the
+ * times of the {@link Phase#READ} and {@link Phase#DRAW} phases are summed across all threads
+ * and may exceed the frame's {@link Phase#TOTAL} (wall-clock) time. {@link Phase#PAINT} is 
+ * recorded separately for each call to <code>paintComponent()</code>.</p>
+ * 
+ * <p>Instances are thread-safe.</p>
+ */
+public final class RenderStatistics 
+{
+    public static final int DEFAULT_CAPACITY = 256;
+    
+    private static final double NANOS_PER_MILLISECOND = 1000000d;
+    
+    // upper bounds (exclusive, in milliseconds) of the histogram buckets, the last bucket is unbounded
+    private static final int[] HISTOGRAM_BOUNDS = { 1 , 2 , 4 , 8 , 16 , 32 , 64 , 128 , 256 , 512 };
+    
+    public static enum Phase 
+    {
+        // computing thread row positions and drawing thread names and legend
+        LAYOUT("layout"),
+        // reading events from the recording, excluding time spent waiting for the reader
+        READ("read"),
+        // rasterizing tiles and putting them together
+        DRAW("draw"),
+        // painting the rendered image and the selection overlay on the event dispatch thread
+        PAINT("paint"),
+        // wall-clock time of a render job
+        TOTAL("total");
+        
+        public final String label;
+        
+        private Phase(String label) {
+            this.label = label;
+        }
+    }
+    
+    /**
+     * Timings and counters of a single frame, may be updated by multiple threads.
+     */
+    public static final class Frame 
+    {
+        private final AtomicLongArray phaseNanos = new AtomicLongArray( Phase.values().length );
+        private final AtomicLong eventsVisited = new AtomicLong();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong rectsDrawn = new AtomicLong();
+        private final AtomicLong tilesRendered = new AtomicLong();
+        
+        public void addTime(Phase phase,long nanos) {
+            phaseNanos.addAndGet( phase.ordinal() , nanos );
+        }
+        
+        public void addEventsVisited(long count) {
+            eventsVisited.addAndGet( count );
+        }
+        
+        public void addBytesRead(long count) {
+            bytesRead.addAndGet( count );
+        }
+        
+        public void addRectsDrawn(long count) {
+            rectsDrawn.addAndGet( count );
+        }
+        
+        public void addTilesRendered(long count) {
+            tilesRendered.addAndGet( count );
+        }
+        
+        public long getTime(Phase phase) {
+            return phaseNanos.get( phase.ordinal() );
+        }
+        
+        public long getEventsVisited() {
+            return eventsVisited.get();
+        }
+        
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+        
+        public long getRectsDrawn() {
+            return rectsDrawn.get();
+        }
+        
+        public long getTilesRendered() {
+            return tilesRendered.get();
+        }
+    }
+    
+    private final int capacity;
+    
+    // ring buffers
+    private final Frame[] frames;
+    private int frameCount;
+    private int nextFrame;
+    
+    private final long[] paintNanos;
+    private int paintCount;
+    private int nextPaint;
+    
+    public RenderStatistics() {
+        this( DEFAULT_CAPACITY );
+    }
+    
+    /**
+     * 
+     * @param capacity number of frames (and paints) to keep
+     */
+    public RenderStatistics(int capacity) 
+    {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException("capacity must be >= 1");
+        }
+        this.capacity = capacity;
+        this.frames = new Frame[ capacity ];
+        this.paintNanos = new long[ capacity ];
+    }
+    
+    public synchronized void addFrame(Frame frame) 
+    {
+        if ( frame == null ) {
+            throw new IllegalArgumentException("frame must not be NULL.");
+        }
+        frames[ nextFrame ] = frame;
+        nextFrame = ( nextFrame + 1 ) % capacity;
+        frameCount = Math.min( capacity , frameCount + 1 );
+    }
+    
+    public synchronized void addPaint(long nanos) 
+    {
+        paintNanos[ nextPaint ] = nanos;
+        nextPaint = ( nextPaint + 1 ) % capacity;
+        paintCount = Math.min( capacity , paintCount + 1 );
+    }
+    
+    /**
+     * 
+     * @return most recent frame or <code>null</code>
+     */
+    public synchronized Frame getLastFrame() {
+        return frameCount == 0 ? null : frames[ ( nextFrame + capacity - 1 ) % capacity ];
+    }
+    
+    /**
+     * 
+     * @return duration of the most recent paint in nanoseconds, 0 if there was none
+     */
+    public synchronized long getLastPaintTime() {
+        return paintCount == 0 ? 0 : paintNanos[ ( nextPaint + capacity - 1 ) % capacity ];
+    }
+    
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+    
+    public synchronized void clear() 
+    {
+        Arrays.fill( frames , null );
+        frameCount = nextFrame = 0;
+        paintCount = nextPaint = 0;
+    }
+    
+    /**
+     * Returns a percentile of a phase's times.
+     * 
+     * @param phase
+     * @param percentile between 0 and 100
+     * @return nanoseconds, 0 if nothing has been recorded
+     */
+    public synchronized long getPercentile(Phase phase,double percentile) {
+        return percentile( getTimes( phase ) , percentile );
+    }
+    
+    private long[] getTimes(Phase phase) 
+    {
+        if ( phase == Phase.PAINT ) {
+            return Arrays.copyOf( paintNanos , paintCount );
+        }
+        final long[] result = new long[ frameCount ];
+        for ( int i = 0 ; i < frameCount ; i++ ) {
+            result[i] = frames[i].getTime( phase );
+        }
+        return result;
+    }
+    
+    private static long percentile(long[] values,double percentile) 
+    {
+        if ( values.length == 0 ) {
+            return 0;
+        }
+        final long[] sorted = values.clone();
+        Arrays.sort( sorted );
+        final int index = (int) Math.ceil( percentile / 100 * sorted.length ) - 1;
+        return sorted[ Math.max( 0 , Math.min( sorted.length - 1 , index ) ) ];
+    }
+    
+    /**
+     * Prints percentiles and a histogram of each phase's times as well as 
+     * percentiles of the per-frame counters.
+     * 
+     * @param out
+     */
+    public synchronized void dump(PrintStream out) 
+    {
+        out.println("Render statistics of the last "+frameCount+" frames and "+paintCount+" paints");
+        
+        final StringBuilder header = new StringBuilder( String.format( "%-8s %8s %8s %8s %8s |" , "phase" , "p50 ms" , "p90 ms" , "p99 ms" , "max ms" ) );
+        for ( int bound : HISTOGRAM_BOUNDS ) {
+            header.append( String.format( " %5s" , "<"+bound ) );
+        }
+        header.append( String.format( " %5s" , ">="+HISTOGRAM_BOUNDS[ HISTOGRAM_BOUNDS.length-1 ] ) );
+        out.println( header );
+        
+        for ( Phase phase : Phase.values() ) 
+        {
+            final long[] times = getTimes( phase );
+            final StringBuilder line = new StringBuilder( String.format( "%-8s %8.2f %8.2f %8.2f %8.2f |" , phase.label , 
+                    percentile( times , 50 ) / NANOS_PER_MILLISECOND , percentile( times , 90 ) / NANOS_PER_MILLISECOND , 
+                    percentile( times , 99 ) / NANOS_PER_MILLISECOND , percentile( times , 100 ) / NANOS_PER_MILLISECOND ) );
+            for ( int count : histogram( times ) ) {
+                line.append( String.format( " %5d" , count ) );
+            }
+            out.println( line );
+        }
+        
+        final long[] events = new long[ frameCount ];
+        final long[] bytes = new long[ frameCount ];
+        final long[] rects = new long[ frameCount ];
+        final long[] tiles = new long[ frameCount ];
+        for ( int i = 0 ; i < frameCount ; i++ ) 
+        {
+            events[i] = frames[i].getEventsVisited();
+            bytes[i] = frames[i].getBytesRead();
+            rects[i] = frames[i].getRectsDrawn();
+            tiles[i] = frames[i].getTilesRendered();
+        }
+        out.println( String.format( "%-8s %8s %8s %8s %8s" , "counter" , "p50" , "p90" , "p99" , "max" ) );
+        printCounter( "events" , events , out );
+        printCounter( "bytes" , bytes , out );
+        printCounter( "rects" , rects , out );
+        printCounter( "tiles" , tiles , out );
+    }
+    
+    private static void printCounter(String label,long[] values,PrintStream out) 
+    {
+        out.println( String.format( "%-8s %8d %8d %8d %8d" , label , percentile( values , 50 ) , percentile( values , 90 ) , 
+                percentile( values , 99 ) , percentile( values , 100 ) ) );
+    }
+    
+    private static int[] histogram(long[] nanos) 
+    {
+        final int[] result = new int[ HISTOGRAM_BOUNDS.length + 1 ];
+        for ( long value : nanos ) 
+        {
+            int bucket = 0;
+            while ( bucket < HISTOGRAM_BOUNDS.length && value >= HISTOGRAM_BOUNDS[ bucket ] * NANOS_PER_MILLISECOND ) {
+                bucket++;
+            }
+            result[ bucket ]++;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher.ui;
+
+import java.util.Arrays;
+
+import de.codesourcery.threadwatcher.StatePyramid;
+
+/**
+ * Accumulates how long each thread spent in each state for every pixel column of a tile.
+ * 
+ * <p>When more than one state change falls into the same pixel, drawing each change would make
+ * the last one win. Instead, the state that takes up most of a pixel's time
+ * is displayed there, ties are resolved in favor of the state listed first in {@link UIConstants#LEGEND_ITEMS}.
+ * This way the picture does not depend on the order in which events are drawn.</p>
+ * 
+ * <p>States are identified by their index in {@link UIConstants#LEGEND_ITEMS}.</p>
+ * 
+ * <p>Instances are not thread-safe.</p>
+ */
+public final class StateCoalescer 
+{
+    private static final int STATE_COUNT = StatePyramid.STATE_COUNT;
+    
+    private final int width;
+    private final double nanosPerPixel;
+    
+    // time spent in each state, indexed by ( row * width + column ) * STATE_COUNT + state
+    private final double[] durations;
+    
+    // state of each row since the last state change
+    private final int[] currentStates;
+    private final long[] currentStarts;
+    
+    /**
+     * 
+     * @param rows number of rows (threads)
+     * @param width number of pixel columns
+     * @param nanosPerPixel nanoseconds covered by a pixel column
+     */
+    public StateCoalescer(int rows,int width,double nanosPerPixel) 
+    {
+        if ( rows < 0 || width < 0 ) {
+            throw new IllegalArgumentException("rows/width must not be negative");
+        }
+        if ( nanosPerPixel <= 0 ) {
+            throw new IllegalArgumentException("nanosPerPixel must be > 0");
+        }
+        this.width = width;
+        this.nanosPerPixel = nanosPerPixel;
+        this.durations = new double[ rows * width * STATE_COUNT ];
+        this.currentStates = new int[ rows ];
+        this.currentStarts = new long[ rows ];
+        Arrays.fill( currentStates , StatePyramid.NO_STATE );
+    }
+    
+    /**
+     * Records a state change.
+     * 
+     * <p>State changes of a row need to be recorded in chronological order.</p>
+     * 
+     * @param row
+     * @param nanos time of the state change in nanoseconds relative to the left edge of the first column,
+     * may be negative
+     * @param state
+     */
+    public void stateChanged(int row,long nanos,int state) 
+    {
+        if ( currentStates[row] != StatePyramid.NO_STATE ) {
+            add( row , currentStarts[row] , nanos , currentStates[row] );
+        }
+        currentStates[row] = state;
+        currentStarts[row] = nanos;
+    }
+    
+    /**
+     * Accounts for the time between the last state change of each row and a given end time.
+     * 
+     * @param nanos end time in nanoseconds relative to the left edge of the first column
+     */
+    public void finish(long nanos) 
+    {
+        for ( int row = 0 ; row < currentStates.length ; row++ ) 
+        {
+            if ( currentStates[row] != StatePyramid.NO_STATE ) {
+                add( row , currentStarts[row] , nanos , currentStates[row] );
+                currentStarts[row] = nanos;
+            }
+        }
+    }
+    
+    private void add(int row,long start,long end,int state) 
+    {
+        final double x0 = Math.max( 0 , start / nanosPerPixel );
+        final double x1 = Math.min( width , end / nanosPerPixel );
+        if ( x1 <= x0 ) {
+            return;
+        }
+        final int firstColumn = (int) x0;
+        final int lastColumn = Math.min( width - 1 , (int) Math.ceil( x1 ) - 1 );
+        int index = ( row * width + firstColumn ) * STATE_COUNT + state;
+        for ( int column = firstColumn ; column <= lastColumn ; column++ , index += STATE_COUNT ) {
+            durations[ index ] += ( Math.min( x1 , column + 1 ) - Math.max( x0 , column ) ) * nanosPerPixel;
+        }
+    }
+    
+    /**
+     * Returns the state a thread spent most of the time in during a pixel column.
+     * 
+     * @param row
+     * @param column
+     * @return state or {@link StatePyramid#NO_STATE} if nothing was recorded for this pixel
+     */
+    public int getDominantState(int row,int column) 
+    {
+        final int offset = ( row * width + column ) * STATE_COUNT;
+        int result = StatePyramid.NO_STATE;
+        double max = 0;
+        for ( int state = 0 ; state < STATE_COUNT ; state++ ) 
+        {
+            if ( durations[ offset + state ] > max ) {
+                max = durations[ offset + state ];
+                result = state;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the dominant states of all pixel columns of a row.
+     * 
+     * @param row
+     * @param result array receiving one state per column
+     * @see #getDominantState(int, int)
+     */
+    public void getDominantStates(int row,int[] result) 
+    {
+        for ( int column = 0 ; column < width ; column++ ) {
+            result[column] = getDominantState( row , column );
+        }
+    }
+}
@@ -17,24 +17,33 @@ package de.codesourcery.threadwatcher.ui;
 
 import java.awt.Color;
 import java.awt.Component;
+import java.awt.Font;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.DefaultTableCellRenderer;
@@ -42,15 +51,24 @@ import javax.swing.table.TableModel;
 
 import org.apache.commons.lang.ObjectUtils;
 
+import de.codesourcery.threadwatcher.DurationHistogram;
 import de.codesourcery.threadwatcher.FileReader;
-import de.codesourcery.threadwatcher.FileReader.FileVisitor;
 import de.codesourcery.threadwatcher.HiResInterval;
 import de.codesourcery.threadwatcher.PerThreadStatistics;
-import de.codesourcery.threadwatcher.ThreadEvent;
+import de.codesourcery.threadwatcher.StateDurationIndex;
+import de.codesourcery.threadwatcher.StatePyramid;
 import de.codesourcery.threadwatcher.ui.PercentageBar.IPercentageProvider;
 
 public final class StatisticsPanel extends JPanel
 {
+	// run durations are shown for these groups of states, all statistics are available in the detail view
+	private static final String[] RUN_GROUP_TITLES = { "Runnable" , "Blocked" , "Waiting" };
+	private static final LegendItem[][] RUN_GROUPS = { 
+		{ UIConstants.LEGENDITEM_RUNNABLE } , 
+		{ UIConstants.LEGENDITEM_BLOCKED } , 
+		{ UIConstants.LEGENDITEM_WAITING_GENERAL , UIConstants.LEGENDITEM_WAITING_TIMEOUT , UIConstants.LEGENDITEM_WAITING_INDEFINITELY } };
+	private static final String[] RUN_COLUMN_TITLES = { "runs" , "p90 ms" , "max ms" };
+	
 	private static final String[] COLUMN_NAMES;
 	
 	static {
@@ -60,6 +78,11 @@ public final class StatisticsPanel extends JPanel
 		for ( LegendItem item : UIConstants.LEGEND_ITEMS ) {
 			columnNames.add( item.title+" %" );
 		}
+		for ( String group : RUN_GROUP_TITLES ) {
+			for ( String column : RUN_COLUMN_TITLES ) {
+				columnNames.add( group+" "+column );
+			}
+		}
 		COLUMN_NAMES=new String[ columnNames.size() ];
 		for ( int i = 0 ; i < columnNames.size() ; i++ ) {
 			COLUMN_NAMES[i] = columnNames.get(i);
@@ -69,8 +92,27 @@ public final class StatisticsPanel extends JPanel
 	private static final int COLUMN_THREAD_NAME = 0;
 	private static final int COLUMN_PERCENTAGE_BAR = 1;
 
+	// calculates statistics in the background
+	private static final ExecutorService CALCULATOR = Executors.newSingleThreadExecutor( new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			final Thread result = new Thread( r , "statistics-calculator" );
+			result.setDaemon( true );
+			return result;
+		}
+	});
+
+	// statistics of different threads are calculated in parallel
+	private static final ForkJoinPool STATISTICS_POOL = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+
+	private static final int THREADS_PER_TASK = 64;
+
 	private FileReader reader;
+	// only accessed by the EDT
 	private HiResInterval interval;
+	private boolean calculating;
 
 	private final List<TableEntry> tableData=new ArrayList<>();
 	private final MyTableModel tableModel = new MyTableModel();
@@ -150,11 +192,24 @@ public final class StatisticsPanel extends JPanel
 	{
 		public final PerThreadStatistics statistics;
 		public final PercentageBar percentageBar;
+		// run durations for each of RUN_GROUPS
+		public final DurationHistogram[] runs = new DurationHistogram[ RUN_GROUPS.length ];
 		
 		public TableEntry(PerThreadStatistics statistics, PercentageBar percentageBar) 
 		{
 			this.statistics = statistics;
 			this.percentageBar = percentageBar;
+			for ( int i = 0 ; i < RUN_GROUPS.length ; i++ ) 
+			{
+				runs[i] = new DurationHistogram();
+				for ( LegendItem item : RUN_GROUPS[i] ) 
+				{
+					final DurationHistogram histogram = statistics.getRuns( UIConstants.getLegendItemIndex( item ) );
+					if ( histogram != null ) {
+						runs[i].add( histogram );
+					}
+				}
+			}
 		}
 	}
 
@@ -175,6 +230,24 @@ public final class StatisticsPanel extends JPanel
 					return entry.percentageBar;
 				default:
 					int legendItem = column-2;
+					if ( legendItem >= UIConstants.LEGEND_ITEMS.size() ) 
+					{
+						final int runColumn = legendItem - UIConstants.LEGEND_ITEMS.size();
+						final DurationHistogram runs = entry.runs[ runColumn / RUN_COLUMN_TITLES.length ];
+						switch( runColumn % RUN_COLUMN_TITLES.length ) 
+						{
+							case 0:
+								setText( Long.toString( runs.getCount() ) );
+								break;
+							case 1:
+								setText( formatDurationValue( runs.getPercentile( 90 ) ) );
+								break;
+							default:
+								setText( formatDurationValue( runs.getMax() ) );
+						}
+						setHorizontalAlignment( JLabel.RIGHT );
+						break;
+					}
 					LegendItem item = UIConstants.LEGEND_ITEMS.get(legendItem);
 					for ( IPercentageProvider i : entry.percentageBar.getValues() ) 
 					{
@@ -196,11 +269,35 @@ public final class StatisticsPanel extends JPanel
 		return new DecimalFormat("##0.##").format(value);
 	}
 	
+	private static String formatDurationValue(long nanos) {
+		return new DecimalFormat("##0.###").format( nanos / 1000000d );
+	}
+	
+	private void showDetails(TableEntry entry) 
+	{
+		final String name = reader.getThreadNamesByID().get( entry.statistics.threadId );
+		final JTextArea text = new JTextArea( entry.statistics.getRunsAsString() );
+		text.setFont( new Font( Font.MONOSPACED , Font.PLAIN , 12 ) );
+		text.setEditable( false );
+		JOptionPane.showMessageDialog( this , new JScrollPane( text ) , "Run durations of "+name+" ("+entry.statistics.threadId+")" , JOptionPane.PLAIN_MESSAGE );
+	}
+	
 	public StatisticsPanel(FileReader reader) 
 	{
 		this.reader = reader;
 		table.setDefaultRenderer( TableEntry.class , new CellRenderer() );
 		table.addMouseMotionListener( mouseListener );
+		table.addMouseListener( new MouseAdapter() {
+
+			@Override
+			public void mouseClicked(MouseEvent e)
+			{
+				final int row = table.rowAtPoint( e.getPoint() );
+				if ( e.getClickCount() == 2 && row >= 0 && row < tableData.size() ) {
+					showDetails( tableData.get( row ) );
+				}
+			}
+		});
 		table.setBackground(Color.WHITE);
 		table.setFillsViewportHeight(true);
 		setLayout( new GridBagLayout() );
@@ -215,58 +312,160 @@ public final class StatisticsPanel extends JPanel
 		add( pane, cnstrs );
 	}
 
-	public void setInterval(HiResInterval interval) throws IOException 
+	/**
+	 * Sets the interval to show statistics for.
+	 * 
+	 * <p>Statistics are calculated in the background. While a calculation is running, further
+	 * calls only remember the latest interval, it is calculated as soon as the running
+	 * calculation has finished.</p>
+	 * 
+	 * @param interval interval or <code>null</code> to clear the statistics
+	 */
+	public void setInterval(HiResInterval interval) 
 	{
 		this.interval = interval;
-		recalcStatistics();
-		repaint();
+		if ( interval == null ) 
+		{
+			tableData.clear();
+			tableModel.fireDataChanged();
+			repaint();
+			return;
+		}
+		if ( ! calculating ) {
+			calculate( interval );
+		}
 	}
 
-	private void recalcStatistics() throws IOException {
+	private void calculate(final HiResInterval interval) 
+	{
+		calculating = true;
+		CALCULATOR.submit( new Runnable() {
 
-		tableData.clear();
-		
-		if ( interval == null ) {
-			return;
-		}
+			@Override
+			public void run()
+			{
+				List<PerThreadStatistics> result = null;
+				try {
+					result = calcStatistics( interval );
+				} 
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+				final List<PerThreadStatistics> statistics = result;
+				SwingUtilities.invokeLater( new Runnable() {
+
+					@Override
+					public void run()
+					{
+						calculating = false;
+						if ( StatisticsPanel.this.interval == null ) {
+							return;
+						}
+						if ( StatisticsPanel.this.interval != interval ) {
+							// interval changed while calculating
+							calculate( StatisticsPanel.this.interval );
+						}
+						if ( statistics != null ) {
+							updateTable( interval , statistics );
+						}
+					}
+				});
+			}
+		});
+	}
 
-		final Map<Integer,PerThreadStatistics> statistics = new HashMap<>();
+	private List<PerThreadStatistics> calcStatistics(HiResInterval interval) throws IOException 
+	{
+		final StateDurationIndex index = reader.getStateDurationIndex();
+		if ( index == null ) {
+			return new ArrayList<>();
+		}
 
 		final Set<Integer> threadIds = reader.getAliveThreadsInInterval( interval );
+		final int[] ids = new int[ threadIds.size() ];
+		int i = 0;
 		for ( int threadId : threadIds ) {
-			statistics.put(threadId,new PerThreadStatistics(threadId));
+			ids[i++] = threadId;
 		}
+		return STATISTICS_POOL.invoke( new StatisticsTask( index , ids , 0 , ids.length , 
+				StatePyramid.toEpochNanos( interval.start ) , StatePyramid.toEpochNanos( interval.end ) ) );
+	}
 
-		final FileVisitor statisticsVisitor = new FileVisitor() {
+	protected static final class StatisticsTask extends RecursiveTask<List<PerThreadStatistics>> 
+	{
+		private final StateDurationIndex index;
+		private final int[] threadIds;
+		private final int first;
+		private final int last;
+		private final long start;
+		private final long end;
 
-			@Override
-			public void visit(ThreadEvent event)
-			{
-				final PerThreadStatistics stat = statistics.get(event.threadId);
-				stat.processEvent( event );
-			}
-		};
-		reader.visit( statisticsVisitor , interval , threadIds );
+		public StatisticsTask(StateDurationIndex index,int[] threadIds,int first,int last,long start,long end)
+		{
+			this.index = index;
+			this.threadIds = threadIds;
+			this.first = first;
+			this.last = last;
+			this.start = start;
+			this.end = end;
+		}
 
-		final double totalIntervalDurationMillis = interval.getDurationInMilliseconds();		
-		for ( PerThreadStatistics s : statistics.values() ) 
+		@Override
+		protected List<PerThreadStatistics> compute()
 		{
-			s.finish( interval );
-			
-			if ( s.containsData ) 
+			if ( last - first > THREADS_PER_TASK ) 
 			{
-				final PercentageBar bar = new PercentageBar();
+				final int mid = (first + last) >>> 1;
+				final StatisticsTask left = new StatisticsTask( index , threadIds , first , mid , start , end );
+				left.fork();
+				final List<PerThreadStatistics> right = new StatisticsTask( index , threadIds , mid , last , start , end ).compute();
+				final List<PerThreadStatistics> result = left.join();
+				result.addAll( right );
+				return result;
+			}
 
-				for ( Entry<LegendItem, Double> v : s.sumDurationInMillis.entrySet() ) 
+			final List<PerThreadStatistics> result = new ArrayList<>();
+			final long[] durations = new long[ StatePyramid.STATE_COUNT ];
+			for ( int i = first ; i < last ; i++ ) 
+			{
+				if ( index.getDurations( threadIds[i] , start , end , durations ) ) 
 				{
-					double percentage = 100.0*( v.getValue() / totalIntervalDurationMillis );
-					LegendItemProvider provider = new LegendItemProvider( v.getKey() , percentage );
-					bar.setPercentage( v.getKey().color , provider );
+					final PerThreadStatistics s = new PerThreadStatistics( threadIds[i] );
+					s.setDurations( durations );
+					index.addRuns( threadIds[i] , start , end , s );
+					result.add( s );
 				}
-				tableData.add( new TableEntry( s , bar ) );
 			}
+			return result;
+		}
+	}
+
+	private void updateTable(HiResInterval interval,List<PerThreadStatistics> statistics) 
+	{
+		final Map<Integer,PercentageBar> previousBars = new HashMap<>();
+		for ( TableEntry entry : tableData ) {
+			previousBars.put( entry.statistics.threadId , entry.percentageBar );
+		}
+		tableData.clear();
+
+		final double totalIntervalDurationMillis = interval.getDurationInMilliseconds();		
+		for ( PerThreadStatistics s : statistics ) 
+		{
+			// bars keep their order since values are replaced in-place
+			PercentageBar bar = previousBars.get( s.threadId );
+			if ( bar == null ) {
+				bar = new PercentageBar();
+			}
+			for ( int state = 0 ; state < StatePyramid.STATE_COUNT ; state++ ) 
+			{
+				final LegendItem item = UIConstants.LEGEND_ITEMS.get( state );
+				double percentage = 100.0*( s.getDurationMillis( state ) / totalIntervalDurationMillis );
+				bar.setPercentage( item.color , new LegendItemProvider( item , percentage ) );
+			}
+			tableData.add( new TableEntry( s , bar ) );
 		}       
 		tableModel.fireDataChanged();
+		repaint();
 	}
 
 	protected static final class LegendItemProvider implements IPercentageProvider {
@@ -19,37 +19,101 @@ import static de.codesourcery.threadwatcher.ui.UIConstants.*;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JPanel;
 import javax.swing.Scrollable;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import de.codesourcery.threadwatcher.FileReader;
 import de.codesourcery.threadwatcher.FileReader.FileVisitor;
 import de.codesourcery.threadwatcher.HiResInterval;
 import de.codesourcery.threadwatcher.HiResTimestamp;
+import de.codesourcery.threadwatcher.StatePyramid;
 import de.codesourcery.threadwatcher.ThreadEvent;
 import de.codesourcery.threadwatcher.ui.HorizontalSelectionHelper.SelectedInterval;
+import de.codesourcery.threadwatcher.ui.RenderStatistics.Phase;
 
 public final class ThreadPanel extends JPanel 
 {
+    /**
+     * Name of the bound property that changes whenever the displayed interval changes.
+     */
+    public static final String INTERVAL_PROPERTY = "interval";
+    
     private static final int LEGEND_HEIGHT = 20;
     private static final int RIGHT_BORDER = 20;
     
+    private static final long NANOS_PER_MILLISECOND = 1000000L;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    
+    // width of timeline tiles in pixels
+    private static final int TILE_WIDTH = 256;
+    // rows are rendered in groups of this size, only groups close to the visible part of the panel are rendered
+    private static final int ROWS_PER_GROUP = 16;
+    
+    // progress is only shown for renders taking longer than this
+    private static final int PROGRESS_DELAY_MILLIS = 250;
+    private static final int PROGRESS_BAR_WIDTH = 120;
+    private static final int PROGRESS_BAR_HEIGHT = 10;
+    
+    /* 
+     * Rendering reads the recording and may take a long time, it is done on this thread 
+     * so the UI stays responsive. Since all reads are serialized by the FileReader anyway, 
+     * a single thread is sufficient.
+     */
+    private static final ExecutorService RENDER_THREAD = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            final Thread result = new Thread( r , "timeline-renderer" );
+            result.setDaemon( true );
+            return result;
+        }
+    });
+    
+    // tiles are rendered in parallel
+    private static final ForkJoinPool RASTER_POOL = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+    
+    private static final int[] LEGEND_RGB = new int[ LEGEND_ITEMS.size() ];
+    
+    static 
+    {
+        for ( int i = 0 ; i < LEGEND_RGB.length ; i++ ) {
+            LEGEND_RGB[i] = LEGEND_ITEMS.get( i ).color.getRGB();
+        }
+    }
+    
     private FileReader reader;
     private final HorizontalSelectionHelper<HiResInterval> intervalHelper;
 
@@ -64,6 +128,45 @@ public final class ThreadPanel extends JPanel
     private double scaleX;    
     
     private Dimension myPreferredSize = null;
+    
+    // incremented whenever the data changes without the view interval changing
+    private int dataGeneration;
+    // job currently rendering, only accessed by the EDT 
+    private RenderJob currentJob;
+    // last job that finished rendering, only accessed by the EDT
+    private RenderJob lastRendered;
+    // last job that failed, its view is not rendered again. Only accessed by the EDT
+    private RenderJob lastFailed;
+    
+    // rendered tiles, shared by all render jobs
+    private final TileCache tileCache = new TileCache();
+    
+    // widths of the labels in the thread name column, only accessed by the render thread
+    private final Map<Integer,Double> nameWidthsByThread = new HashMap<>();
+    private Font nameWidthsFont;
+    
+    // X range of the selection as painted by the last paintComponent() call, NULL if none was painted
+    private SelectedInterval paintedSelection;
+    
+    private final RenderStatistics renderStatistics = new RenderStatistics();
+    private boolean renderStatisticsVisible;
+    
+    // height of thread rows for barHeightFont
+    private Font barHeightFont;
+    private int barHeight;
+    
+    private final Timer progressTimer = new Timer( 100 , new ActionListener() {
+        
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+            if ( currentJob != null ) {
+                repaint();
+            } else {
+                progressTimer.stop();
+            }
+        }
+    });
 
     private final ComponentAdapter compAdaptor = new ComponentAdapter() 
     {
@@ -90,6 +193,8 @@ public final class ThreadPanel extends JPanel
     public void setFileReader(FileReader reader,HiResInterval interval) 
     {
     	this.reader = reader;
+    	dataGeneration++;
+    	tileCache.clear();
     	setInterval( interval.start , (long) Math.ceil( interval.getDurationInMilliseconds() ) );
     }
 
@@ -118,24 +223,51 @@ public final class ThreadPanel extends JPanel
     }        
 
     public void setInterval(HiResTimestamp start,long durationInMillis) {
+        final HiResInterval oldInterval = getInterval();
         this.intervalStart = start;
         this.intervalLengthInMillis = durationInMillis;
         updateScaleX();
         repaint();
+        firePropertyChange( INTERVAL_PROPERTY , oldInterval , getInterval() );
     }
 
     public void setIntervalLength(long lengthInMillis) {
+        final HiResInterval oldInterval = getInterval();
         this.intervalLengthInMillis = lengthInMillis;
         updateScaleX();
         repaint();            
+        firePropertyChange( INTERVAL_PROPERTY , oldInterval , getInterval() );
     }
 
     public void shiftIntervalByMillis(long deltaMillis) 
     {
+        final HiResInterval oldInterval = getInterval();
         intervalStart = intervalStart.plusMilliseconds( deltaMillis );
         repaint();
+        firePropertyChange( INTERVAL_PROPERTY , oldInterval , getInterval() );
     }
 
+    /**
+     * To be invoked after records have been appended to the recording.
+     * 
+     * If the end of the data was visible before, the view scrolls
+     * to keep the end of the data visible.
+     * 
+     * @param previousEnd end of the data before the records have been appended
+     * @param newEnd end of the data now
+     */
+    public void dataAppended(HiResTimestamp previousEnd,HiResTimestamp newEnd) 
+    {
+        final HiResInterval viewInterval = getInterval();
+        if ( viewInterval.containsEndInclusive( previousEnd ) && ! viewInterval.containsEndInclusive( newEnd ) ) {
+            intervalStart = newEnd.plusMilliseconds( -intervalLengthInMillis );
+        }
+        dataGeneration++;
+        tileCache.removeTilesEndingAfter( StatePyramid.toEpochNanos( previousEnd ) );
+        repaint();
+        firePropertyChange( INTERVAL_PROPERTY , viewInterval , getInterval() );
+    }
+    
     public long getIntervalLengthMillis() {
         return this.intervalLengthInMillis;
     }
@@ -158,41 +290,258 @@ public final class ThreadPanel extends JPanel
     @Override
     protected void paintComponent(Graphics g)
     {
+        final long paintStart = System.nanoTime();
         super.paintComponent(g);
 
         updateScaleX();
 
-        final HiResInterval viewInterval = getInterval();
-
-        Dimension newSize = null;
-        try 
+        // rendering happens in the background, until it is finished the last rendered image is shown
+        final Rectangle visible = getVisibleRect();
+        final int groupHeight = ( BAR_SPACING + getBarHeight() ) * ROWS_PER_GROUP;
+        // render one more group of rows above and below the visible ones so scrolling does not immediately show unrendered rows
+        final int firstGroup = Math.max( 0 , ( visible.y - Y_OFFSET ) / groupHeight - 1 );
+        final int lastGroup = Math.max( 0 , ( visible.y + visible.height - Y_OFFSET ) / groupHeight + 1 );
+        if ( lastRendered == null || ! lastRendered.isSameView( intervalStart , intervalLengthInMillis , getWidth() , dataGeneration , firstGroup , lastGroup ) ) 
         {
-            RenderingVisitor visitor = new RenderingVisitor( (Graphics2D) g );
-            visitor.render( reader );
-            newSize = visitor.getEstimatedSize();
-        } 
-        catch (IOException e) 
-        {
-            e.printStackTrace();
+            if ( ( currentJob == null || ! currentJob.isSameView( intervalStart , intervalLengthInMillis , getWidth() , dataGeneration , firstGroup , lastGroup ) ) &&
+                 ( lastFailed == null || ! lastFailed.isSameView( intervalStart , intervalLengthInMillis , getWidth() , dataGeneration , firstGroup , lastGroup ) ) ) 
+            {
+                startRendering( firstGroup , lastGroup );
+            }
+        }
+        if ( lastRendered != null ) {
+            paintImage( g , lastRendered );
         }
 
-        final SelectedInterval lastSelection = intervalHelper.getLastSelection();
-        if ( lastSelection != null ) 
+        // the selection is an overlay on top of the rendered image
+        paintedSelection = getSelectionBounds();
+        if ( paintedSelection != null ) {
+            intervalHelper.paintSelection( g , paintedSelection.xMin , paintedSelection.xMax , getCanvasHeight() );
+        }
+        
+        if ( currentJob != null ) {
+            paintProgress( g , currentJob );
+        }
+        
+        renderStatistics.addPaint( System.nanoTime() - paintStart );
+        if ( renderStatisticsVisible ) {
+            paintRenderStatistics( g );
+        }
+    }
+    
+    private void startRendering(int firstGroup,int lastGroup) 
+    {
+        if ( currentJob != null ) {
+            currentJob.cancel();
+        }
+        currentJob = new RenderJob( firstGroup , lastGroup , lastRendered );
+        currentJob.future = RENDER_THREAD.submit( currentJob );
+        progressTimer.start();
+    }
+    
+    private void renderingFinished(RenderJob job,boolean succeeded) 
+    {
+        if ( job != currentJob ) {
+            // superseded
+            return;
+        }
+        currentJob = null;
+        progressTimer.stop();
+        
+        if ( ! succeeded ) 
         {
-            HiResInterval selectedInterval = intervalHelper.getLastSelectionModelObject();
-            if ( selectedInterval != null && viewInterval.contains( selectedInterval.start ) && viewInterval.containsEndInclusive( selectedInterval.end ) )
-            {
-                int xmin = modelToView( selectedInterval.start);
-                int xmax = modelToView( selectedInterval.end);
-                intervalHelper.paintSelection( g , xmin,xmax,getCanvasHeight() );
-            }
+            // keep showing the last image
+            lastFailed = job;
+            repaint();
+            return;
         }
+        lastFailed = null;
+        lastRendered = job;
+        renderStatistics.addFrame( job.frame );
+        xOffset = job.layout.xOffset;
+        yOffset = job.layout.yOffset;
+        canvasHeight = job.layout.canvasHeight;
+        canvasMaxX = job.layout.canvasMaxX;
         
-        if ( newSize != null && ! newSize.equals( myPreferredSize ) ) 
+        final Dimension newSize = job.layout.getEstimatedSize();
+        if ( ! newSize.equals( myPreferredSize ) ) 
         {
             myPreferredSize = newSize;       
             revalidate();
         }
+        repaint();
+    }
+    
+    private SelectedInterval getSelectionBounds() 
+    {
+        if ( intervalHelper.getLastSelection() == null ) {
+            return null;
+        }
+        final HiResInterval viewInterval = getInterval();
+        final HiResInterval selectedInterval = intervalHelper.getLastSelectionModelObject();
+        if ( selectedInterval != null && viewInterval.contains( selectedInterval.start ) && viewInterval.containsEndInclusive( selectedInterval.end ) ) {
+            return new SelectedInterval( modelToView( selectedInterval.start ) , modelToView( selectedInterval.end ) );
+        }
+        return null;
+    }
+    
+    /**
+     * Repaints only those columns of the panel that change because the selection
+     * has been modified, the timeline itself is not rendered again.
+     */
+    public void repaintSelection() 
+    {
+        final SelectedInterval oldBounds = paintedSelection;
+        final SelectedInterval newBounds = getSelectionBounds();
+        if ( oldBounds == null && newBounds == null ) {
+            return;
+        }
+        if ( oldBounds == null || newBounds == null ) 
+        {
+            final SelectedInterval bounds = oldBounds != null ? oldBounds : newBounds;
+            repaintColumns( bounds.xMin , bounds.xMax );
+            return;
+        }
+        // columns between the old and the new position of each edge
+        repaintColumns( Math.min( oldBounds.xMin , newBounds.xMin ) , Math.max( oldBounds.xMin , newBounds.xMin ) );
+        repaintColumns( Math.min( oldBounds.xMax , newBounds.xMax ) , Math.max( oldBounds.xMax , newBounds.xMax ) );
+    }
+    
+    private void repaintColumns(int x0,int x1) 
+    {
+        if ( x0 != x1 ) {
+            repaint( x0 , 0 , x1 - x0 , getHeight() );
+        }
+    }
+    
+    private int getBarHeight() 
+    {
+        final Font font = getFont();
+        if ( barHeightFont == null || ! barHeightFont.equals( font ) ) 
+        {
+            barHeight = computeBarHeight( font );
+            barHeightFont = font;
+        }
+        return barHeight;
+    }
+    
+    private static int computeBarHeight(Font font) 
+    {
+        final Graphics2D metrics = createMetricsGraphics( font );
+        try {
+            final Rectangle2D stringBounds = metrics.getFontMetrics().getStringBounds("XYZ", metrics);
+            return (int) Math.ceil( stringBounds.getHeight()*1.5 );
+        } finally {
+            metrics.dispose();
+        }
+    }
+    
+    // font metrics are needed for the layout, before any image has been created 
+    private static Graphics2D createMetricsGraphics(Font font) 
+    {
+        final Graphics2D result = new BufferedImage( 1 , 1 , BufferedImage.TYPE_INT_RGB ).createGraphics();
+        result.setFont( font );
+        return result;
+    }
+    
+    private void paintImage(Graphics g,RenderJob job) 
+    {
+        g.drawImage( job.image , 0 , job.imageTop , null );
+        if ( job.isSameView( intervalStart , intervalLengthInMillis , getWidth() , dataGeneration ) ) {
+            return;
+        }
+        
+        // scale the timeline part of the outdated image to the current view interval
+        final double startMillis = ( StatePyramid.toEpochNanos( job.intervalStart ) - StatePyramid.toEpochNanos( intervalStart ) ) / (double) NANOS_PER_MILLISECOND;
+        final int dx0 = xOffset + (int) Math.round( startMillis * scaleX );
+        final int dx1 = xOffset + (int) Math.round( ( startMillis + job.intervalLengthInMillis ) * scaleX );
+        final int height = job.image.getHeight();
+        
+        final Graphics clipped = g.create();
+        try 
+        {
+            clipped.clipRect( xOffset , job.imageTop , canvasMaxX - xOffset , height );
+            clipped.setColor( getBackground() );
+            clipped.fillRect( xOffset , job.imageTop , canvasMaxX - xOffset , height );
+            clipped.drawImage( job.image , dx0 , job.imageTop , dx1 , job.imageTop + height , job.layout.xOffset , 0 , job.layout.x1 , height , null );
+        } 
+        finally {
+            clipped.dispose();
+        }
+    }
+    
+    /**
+     * Returns timings and counters of recently rendered frames.
+     * 
+     * @return
+     */
+    public RenderStatistics getRenderStatistics() {
+        return renderStatistics;
+    }
+    
+    public boolean isRenderStatisticsVisible() {
+        return renderStatisticsVisible;
+    }
+    
+    /**
+     * Enables or disables an on-screen display of the timings and counters of the last rendered frame.
+     * 
+     * @param visible
+     */
+    public void setRenderStatisticsVisible(boolean visible) 
+    {
+        this.renderStatisticsVisible = visible;
+        repaint();
+    }
+    
+    private void paintRenderStatistics(Graphics g) 
+    {
+        final RenderStatistics.Frame frame = renderStatistics.getLastFrame();
+        final List<String> lines = new ArrayList<>();
+        if ( frame != null ) 
+        {
+            lines.add( String.format( "frame %.1f ms, %d tiles" , frame.getTime( Phase.TOTAL ) / (double) NANOS_PER_MILLISECOND , frame.getTilesRendered() ) );
+            lines.add( String.format( "layout %.1f / read %.1f / draw %.1f ms" , frame.getTime( Phase.LAYOUT ) / (double) NANOS_PER_MILLISECOND , 
+                    frame.getTime( Phase.READ ) / (double) NANOS_PER_MILLISECOND , frame.getTime( Phase.DRAW ) / (double) NANOS_PER_MILLISECOND ) );
+            lines.add( String.format( "%d events, %d bytes, %d rects" , frame.getEventsVisited() , frame.getBytesRead() , frame.getRectsDrawn() ) );
+        }
+        lines.add( String.format( "paint %.1f ms" , renderStatistics.getLastPaintTime() / (double) NANOS_PER_MILLISECOND ) );
+        
+        final Rectangle visible = getVisibleRect();
+        final int lineHeight = g.getFontMetrics().getHeight();
+        int width = 0;
+        for ( String line : lines ) {
+            width = Math.max( width , g.getFontMetrics().stringWidth( line ) );
+        }
+        final int x = visible.x + 5;
+        final int y = visible.y + visible.height - 5 - lines.size() * lineHeight - 4;
+        g.setPaintMode();
+        g.setColor( new Color( 255 , 255 , 255 , 220 ) );
+        g.fillRect( x , y , width + 8 , lines.size() * lineHeight + 4 );
+        g.setColor( Color.BLACK );
+        g.drawRect( x , y , width + 8 , lines.size() * lineHeight + 4 );
+        for ( int i = 0 ; i < lines.size() ; i++ ) {
+            g.drawString( lines.get( i ) , x + 4 , y + 2 + ( i + 1 ) * lineHeight - g.getFontMetrics().getDescent() );
+        }
+    }
+    
+    private void paintProgress(Graphics g,RenderJob job) 
+    {
+        if ( System.currentTimeMillis() - job.startTime < PROGRESS_DELAY_MILLIS ) {
+            return;
+        }
+        final Rectangle visible = getVisibleRect();
+        final int x = visible.x + visible.width - RIGHT_BORDER - PROGRESS_BAR_WIDTH;
+        final int y = visible.y + 5;
+        g.setColor( Color.WHITE );
+        g.fillRect( x , y , PROGRESS_BAR_WIDTH , PROGRESS_BAR_HEIGHT );
+        g.setColor( Color.GRAY );
+        g.fillRect( x , y , (int) Math.round( PROGRESS_BAR_WIDTH * job.progress ) , PROGRESS_BAR_HEIGHT );
+        g.setColor( Color.BLACK );
+        g.drawRect( x , y , PROGRESS_BAR_WIDTH , PROGRESS_BAR_HEIGHT );
+        final String label = "Rendering...";
+        final Rectangle2D bounds = g.getFontMetrics().getStringBounds( label , g );
+        g.drawString( label , x - (int) Math.ceil( bounds.getWidth() ) - 5 , y + PROGRESS_BAR_HEIGHT );
     }
     
     private int modelToView(HiResTimestamp ts) 
@@ -218,23 +567,410 @@ public final class ThreadPanel extends JPanel
 		return canvasMaxX;
 	}
 
-    protected final class RenderingVisitor extends FileVisitor 
+    /**
+     * Renders the current view into an image, on the render thread.
+     * 
+     * <p>The timeline is composed of tiles that are kept in the panel's {@link TileCache}
+     * so that they can be reused when the view is scrolled or returns to a previous scale.</p>
+     */
+    protected final class RenderJob implements Runnable 
+    {
+        // copy of the panel's state when the job was created
+        public final FileReader reader = ThreadPanel.this.reader;
+        public final HiResTimestamp intervalStart = ThreadPanel.this.intervalStart;
+        public final long intervalLengthInMillis = ThreadPanel.this.intervalLengthInMillis;
+        public final int width = getWidth();
+        public final int dataGeneration = ThreadPanel.this.dataGeneration;
+        // range of row groups to render
+        public final int firstGroup;
+        public final int lastGroup;
+        // job that rendered the image currently on screen, may be NULL. Cleared
+        // after rendering so that jobs don't keep each other's images alive
+        private RenderJob previous;
+        private final Font font = getFont();
+        private final Color background = getBackground();
+        
+        public final long startTime = System.currentTimeMillis();
+        public final RenderStatistics.Frame frame = new RenderStatistics.Frame();
+        public Future<?> future;
+        
+        private volatile boolean cancelled;
+        public volatile double progress;
+        private final AtomicInteger renderedTiles = new AtomicInteger();
+        private volatile int tileCount;
+        
+        // results
+        public BufferedImage image;
+        // Y coordinate of the image's top within the panel 
+        public int imageTop;
+        public Layout layout;
+        // X coordinate of the view's left edge, measured in pixels from the start of the recording
+        private long viewX;
+        private boolean tilesRendered;
+        
+        public RenderJob(int firstGroup,int lastGroup,RenderJob previous)
+        {
+            this.firstGroup = firstGroup;
+            this.lastGroup = lastGroup;
+            this.previous = previous;
+        }
+        
+        public boolean isSameView(HiResTimestamp intervalStart,long intervalLengthInMillis,int width,int dataGeneration) 
+        {
+            return this.intervalStart.equals( intervalStart ) && this.intervalLengthInMillis == intervalLengthInMillis && 
+                   this.width == width && this.dataGeneration == dataGeneration;
+        }
+        
+        public boolean isSameView(HiResTimestamp intervalStart,long intervalLengthInMillis,int width,int dataGeneration,int firstGroup,int lastGroup) 
+        {
+            return isSameView( intervalStart , intervalLengthInMillis , width , dataGeneration ) && 
+                   this.firstGroup == firstGroup && this.lastGroup == lastGroup;
+        }
+        
+        public void cancel() 
+        {
+            cancelled = true;
+            future.cancel( false );
+        }
+        
+        public void checkCancelled() 
+        {
+            if ( cancelled ) {
+                throw new CancellationException();
+            }
+        }
+        
+        @Override
+        public void run()
+        {
+            boolean succeeded = false;
+            try 
+            {
+                if ( width > 0 ) {
+                    render();
+                    succeeded = true;
+                }
+            } 
+            catch(CancellationException e) {
+                // nothing to do
+            }
+            catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+            finally 
+            {
+                previous = null;
+                // the panel needs to know about failed jobs as well, otherwise it keeps waiting for them
+                if ( ! cancelled ) 
+                {
+                    final boolean result = succeeded;
+                    SwingUtilities.invokeLater( new Runnable() {
+                        
+                        @Override
+                        public void run()
+                        {
+                            renderingFinished( RenderJob.this , result );
+                        }
+                    });
+                }
+            }
+        }
+        
+        private void render() throws IOException
+        {
+            final long runStart = System.nanoTime();
+            final Graphics2D metrics = createMetricsGraphics( font );
+            try {
+                layout = new Layout( this , metrics );
+            } finally {
+                metrics.dispose();
+            }
+            frame.addTime( Phase.LAYOUT , System.nanoTime() - runStart );
+            
+            // only render the requested rows, the legend is part of the image if the first group is rendered
+            final Dimension size = layout.getEstimatedSize();
+            final int last = Math.min( lastGroup , layout.getGroupCount() - 1 );
+            imageTop = firstGroup == 0 || firstGroup > last ? 0 : layout.getGroupY( firstGroup );
+            final int imageBottom = last == layout.getGroupCount() - 1 ? size.height : layout.getGroupY( last + 1 );
+            
+            final BufferedImage result = new BufferedImage( size.width , Math.max( 1 , imageBottom - imageTop ) , BufferedImage.TYPE_INT_RGB );
+            final Graphics2D graphics = result.createGraphics();
+            try 
+            {
+                graphics.setFont( font );
+                graphics.setColor( background );
+                graphics.fillRect( 0 , 0 , result.getWidth() , result.getHeight() );
+                graphics.translate( 0 , -imageTop );
+                final long layoutStart = System.nanoTime();
+                layout.render( graphics , firstGroup , last );
+                frame.addTime( Phase.LAYOUT , System.nanoTime() - layoutStart );
+                renderTiles( graphics , firstGroup , last );
+            } 
+            finally {
+                graphics.dispose();
+            }
+            image = result;
+            frame.addTime( Phase.TOTAL , System.nanoTime() - runStart );
+        }
+        
+        private void renderTiles(Graphics2D graphics,int firstGroup,int lastGroup) throws IOException 
+        {
+            final HiResInterval dataInterval = reader.getInterval();
+            if ( firstGroup > lastGroup || dataInterval == null ) {
+                return;
+            }
+            
+            // tiles are numbered starting at the beginning of the recording so they stay the same while scrolling
+            final long origin = StatePyramid.toEpochNanos( dataInterval.start );
+            final long tileNanos = Math.max( 1 , (long) ( TILE_WIDTH * NANOS_PER_MILLISECOND / layout.scaleX ) );
+            final long viewStart = StatePyramid.toEpochNanos( intervalStart );
+            final long viewEnd = viewStart + intervalLengthInMillis * NANOS_PER_MILLISECOND;
+            final long firstTile = floorDiv( viewStart - origin , tileNanos );
+            final long lastTile = floorDiv( viewEnd - origin , tileNanos );
+            
+            // tiles are positioned relative to the start of the recording so that the image
+            // of the previous view lines up with them when it gets shifted by whole pixels
+            viewX = toPixels( viewStart - origin );
+            final int left = layout.xOffset;
+            final int right = Math.min( layout.x1 , layout.canvasMaxX );
+            int stripX0 = left;
+            int stripX1 = right;
+            long drawStart = System.nanoTime();
+            if ( canReuse( previous ) ) 
+            {
+                final long dx = previous.viewX - viewX;
+                if ( Math.abs( dx ) < right - left ) 
+                {
+                    final Graphics2D clipped = (Graphics2D) graphics.create();
+                    try 
+                    {
+                        clipped.clipRect( left , Y_OFFSET , right - left , layout.canvasHeight + 1 );
+                        clipped.drawImage( previous.image , (int) dx , previous.imageTop , null );
+                    } 
+                    finally {
+                        clipped.dispose();
+                    }
+                    // only the newly exposed strip needs to be rendered
+                    if ( dx >= 0 ) {
+                        stripX1 = left + (int) dx;
+                    } else {
+                        stripX0 = right + (int) dx;
+                    }
+                }
+            }
+            tilesRendered = true;
+            frame.addTime( Phase.DRAW , System.nanoTime() - drawStart );
+            
+            // render missing tiles in parallel
+            final List<Tile> tiles = new ArrayList<>();
+            final List<Tile> missing = new ArrayList<>();
+            for ( int group = firstGroup ; group <= lastGroup ; group++ ) 
+            {
+                for ( long tile = firstTile ; tile <= lastTile ; tile++ ) 
+                {
+                    final int x = left + (int) ( toPixels( tile * tileNanos ) - viewX );
+                    if ( x >= stripX1 || x + TILE_WIDTH + 1 <= stripX0 ) {
+                        continue;
+                    }
+                    final Tile t = new Tile( this , group , origin + tile * tileNanos , tileNanos );
+                    t.x = x;
+                    t.key = new TileCache.Key( layout.scaleX , tile , t.threadIds , layout.barHeight );
+                    t.image = tileCache.get( t.key );
+                    tiles.add( t );
+                    if ( t.image == null ) {
+                        missing.add( t );
+                    }
+                }
+            }
+            
+            renderedTiles.set( tiles.size() - missing.size() );
+            tileCount = tiles.size();
+            for ( Future<BufferedImage> future : RASTER_POOL.invokeAll( missing ) ) 
+            {
+                try {
+                    future.get();
+                } 
+                catch (InterruptedException e) 
+                {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException();
+                } 
+                catch (ExecutionException e) 
+                {
+                    if ( e.getCause() instanceof IOException ) {
+                        throw (IOException) e.getCause();
+                    }
+                    if ( e.getCause() instanceof RuntimeException ) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException( e.getCause() );
+                }
+            }
+            checkCancelled();
+            
+            drawStart = System.nanoTime();
+            final Graphics2D clipped = (Graphics2D) graphics.create();
+            try 
+            {
+                clipped.clipRect( stripX0 , Y_OFFSET , stripX1 - stripX0 , layout.canvasHeight + 1 );
+                for ( Tile tile : tiles ) {
+                    clipped.drawImage( tile.image , tile.x , tile.y , null );
+                }
+            } 
+            finally {
+                clipped.dispose();
+            }
+            frame.addTime( Phase.DRAW , System.nanoTime() - drawStart );
+        }
+        
+        /**
+         * Checks whether the image of another job can be shifted to become part of this job's image.
+         * 
+         * @param other
+         * @return
+         */
+        private boolean canReuse(RenderJob other) 
+        {
+            return other != null && other.image != null && other.tilesRendered && 
+                   other.reader == reader && other.dataGeneration == dataGeneration &&
+                   other.firstGroup == firstGroup && other.lastGroup == lastGroup && other.imageTop == imageTop && 
+                   other.layout.scaleX == layout.scaleX && other.layout.barHeight == layout.barHeight && 
+                   other.layout.xOffset == layout.xOffset && other.layout.x1 == layout.x1 && other.layout.canvasMaxX == layout.canvasMaxX &&
+                   other.layout.threadIds.equals( layout.threadIds ) && other.background.equals( background );
+        }
+        
+        private long toPixels(long nanos) {
+            return Math.round( nanos / (double) NANOS_PER_MILLISECOND * layout.scaleX );
+        }
+        
+        private void tileRendered(Tile tile) 
+        {
+            tileCache.put( tile.key , tile.image , tile.start + tile.length );
+            progress = renderedTiles.incrementAndGet() / (double) tileCount;
+        }
+    }
+    
+    /**
+     * A tile to render, tiles are rendered in parallel on the {@link #RASTER_POOL}.
+     */
+    protected static final class Tile implements Callable<BufferedImage> 
+    {
+        private final RenderJob job;
+        public final List<Integer> threadIds;
+        // Y coordinate of the tile's top within the panel
+        public final int y;
+        // time span covered by the tile (nanoseconds since the epoch)
+        public final long start;
+        public final long length;
+        
+        public TileCache.Key key;
+        public BufferedImage image;
+        // X coordinate of the tile's left edge within the panel
+        public int x;
+        
+        public Tile(RenderJob job,int group,long start,long length)
+        {
+            this.job = job;
+            this.threadIds = job.layout.getGroupThreadIds( group );
+            this.y = job.layout.getGroupY( group );
+            this.start = start;
+            this.length = length;
+        }
+        
+        @Override
+        public BufferedImage call() throws IOException
+        {
+            job.checkCancelled();
+            
+            final long tileStart = System.nanoTime();
+            // tiles overlap by one pixel to hide rounding errors when they are put together
+            final BufferedImage result = new BufferedImage( TILE_WIDTH + 1 , threadIds.size() * job.layout.rowHeight , BufferedImage.TYPE_INT_RGB );
+            final int[] pixels = ( (DataBufferInt) result.getRaster().getDataBuffer() ).getData();
+            Arrays.fill( pixels , job.background.getRGB() );
+            final RenderingVisitor visitor = new RenderingVisitor( job , pixels , result.getWidth() , threadIds , y , start , length );
+            for ( int threadId : threadIds ) {
+                visitor.fill( job.layout.threadYOffsetMap.get( threadId ) - y , 0 , result.getWidth() , LEGENDITEM_DEAD.color.getRGB() );
+            }
+            visitor.render();
+            
+            job.frame.addTime( Phase.DRAW , System.nanoTime() - tileStart - visitor.readNanos );
+            job.frame.addEventsVisited( visitor.eventsVisited );
+            job.frame.addRectsDrawn( visitor.rectsDrawn );
+            job.frame.addTilesRendered( 1 );
+            image = result;
+            job.tileRendered( this );
+            return result;
+        }
+    }
+    
+    private static long floorDiv(long value,long divisor) {
+        return value >= 0 ? value / divisor : -( ( -value + divisor - 1 ) / divisor );
+    }
+    
+    private static HiResTimestamp toTimestamp(long epochNanos) {
+        return new HiResTimestamp( epochNanos / NANOS_PER_SECOND , epochNanos % NANOS_PER_SECOND , false );
+    }
+    
+    /**
+     * Returns the width of the longest label in the thread name column.
+     * 
+     * <p>Thread names never change, so labels are only measured when threads appear for the first time.</p>
+     */
+    private double getLongestNameWidth(List<Integer> threadIds,Map<Integer,String> threadNamesByID,Graphics2D metrics)
+    {
+        if ( ! metrics.getFont().equals( nameWidthsFont ) ) 
+        {
+            nameWidthsByThread.clear();
+            nameWidthsFont = metrics.getFont();
+        }
+        double result = 0;
+        for ( int threadId : threadIds ) 
+        {
+            Double width = nameWidthsByThread.get( threadId );
+            if ( width == null ) 
+            {
+                final String threadName = threadNamesByID.get(threadId)+" ("+threadId+")";
+                final Rectangle2D stringBounds = metrics.getFontMetrics().getStringBounds( threadName , metrics);
+                width = stringBounds.getWidth();
+                nameWidthsByThread.put( threadId , width );
+            }
+            result = Math.max( result , width );
+        }
+        return result;
+    }
+    
+    /**
+     * Positions of thread rows and legend for a view.
+     */
+    protected final class Layout 
     {
-        private final Graphics2D graphics;
-        private final Map<Integer,Integer> threadYOffsetMap=new HashMap<>();
-        private final int x1;
-        private final int BAR_HEIGHT;
-        private final Set<Integer> aliveThreadIds;
+        public final Map<Integer,Integer> threadYOffsetMap=new HashMap<>();
+        public final List<Integer> threadIds;
+        private final Map<Integer, String> threadNamesByID;
+        private final Graphics2D metrics;
+        public final int x1;
+        public final int barHeight;
+        public final int rowHeight;
+        
+        public final int width;
+        public final double scaleX;
+        public final int xOffset;
+        public final int yOffset;
+        public final int canvasMaxX;
+        public final int canvasHeight;
+        private final Dimension estimatedSize;
 
-        public RenderingVisitor(Graphics2D graphics) 
+        public Layout(RenderJob job,Graphics2D metrics) 
         {
-            this.graphics  = graphics;
-            HiResInterval interval =getInterval();
-            updateScaleX();
+            this.metrics  = metrics;
+            this.width = job.width;
+            this.scaleX = (width - X_OFFSET - RIGHT_BORDER) / (double) job.intervalLengthInMillis;
+            
+            final FileReader reader = job.reader;
+            HiResInterval interval = new HiResInterval( job.intervalStart , job.intervalStart.plusMilliseconds( job.intervalLengthInMillis ) );
 
-            final Map<Integer, String> threadNamesByID = reader.getThreadNamesByID();
-            aliveThreadIds = reader.getAliveThreadsInInterval( interval ) ;
-            final List<Integer> threadIds = new ArrayList<>( aliveThreadIds);
+            threadNamesByID = reader.getThreadNamesByID();
+            threadIds = new ArrayList<>( reader.getAliveThreadsInInterval( interval ) );
 
             // sort ascending by thread ID first, then ascending by name
             Collections.sort( threadIds , new Comparator<Integer>() {
@@ -250,62 +986,63 @@ public final class ThreadPanel extends JPanel
                 }
             });
 
-            double longestNameWidth = 0;
-            for ( int threadId : threadIds ) {
-                final String threadName = threadNamesByID.get(threadId)+" ("+threadId+")";
-                Rectangle2D stringBounds = graphics.getFontMetrics().getStringBounds( threadName , graphics);
-                if ( stringBounds.getWidth() > longestNameWidth ) {
-                    longestNameWidth = stringBounds.getWidth();
-                }
-            }
+            final double longestNameWidth = getLongestNameWidth( threadIds , threadNamesByID , metrics );
 
             xOffset = (int) Math.round( X_OFFSET+longestNameWidth*1.1 );
             yOffset = Y_OFFSET;
 
-            Rectangle2D stringBounds = graphics.getFontMetrics().getStringBounds("XYZ", graphics);
-            BAR_HEIGHT = (int) Math.ceil( stringBounds.getHeight()*1.5 );
+            barHeight = computeBarHeight( metrics.getFont() );
+            rowHeight = BAR_SPACING + barHeight;
 
             // assign Y coordinates
-            graphics.setColor(LEGENDITEM_DEAD.color);
             int y = Y_OFFSET;
-            canvasMaxX = getWidth() - RIGHT_BORDER;
-            final int barWidth = getWidth() - xOffset - RIGHT_BORDER;
+            canvasMaxX = width - RIGHT_BORDER;
             for ( int threadId : threadIds ) 
             {
-                final String threadName = threadNamesByID.get(threadId)+" ("+threadId+")";
-
-                final Point p = LegendItem.centerTextVertically(threadName,0,y+(BAR_HEIGHT/4),BAR_HEIGHT,graphics);
-                graphics.drawString( threadName, p.x , p.y );
-
                 threadYOffsetMap.put( threadId , y );
-                graphics.fillRect( xOffset , y , barWidth , BAR_HEIGHT );
-                y += BAR_SPACING+BAR_HEIGHT;
+                y += BAR_SPACING+barHeight;
             }
             
             if ( threadIds.isEmpty() ) {
             	canvasHeight = 0;
             } else {
-            	canvasHeight = (BAR_SPACING+BAR_HEIGHT)*(threadIds.size()-1)+BAR_HEIGHT-1;
+            	canvasHeight = (BAR_SPACING+barHeight)*(threadIds.size()-1)+barHeight-1;
             }
-            x1 = xOffset + (int) Math.round( intervalLengthInMillis * scaleX );
-            renderLegend(true);
+            x1 = xOffset + (int) Math.round( job.intervalLengthInMillis * scaleX );
+            estimatedSize = estimateSize();
+        }
+        
+        public Dimension getEstimatedSize() {
+            return estimatedSize;
+        }
+        
+        public int getGroupCount() {
+            return ( threadIds.size() + ROWS_PER_GROUP - 1 ) / ROWS_PER_GROUP;
+        }
+        
+        public int getGroupY(int group) {
+            return Y_OFFSET + group * ROWS_PER_GROUP * rowHeight;
         }
         
-        public Dimension getEstimatedSize() 
+        public List<Integer> getGroupThreadIds(int group) {
+            return threadIds.subList( group * ROWS_PER_GROUP , Math.min( threadIds.size() , ( group + 1 ) * ROWS_PER_GROUP ) );
+        }
+        
+        private Dimension estimateSize() 
         {
             int height = Y_OFFSET;
-            if ( ! aliveThreadIds.isEmpty() ) 
+            if ( ! threadIds.isEmpty() ) 
             {
-                height += BAR_HEIGHT+(aliveThreadIds.size()-1)*(BAR_SPACING+BAR_HEIGHT);
+                height += barHeight+(threadIds.size()-1)*(BAR_SPACING+barHeight);
             }
-            final Dimension legendBounds = renderLegend(false);
+            final Dimension legendBounds = renderLegend(metrics,false);
             
-            final int width  = (int) Math.max( getWidth() , legendBounds.width );
+            final int width  = (int) Math.max( this.width , legendBounds.width );
             height += legendBounds.height;
             return new Dimension( width , height ); // TODO: +200 is just a hack for testing purposes
         }
 
-        private Dimension renderLegend(boolean draw) 
+        private Dimension renderLegend(Graphics2D graphics,boolean draw) 
         {
             int x = 5;
             int y = 10;
@@ -322,31 +1059,204 @@ public final class ThreadPanel extends JPanel
             return new Dimension(5+x , LEGEND_HEIGHT );
         }
 
-        public void render(FileReader reader) throws IOException {
+        /**
+         * Renders thread names and legend.
+         * 
+         * @param graphics
+         * @param firstGroup first group of rows to render names for
+         * @param lastGroup last group of rows to render names for
+         */
+        public void render(Graphics2D graphics,int firstGroup,int lastGroup) 
+        {
+            graphics.setColor(LEGENDITEM_DEAD.color);
+            final int end = Math.min( threadIds.size() , ( lastGroup + 1 ) * ROWS_PER_GROUP );
+            for ( int threadId : threadIds.subList( Math.min( end , firstGroup * ROWS_PER_GROUP ) , end ) ) 
+            {
+                final String threadName = threadNamesByID.get(threadId)+" ("+threadId+")";
+                final int y = threadYOffsetMap.get( threadId );
 
-            updateScaleX();
+                final Point p = LegendItem.centerTextVertically(threadName,0,y+(barHeight/4),barHeight,graphics);
+                graphics.drawString( threadName, p.x , p.y );
+            }
+            renderLegend(graphics,true);
+        }
+    }
+
+    /**
+     * Renders the thread states within a tile.
+     * 
+     * <p>Since reading from the recording is serialized by the {@link FileReader}, events are 
+     * only accumulated per pixel while reading and drawn after reading has finished. This way 
+     * tiles can be drawn in parallel.</p>
+     */
+    protected static final class RenderingVisitor extends FileVisitor 
+    {
+        private final RenderJob job;
+        private final Layout layout;
+        private final int[] pixels;
+        private final int width;
+        private final List<Integer> threadIds;
+        private final Map<Integer,Integer> rowsByThreadId = new HashMap<>();
+        // Y coordinate of the tile's top within the panel 
+        private final int y;
+        private final HiResInterval interval;
+        private final long intervalStart;
+        private final long intervalLength;
+        
+        private StateCoalescer coalescer;
+        
+        // statistics
+        public long readNanos;
+        public long eventsVisited;
+        public long rectsDrawn;
+        
+        /**
+         * 
+         * @param job
+         * @param pixels RGB pixels of the tile
+         * @param width width of the tile in pixels
+         * @param threadIds threads to render
+         * @param y Y coordinate of the tile's top within the panel
+         * @param intervalStart start of the tile (nanoseconds since the epoch)
+         * @param intervalLength length of the tile in nanoseconds
+         */
+        public RenderingVisitor(RenderJob job,int[] pixels,int width,List<Integer> threadIds,int y,long intervalStart,long intervalLength) 
+        {
+            this.job = job;
+            this.layout = job.layout;
+            this.pixels = pixels;
+            this.width = width;
+            this.threadIds = threadIds;
+            for ( int i = 0 ; i < threadIds.size() ; i++ ) {
+                rowsByThreadId.put( threadIds.get( i ) , i );
+            }
+            this.y = y;
+            this.interval = new HiResInterval( toTimestamp( intervalStart ) , toTimestamp( intervalStart + intervalLength ) );
+            this.intervalStart = intervalStart;
+            this.intervalLength = intervalLength;
+        }
+        
+        public void render() throws IOException 
+        {
+            // when zoomed out, render summaries instead of individual events. The summaries must be
+            // obtained without locking the reader as the reader gets locked while they are created
+            final StatePyramid pyramid = job.reader.getStatePyramid();
+            final int level = pyramid != null ? pyramid.getLevel( NANOS_PER_MILLISECOND / layout.scaleX ) : -1;
+            // the reader is locked here so that time spent waiting for other threads to finish reading is not counted
+            synchronized( job.reader ) 
+            {
+                final long readStart = System.nanoTime();
+                final long bytesRead = job.reader.getBytesRead();
+                
+                if ( level == -1 ) 
+                {
+                    // only records of these threads get decoded
+                    coalescer = new StateCoalescer( threadIds.size() , width , NANOS_PER_MILLISECOND / layout.scaleX );
+                    job.reader.visit( this , interval , rowsByThreadId.keySet() );
+                }
+                
+                readNanos = System.nanoTime() - readStart;
+                job.frame.addTime( Phase.READ , readNanos );
+                job.frame.addBytesRead( job.reader.getBytesRead() - bytesRead );
+            }
             
-            final HiResInterval visibleInterval = new HiResInterval(intervalStart , intervalStart.plusMilliseconds( intervalLengthInMillis ) );
-            reader.visit( this , visibleInterval , aliveThreadIds );
+            if ( level != -1 ) {
+                render( pyramid , level );
+                return;
+            }
+            
+            coalescer.finish( intervalLength );
+            
+            // adjacent pixels with the same state are drawn as one span
+            final int[] states = new int[ width ];
+            for ( int row = 0 ; row < threadIds.size() ; row++ ) 
+            {
+                job.checkCancelled();
+                coalescer.getDominantStates( row , states );
+                final int y0 = layout.threadYOffsetMap.get( threadIds.get( row ) ) - y;
+                int runStart = 0;
+                for ( int x = 1 ; x <= width ; x++ ) 
+                {
+                    if ( x < width && states[x] == states[runStart] ) {
+                        continue;
+                    }
+                    if ( states[runStart] != StatePyramid.NO_STATE ) {
+                        fill( y0 , runStart , x , LEGEND_RGB[ states[runStart] ] );
+                    }
+                    runStart = x;
+                }
+            }
+        }
+        
+        /**
+         * Fills part of a thread's bar.
+         * 
+         * @param y0 Y coordinate of the bar within the tile
+         * @param x0 first pixel to fill
+         * @param x1 pixel after the last one to fill
+         * @param rgb
+         */
+        public void fill(int y0,int x0,int x1,int rgb) 
+        {
+            rectsDrawn++;
+            for ( int line = y0 ; line < y0 + layout.barHeight ; line++ ) {
+                Arrays.fill( pixels , line * width + x0 , line * width + x1 , rgb );
+            }
+        }
+        
+        private void render(StatePyramid pyramid,int level) 
+        {
+            final long bucketWidth = pyramid.getBucketWidth( level );
+            final long viewStart = intervalStart - pyramid.getOrigin();
+            final long viewEnd = viewStart + intervalLength;
+            if ( viewEnd < 0 ) {
+                return;
+            }
+            final int firstBucket = (int) ( Math.max( 0 , viewStart ) / bucketWidth );
+            final int lastBucket = (int) Math.min( pyramid.getBucketCount( level ) - 1 , viewEnd / bucketWidth );
+            if ( lastBucket < firstBucket ) {
+                return;
+            }
+            
+            final byte[] states = new byte[ lastBucket - firstBucket + 1 ];
+            for ( int threadId : threadIds ) 
+            {
+                job.checkCancelled();
+                pyramid.getDominantStates( threadId , level , firstBucket , states );
+                final int y0 = layout.threadYOffsetMap.get( threadId ) - y;
+                
+                // adjacent buckets with the same state are drawn as one rectangle
+                int runStart = 0;
+                for ( int i = 1 ; i <= states.length ; i++ ) 
+                {
+                    if ( i < states.length && states[i] == states[runStart] ) {
+                        continue;
+                    }
+                    if ( states[runStart] != StatePyramid.NO_STATE ) 
+                    {
+                        final int x0 = Math.max( 0 , toViewX( ( firstBucket + runStart ) * bucketWidth - viewStart ) );
+                        final int x2 = Math.min( width , toViewX( ( firstBucket + i ) * bucketWidth - viewStart ) );
+                        if ( x2 > x0 ) {
+                            fill( y0 , x0 , x2 , LEGEND_RGB[ states[runStart] ] );
+                        }
+                    }
+                    runStart = i;
+                }
+            }
+        }
+        
+        private int toViewX(long nanosSinceTileStart) {
+            return (int) Math.round( ( nanosSinceTileStart / (double) NANOS_PER_MILLISECOND ) * layout.scaleX );
         }
 
         @Override
         public void visit(ThreadEvent event) 
         {
-            final int y0 = threadYOffsetMap.get( event.threadId );
-            final double durationMillis = HiResInterval.getDurationInMilliseconds( intervalStart , event.getTimestamp() );
-            int x0 = xOffset + (int) Math.round( durationMillis * scaleX);
-
-            final Color color = UIConstants.getLegendItemForEvent( event ).color;
-            graphics.setColor( color );
-            int barWidth = x1 - x0;
-            if ( (x0 + barWidth) >  canvasMaxX ) {
-            	barWidth = canvasMaxX - x0;
-            }
-			graphics.fillRect( x0 ,y0 , barWidth , BAR_HEIGHT );
-            if ( x0 < 0 || x1 < 0 || (x1-x0) < 0 ) {
-                System.out.println("ERROR: rendering: "+x0+" -"+x1+", len: "+(x1-x0)+" , durationMillis: "+durationMillis+" , thread: "+event.threadId+", timestamp: "+event.getTimestamp());
-            }
+            job.checkCancelled();
+            
+            eventsVisited++;
+            final long nanos = StatePyramid.toEpochNanos( event.timestampSeconds , event.timestampNanos ) - intervalStart;
+            coalescer.stateChanged( rowsByThreadId.get( event.threadId ) , nanos , StatePyramid.getState( event ) );
         }
     }
     
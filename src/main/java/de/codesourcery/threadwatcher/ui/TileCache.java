@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher.ui;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Memory-bounded cache of rendered timeline tiles with least-recently-used eviction.
+ * 
+ * <p>A tile shows the rows of all threads for a fixed time span at a given scale, tiles
+ * are numbered consecutively starting at the beginning of the recording.</p>
+ * 
+ * <p>Instances are thread-safe.</p>
+ */
+public final class TileCache 
+{
+    public static final long DEFAULT_MAX_BYTES = 64*1024*1024;
+    
+    private final long maxBytes;
+    private long sizeInBytes;
+    
+    // iteration order is least-recently accessed first
+    private final LinkedHashMap<Key,Entry> tiles = new LinkedHashMap<>(16,0.75f,true);
+    
+    public static final class Key 
+    {
+        public final double scaleX;
+        public final long tileIndex;
+        public final List<Integer> threadIds;
+        public final int barHeight;
+        
+        /**
+         * 
+         * @param scaleX pixels per millisecond
+         * @param tileIndex
+         * @param threadIds IDs of the threads in the order their rows are displayed
+         * @param barHeight
+         */
+        public Key(double scaleX, long tileIndex, List<Integer> threadIds, int barHeight)
+        {
+            if (threadIds == null) {
+                throw new IllegalArgumentException("threadIds must not be NULL.");
+            }
+            this.scaleX = scaleX;
+            this.tileIndex = tileIndex;
+            this.threadIds = new ArrayList<>( threadIds );
+            this.barHeight = barHeight;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if ( obj instanceof Key ) 
+            {
+                final Key other = (Key) obj;
+                return Double.compare( scaleX , other.scaleX ) == 0 && tileIndex == other.tileIndex && 
+                       barHeight == other.barHeight && threadIds.equals( other.threadIds );
+            }
+            return false;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            final long bits = Double.doubleToLongBits( scaleX );
+            int result = (int) ( bits ^ ( bits >>> 32 ) );
+            result = 31 * result + (int) ( tileIndex ^ ( tileIndex >>> 32 ) );
+            result = 31 * result + barHeight;
+            return 31 * result + threadIds.hashCode();
+        }
+        
+        @Override
+        public String toString() {
+            return "Tile #"+tileIndex+" @ "+scaleX+" px/ms";
+        }
+    }
+    
+    private static final class Entry 
+    {
+        public final BufferedImage image;
+        public final long endNanos;
+        
+        public Entry(BufferedImage image, long endNanos)
+        {
+            this.image = image;
+            this.endNanos = endNanos;
+        }
+        
+        public long getSizeInBytes() {
+            // images are assumed to use 32 bits per pixel
+            return image.getWidth() * (long) image.getHeight() * 4;
+        }
+    }
+    
+    public TileCache() {
+        this( DEFAULT_MAX_BYTES );
+    }
+    
+    public TileCache(long maxBytes) 
+    {
+        if ( maxBytes <= 0 ) {
+            throw new IllegalArgumentException("maxBytes must be > 0");
+        }
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * 
+     * @param key
+     * @return tile or <code>null</code> if the tile is not cached
+     */
+    public synchronized BufferedImage get(Key key) 
+    {
+        final Entry entry = tiles.get( key );
+        return entry != null ? entry.image : null;
+    }
+    
+    /**
+     * Adds a tile, evicting the least-recently used tiles if necessary.
+     * 
+     * The most recently added tile is always kept, even if it exceeds the memory limit on its own.
+     * 
+     * @param key
+     * @param image
+     * @param endNanos end of the time span covered by the tile (nanoseconds since the epoch)
+     */
+    public synchronized void put(Key key,BufferedImage image,long endNanos) 
+    {
+        if (image == null) {
+            throw new IllegalArgumentException("image must not be NULL.");
+        }
+        final Entry entry = new Entry( image , endNanos );
+        final Entry existing = tiles.put( key , entry );
+        if ( existing != null ) {
+            sizeInBytes -= existing.getSizeInBytes();
+        }
+        sizeInBytes += entry.getSizeInBytes();
+        
+        for ( Iterator<Entry> it = tiles.values().iterator() ; sizeInBytes > maxBytes && tiles.size() > 1 ; ) 
+        {
+            final Entry eldest = it.next();
+            it.remove();
+            sizeInBytes -= eldest.getSizeInBytes();
+        }
+    }
+    
+    /**
+     * Removes tiles that cover time after a given timestamp, for
+     * when records have been appended to the recording.
+     * 
+     * @param epochNanos
+     */
+    public synchronized void removeTilesEndingAfter(long epochNanos) 
+    {
+        for ( Iterator<Entry> it = tiles.values().iterator() ; it.hasNext() ; ) 
+        {
+            final Entry entry = it.next();
+            if ( entry.endNanos > epochNanos ) 
+            {
+                it.remove();
+                sizeInBytes -= entry.getSizeInBytes();
+            }
+        }
+    }
+    
+    public synchronized void clear() 
+    {
+        tiles.clear();
+        sizeInBytes = 0;
+    }
+    
+    public synchronized int size() {
+        return tiles.size();
+    }
+    
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+}
@@ -63,6 +63,27 @@ public class UIConstants
         LEGENDITEM_SLEEPING = addLegendItem("Sleeping" , COLOR_SLEEPING);
     }
     
+    // all bits that determine the legend item are either among the lowest 11 bits of a
+    // state mask or the SUSPENDED bit, which is moved right above them for the table lookup
+    private static final int LOW_STATE_BITS = 0x7ff;
+    private static final int SUSPENDED_BIT = JVMTIThreadState.SUSPENDED.getBitMask();
+    private static final int SUSPENDED_SHIFT = Integer.numberOfTrailingZeros( SUSPENDED_BIT ) - 11;
+    
+    private static final byte[] INDEX_BY_STATE_MASK = new byte[ 1 << 12 ];
+    private static final int INDEX_RUNNABLE;
+    private static final int INDEX_DEAD;
+    
+    static 
+    {
+        for ( int i = 0 ; i < INDEX_BY_STATE_MASK.length ; i++ ) 
+        {
+            final int state = ( i & LOW_STATE_BITS ) | ( ( i & ~LOW_STATE_BITS ) << SUSPENDED_SHIFT );
+            INDEX_BY_STATE_MASK[i] = (byte) getLegendItemIndex( getLegendItemForStateMask( state ) );
+        }
+        INDEX_RUNNABLE = getLegendItemIndex( LEGENDITEM_RUNNABLE );
+        INDEX_DEAD = getLegendItemIndex( LEGENDITEM_DEAD );
+    }
+    
     private static LegendItem addLegendItem(String title,Color color) 
     {
         final LegendItem result = new LegendItem(title,color);
@@ -74,17 +95,48 @@ public class UIConstants
     public static final int Y_OFFSET = 35;
     public static final int X_OFFSET = 10;
     
+    /**
+     * Returns the position of a legend item in {@link #LEGEND_ITEMS}.
+     * 
+     * @param item
+     * @return index or -1 if this is not one of the predefined legend items
+     */
+    public static int getLegendItemIndex(LegendItem item) 
+    {
+        for ( int i = 0 ; i < LEGEND_ITEMS.size() ; i++ ) 
+        {
+            if ( LEGEND_ITEMS.get( i ) == item ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
     public static LegendItem getLegendItemForEvent(ThreadEvent event) 
+    {
+        return LEGEND_ITEMS.get( getLegendItemIndex( event ) );
+    }
+    
+    /**
+     * Returns the position of the legend item for an event in {@link #LEGEND_ITEMS}.
+     * 
+     * @param event
+     * @return index
+     */
+    public static int getLegendItemIndex(ThreadEvent event) 
     {
         if ( event.type == ThreadEvent.THREAD_START ) {
-            return LEGENDITEM_RUNNABLE;
+            return INDEX_RUNNABLE;
         } 
-        
         if ( event.type == ThreadEvent.THREAD_DEATH ) {
-            return LEGENDITEM_DEAD;
+            return INDEX_DEAD;
         } 
-        
         final int state = event.threadStateMask;
+        return INDEX_BY_STATE_MASK[ ( state & LOW_STATE_BITS ) | ( ( state & SUSPENDED_BIT ) >>> SUSPENDED_SHIFT ) ];
+    }
+    
+    protected static LegendItem getLegendItemForStateMask(int state) 
+    {
         if ( JVMTIThreadState.ALIVE.isSet( state ) ) 
         {
             if ( JVMTIThreadState.WAITING.isSet( state ) ) 
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import de.codesourcery.threadwatcher.FileReader.FileVisitor;
+import de.codesourcery.threadwatcher.FileReader.ReadMode;
+
+public class BlockIndexTest extends TestCase {
+
+    private static final long START_SECONDS = 1380000000L;
+
+    private static final int RECORDS_PER_PHASE = 30000;
+
+    private File legacy;
+    private File blocks;
+    private File blocksWithoutFooter;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        legacy = createTempFile();
+        blocks = createTempFile();
+        blocksWithoutFooter = createTempFile();
+        writeSamples( legacy , 1 , true );
+        writeSamples( blocks , 3 , true );
+        writeSamples( blocksWithoutFooter , 3 , false );
+    }
+
+    private static File createTempFile() throws IOException
+    {
+        final File file = File.createTempFile("threadwatcher", ".out");
+        file.deleteOnExit();
+        return file;
+    }
+
+    // thread #1 is running alone first, then threads #2 and #3 take over
+    private static void writeSamples(File file,int formatVersion,boolean writeFooter) throws IOException
+    {
+        try ( RecordingWriter writer = new RecordingWriter( file , false , formatVersion ) )
+        {
+            writer.setWriteFooter( writeFooter );
+            for ( int thread = 1 ; thread <= 3 ; thread++ ) {
+                writer.threadStart( thread , START_SECONDS , thread , "thread #"+thread );
+            }
+            long nanos = 1000;
+            for ( int i = 0 ; i < 2*RECORDS_PER_PHASE ; i++ )
+            {
+                final int threadId = i < RECORDS_PER_PHASE ? 1 : ( i % 10 == 0 ? 3 : 2 );
+                writer.stateChange( threadId , START_SECONDS + nanos / 1000000000L , nanos % 1000000000L , i % 3 == 0 ? 0x0005 : 0x0401 );
+                nanos += 100000;
+            }
+            writer.threadDeath( 1 , START_SECONDS + nanos / 1000000000L , nanos % 1000000000L );
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for ( File file : new File[] { legacy , blocks , blocksWithoutFooter } ) {
+            file.delete();
+            FileIndex.getIndexFile( file ).delete();
+        }
+    }
+
+    private static BlockIndex readIndex(File file) throws IOException
+    {
+        try ( FileInputStream in = new FileInputStream( file ) ) {
+            return BlockIndex.read( in.getChannel() , 4 , null );
+        }
+    }
+
+    public void testFooterAndBlockHeadersYieldSameIndex() throws IOException
+    {
+        final BlockIndex expected = readIndex( blocksWithoutFooter );
+        final BlockIndex actual = readIndex( blocks );
+        assertTrue( expected.size() > 2 );
+        assertEquals( expected.size() , actual.size() );
+        for ( int i = 0 ; i < expected.size() ; i++ )
+        {
+            assertEquals( expected.getOffset( i ) , actual.getOffset( i ) );
+            assertEquals( expected.getEnd( i ) , actual.getEnd( i ) );
+            assertEquals( expected.getRecordCount( i ) , actual.getRecordCount( i ) );
+            assertEquals( expected.getMinTimestamp( i ) , actual.getMinTimestamp( i ) );
+            assertEquals( expected.getMaxTimestamp( i ) , actual.getMaxTimestamp( i ) );
+            for ( int thread = 1 ; thread <= 3 ; thread++ ) {
+                assertEquals( expected.mayContainThread( i , thread ) , actual.mayContainThread( i , thread ) );
+            }
+        }
+    }
+
+    public void testBlockSummaries() throws IOException
+    {
+        final BlockIndex index = readIndex( blocks );
+        int recordCount = 0;
+        int blocksWithoutThread2 = 0;
+        for ( int i = 0 ; i < index.size() ; i++ )
+        {
+            recordCount += index.getRecordCount( i );
+            assertTrue( index.getEnd( i ) - index.getOffset( i ) <= BlockIndex.MAX_BLOCK_SIZE );
+            assertTrue( index.getMinTimestamp( i ) <= index.getMaxTimestamp( i ) );
+            if ( i > 0 ) {
+                assertEquals( index.getEnd( i-1 ) , index.getOffset( i ) );
+                assertTrue( index.getMaxTimestamp( i-1 ) <= index.getMinTimestamp( i ) );
+            }
+            if ( ! index.mayContainThread( i , 2 ) ) {
+                blocksWithoutThread2++;
+            }
+            assertEquals( i , index.floorBlock( index.getOffset( i ) ) );
+            assertEquals( i , index.floorBlock( index.getEnd( i ) - 1 ) );
+        }
+        assertEquals( 3 + 2*RECORDS_PER_PHASE + 1 , recordCount );
+        assertTrue( blocksWithoutThread2 > 0 );
+        assertEquals( -1 , index.floorBlock( 0 ) );
+    }
+
+    public void testIntervalVisitsSkippingBlocksYieldSameEvents() throws IOException
+    {
+        final FileReader expected = new FileReader( legacy , ReadMode.STREAM );
+        final HiResInterval all = expected.getInterval();
+        final HiResTimestamp start = all.start.plusMilliseconds( 2500 );
+        final HiResInterval secondPhase = new HiResInterval( start.plusMilliseconds( 1000 ) , start.plusMilliseconds( 1200 ) );
+        final HiResInterval firstPhase = new HiResInterval( start , start.plusMilliseconds( 100 ) );
+
+        for ( ReadMode mode : ReadMode.values() )
+        {
+            final FileReader reader = new FileReader( blocks , mode );
+            assertNotNull( reader.getBlockIndex() );
+            for ( HiResInterval interval : new HiResInterval[] { all , firstPhase , secondPhase } )
+            {
+                for ( int thread = 1 ; thread <= 3 ; thread++ )
+                {
+                    final Set<Integer> threadIds = Collections.singleton( thread );
+                    assertEquals( readInterval( expected , interval , threadIds ) , readInterval( reader , interval , threadIds ) );
+                }
+                final Set<Integer> threadIds = new HashSet<>();
+                threadIds.add( 1 );
+                threadIds.add( 3 );
+                assertEquals( readInterval( expected , interval , threadIds ) , readInterval( reader , interval , threadIds ) );
+            }
+        }
+    }
+
+    public void testRefreshReadsAppendedBlocks() throws IOException
+    {
+        final FileReader reader = new FileReader( blocksWithoutFooter , ReadMode.MEMORY_MAPPED );
+        final int blockCount = reader.getBlockIndex().size();
+        final long seconds = reader.getInterval().end.secondsSinceEpoch + 1;
+        try ( RecordingWriter writer = new RecordingWriter( blocksWithoutFooter , true , 3 ) )
+        {
+            for ( int i = 0 ; i < RECORDS_PER_PHASE ; i++ ) {
+                writer.stateChange( 3 , seconds , i * 1000 , i % 2 == 0 ? 0x0005 : 0x0401 );
+            }
+        }
+        assertTrue( reader.refresh() );
+        assertTrue( reader.getBlockIndex().size() > blockCount );
+        assertEquals( 0 , new HiResTimestamp( seconds , (RECORDS_PER_PHASE-1) * 1000 , false ).compareTo( reader.getInterval().end ) );
+
+        FileIndex.getIndexFile( blocksWithoutFooter ).delete();
+        final FileReader expected = new FileReader( blocksWithoutFooter , ReadMode.STREAM );
+        assertEquals( expected.getBlockIndex().size() , reader.getBlockIndex().size() );
+        final Set<Integer> threadIds = Collections.singleton( 3 );
+        assertEquals( readInterval( expected , expected.getInterval() , threadIds ) , readInterval( reader , reader.getInterval() , threadIds ) );
+    }
+
+    private static List<String> readInterval(FileReader reader,HiResInterval interval,Set<Integer> threadIds) throws IOException
+    {
+        final List<String> result = new ArrayList<>();
+        reader.visit( new FileVisitor() {
+            @Override
+            public void visit(ThreadEvent event) {
+                result.add( event.toString() );
+            }
+        } , interval , threadIds );
+        return result;
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import de.codesourcery.threadwatcher.FileReader.FileVisitor;
+import de.codesourcery.threadwatcher.FileReader.ReadMode;
+
+public class ColumnarConverterTest extends TestCase {
+
+    private static final long START_SECONDS = 1380000000L;
+
+    private File input;
+    private File output;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        input = File.createTempFile("threadwatcher", ".out");
+        input.deleteOnExit();
+        output = new File( input.getAbsolutePath()+ColumnarConverter.FILE_SUFFIX );
+        output.deleteOnExit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for ( File file : new File[] { input , output } ) {
+            file.delete();
+            FileIndex.getIndexFile( file ).delete();
+        }
+    }
+
+    private void writeSamples(int formatVersion) throws IOException
+    {
+        try ( RecordingWriter writer = new RecordingWriter( input , false , formatVersion ) )
+        {
+            for ( int thread = 1 ; thread <= 4 ; thread++ ) {
+                writer.threadStart( thread , START_SECONDS , thread , "thread #"+thread+" \u00e4" );
+            }
+            long nanos = 1000;
+            for ( int i = 0 ; i < 20000 ; i++ )
+            {
+                writer.stateChange( 1 + i % 4 , START_SECONDS + nanos / 1000000000L , nanos % 1000000000L , i % 3 == 0 ? 0x0005 : 0x0401 );
+                nanos += 150000;
+            }
+            writer.threadDeath( 2 , START_SECONDS + nanos / 1000000000L , nanos % 1000000000L );
+        }
+    }
+
+    public void testConvertedFileYieldsSameEvents() throws IOException
+    {
+        for ( int formatVersion = 1 ; formatVersion <= 3 ; formatVersion++ )
+        {
+            writeSamples( formatVersion );
+            FileIndex.getIndexFile( input ).delete();
+
+            ColumnarConverter.convert( input , output );
+            assertTrue( ColumnarFile.isColumnarFile( output ) );
+            assertFalse( ColumnarFile.isColumnarFile( input ) );
+            assertNotNull( FileIndex.load( output ) );
+            assertFalse( FileIndex.getIndexFile( input ).exists() );
+
+            final FileReader expected = new FileReader( input , ReadMode.STREAM );
+            final FileReader actual = new FileReader( output , ReadMode.MEMORY_MAPPED );
+            assertEquals( ReadMode.IN_MEMORY , actual.getReadMode() );
+            assertEquals( expected.getThreadNamesByID() , actual.getThreadNamesByID() );
+            assertEquals( 0 , expected.getInterval().start.compareTo( actual.getInterval().start ) );
+            assertEquals( 0 , expected.getInterval().end.compareTo( actual.getInterval().end ) );
+            assertEquals( readAll( expected ) , readAll( actual ) );
+            assertFalse( actual.refresh() );
+
+            final HiResTimestamp start = expected.getInterval().start.plusMilliseconds( 1234 );
+            final HiResInterval interval = new HiResInterval( start , start.plusMilliseconds( 30 ) );
+            assertEquals( readInterval( expected , interval ) , readInterval( actual , interval ) );
+        }
+    }
+
+    public void testConvertedFileWithoutIndexIsScanned() throws IOException
+    {
+        writeSamples( 2 );
+        ColumnarConverter.convert( input , output );
+        FileIndex.getIndexFile( output ).delete();
+
+        final FileReader expected = new FileReader( input , ReadMode.STREAM );
+        final FileReader actual = new FileReader( output );
+        assertTrue( FileIndex.getIndexFile( output ).exists() );
+        assertEquals( 0 , expected.getInterval().end.compareTo( actual.getInterval().end ) );
+        assertEquals( readAll( expected ) , readAll( actual ) );
+    }
+
+    private static List<String> readInterval(FileReader reader,HiResInterval interval) throws IOException
+    {
+        final List<String> result = new ArrayList<>();
+        reader.visit( new FileVisitor() {
+            @Override
+            public void visit(ThreadEvent event) {
+                result.add( event.toString() );
+            }
+        } , interval , reader.getThreadNamesByID().keySet() );
+        return result;
+    }
+
+    private static List<String> readAll(FileReader reader) throws IOException
+    {
+        final List<String> result = new ArrayList<>();
+        reader.visit( new FileVisitor() {
+            @Override
+            public void visit(ThreadEvent event) {
+                result.add( event.toString() );
+            }
+        } );
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DurationHistogramTest extends TestCase {
+
+    public void testBuckets()
+    {
+        int previous = -1;
+        for ( long value = 0 ; value < 100000 ; value++ )
+        {
+            final int bucket = DurationHistogram.getBucket( value );
+            assertTrue( bucket == previous || bucket == previous + 1 );
+            assertTrue( value <= DurationHistogram.getUpperBound( bucket ) );
+            assertTrue( DurationHistogram.getUpperBound( bucket ) - value <= value / DurationHistogram.SUB_BUCKETS );
+            previous = bucket;
+        }
+        assertEquals( DurationHistogram.BUCKET_COUNT - 1 , DurationHistogram.getBucket( Long.MAX_VALUE ) );
+        final long limit = 1L << ( DurationHistogram.MAX_EXPONENT + 1 );
+        assertEquals( DurationHistogram.BUCKET_COUNT - 1 , DurationHistogram.getBucket( limit ) );
+        assertEquals( DurationHistogram.BUCKET_COUNT - 1 , DurationHistogram.getBucket( limit - 1 ) );
+        assertEquals( limit - 1 , DurationHistogram.getUpperBound( DurationHistogram.BUCKET_COUNT - 1 ) );
+    }
+
+    public void testPercentiles()
+    {
+        final DurationHistogram histogram = new DurationHistogram();
+        assertEquals( 0 , histogram.getPercentile( 50 ) );
+        assertEquals( 0 , histogram.getMax() );
+
+        final Random rnd = new Random( 42 );
+        final long[] values = new long[ 10000 ];
+        final DurationHistogram other = new DurationHistogram();
+        for ( int i = 0 ; i < values.length ; i++ )
+        {
+            values[i] = (long) Math.exp( rnd.nextDouble() * 25 );
+            ( i % 2 == 0 ? histogram : other ).add( values[i] );
+        }
+        histogram.add( other );
+        Arrays.sort( values );
+
+        assertEquals( values.length , histogram.getCount() );
+        assertEquals( values[0] , histogram.getMin() );
+        assertEquals( values[ values.length - 1 ] , histogram.getMax() );
+        assertEquals( values[ values.length - 1 ] , histogram.getPercentile( 100 ) );
+        for ( double percentile : new double[] { 1 , 50 , 90 , 99 , 99.9 } )
+        {
+            final long expected = values[ (int) Math.ceil( percentile / 100 * values.length ) - 1 ];
+            final long actual = histogram.getPercentile( percentile );
+            assertTrue( percentile+": "+actual+" < "+expected , actual >= expected );
+            assertTrue( percentile+": "+actual+" > "+expected , actual - expected <= expected / DurationHistogram.SUB_BUCKETS );
+        }
+    }
+}
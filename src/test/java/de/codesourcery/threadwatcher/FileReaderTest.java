@@ -0,0 +1,391 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import de.codesourcery.threadwatcher.FileReader.FileScanner;
+import de.codesourcery.threadwatcher.FileReader.FileVisitor;
+import de.codesourcery.threadwatcher.FileReader.ReadMode;
+
+public class FileReaderTest extends TestCase {
+
+    private static final long START_SECONDS = 1380000000L;
+
+    private static final int THREAD_COUNT = 3;
+    private static final int SAMPLES_PER_THREAD = 5000;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("threadwatcher", ".out");
+        file.deleteOnExit();
+        writeSamples( file , 1 );
+    }
+
+    private static void writeSamples(File file,int formatVersion) throws IOException
+    {
+        try ( RecordingWriter writer = new RecordingWriter( file , false , formatVersion ) )
+        {
+            for ( int thread = 1 ; thread <= THREAD_COUNT ; thread++ ) {
+                writer.threadStart( thread , START_SECONDS , thread*1000 , "thread #"+thread );
+            }
+            long nanos = 1000000;
+            long seconds = START_SECONDS;
+            for ( int i = 0 ; i < SAMPLES_PER_THREAD ; i++ )
+            {
+                if ( i % 1000 == 999 ) {
+                    writer.startBatch();
+                }
+                for ( int thread = 1 ; thread <= THREAD_COUNT ; thread++ )
+                {
+                    final int state = (i+thread) % 2 == 0 ? 0x0005 : 0x0401;
+                    writer.stateChange( thread , seconds , nanos , state );
+                    nanos += 333333;
+                    if ( nanos >= 1000000000 ) {
+                        seconds++;
+                        nanos -= 1000000000;
+                    }
+                }
+            }
+            writer.threadDeath( 1 , seconds , nanos );
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        FileIndex.getIndexFile( file ).delete();
+    }
+
+    public void testAllReadModesYieldSameEvents() throws IOException
+    {
+        final List<String> streamed = readAll( new FileReader( file , ReadMode.STREAM ) );
+        final List<String> mapped = readAll( new FileReader( file , ReadMode.MEMORY_MAPPED ) );
+        final List<String> inMemory = readAll( new FileReader( file , ReadMode.IN_MEMORY ) );
+        assertEquals( THREAD_COUNT*(SAMPLES_PER_THREAD+1)+1 , mapped.size() );
+        assertEquals( mapped , streamed );
+        assertEquals( mapped , inMemory );
+    }
+
+    public void testAutoReadModeKeepsSmallRecordingsInMemory() throws IOException
+    {
+        final FileReader reader = new FileReader( file , ReadMode.AUTO );
+        assertEquals( ReadMode.IN_MEMORY , reader.getReadMode() );
+        assertEquals( THREAD_COUNT*(SAMPLES_PER_THREAD+1)+1 , FileIndex.load( file ).recordCount );
+        assertEquals( THREAD_COUNT*(SAMPLES_PER_THREAD+1)+1 , readAll( reader ).size() );
+    }
+
+    public void testInMemoryIntervalVisitYieldsSameEventsAsFileVisit() throws IOException
+    {
+        final FileReader mapped = new FileReader( file , ReadMode.MEMORY_MAPPED );
+        final FileReader inMemory = new FileReader( file , ReadMode.IN_MEMORY );
+        final HiResTimestamp start = mapped.getInterval().start.plusMilliseconds( 2345 );
+        final HiResInterval interval = new HiResInterval( start , start.plusMilliseconds( 20 ) );
+
+        final List<String> expected = readInterval( mapped , interval );
+        assertTrue( expected.size() > THREAD_COUNT );
+        assertEquals( expected , readInterval( inMemory , interval ) );
+    }
+
+    public void testScanResults() throws IOException
+    {
+        for ( ReadMode mode : ReadMode.values() )
+        {
+            final FileReader reader = new FileReader( file , mode );
+            assertEquals( THREAD_COUNT , reader.getThreadNamesByID().size() );
+            assertEquals( "thread #2" , reader.getThreadNamesByID().get( 2 ) );
+            assertEquals( START_SECONDS , reader.getInterval().start.secondsSinceEpoch );
+            assertEquals( 1000 , reader.getInterval().start.nanoseconds );
+        }
+    }
+
+    public void testIndexFileIsWrittenAndReused() throws IOException
+    {
+        final File indexFile = FileIndex.getIndexFile( file );
+        assertFalse( indexFile.exists() );
+
+        final FileReader scanned = new FileReader( file );
+        assertTrue( indexFile.exists() );
+        final FileIndex index = FileIndex.load( file );
+        assertNotNull( index );
+
+        final FileReader loaded = new FileReader( file );
+        assertEquals( 0 , scanned.getInterval().start.compareTo( loaded.getInterval().start ) );
+        assertEquals( 0 , scanned.getInterval().end.compareTo( loaded.getInterval().end ) );
+        assertEquals( scanned.getThreadNamesByID() , loaded.getThreadNamesByID() );
+        assertEquals( scanned.getThreadLifetimes().keySet() , loaded.getThreadLifetimes().keySet() );
+        final FileScanner scanner = new FileScanner();
+        scanned.visit( scanner );
+        final StateKeyframes expected = scanner.keyframes.build();
+        final StateKeyframes actual = index.keyframes;
+        assertTrue( expected.size() > 1 );
+        assertEquals( expected.size() , actual.size() );
+        for ( int i = 0 ; i < expected.size() ; i++ ) {
+            assertEquals( expected.getKeyframe( i ).position , actual.getKeyframe( i ).position );
+            assertEquals( 0 , expected.getKeyframe( i ).timestamp.compareTo( actual.getKeyframe( i ).timestamp ) );
+            assertEquals( expected.getStates( i ) , actual.getStates( i ) );
+        }
+    }
+
+    public void testOutdatedIndexFileIsIgnored() throws IOException
+    {
+        new FileReader( file );
+        assertNotNull( FileIndex.load( file ) );
+
+        try ( RecordingWriter writer = new RecordingWriter( file ) ) {
+            writer.threadStart( 42 , START_SECONDS , 0 , "other thread" );
+        }
+        assertNull( FileIndex.load( file ) );
+        assertEquals( "other thread" , new FileReader( file ).getThreadNamesByID().get( 42 ) );
+    }
+
+    public void testRecordsAppendedAfterIndexWasCreatedAreScanned() throws Exception
+    {
+        for ( ReadMode mode : ReadMode.values() )
+        {
+            final FileReader scanned = new FileReader( file , mode );
+            final FileIndex index = FileIndex.load( file );
+            assertNotNull( index );
+
+            final long seconds = scanned.getInterval().end.secondsSinceEpoch+1;
+            try ( RecordingWriter writer = new RecordingWriter( file , true ) ) {
+                writer.threadStart( 42 , seconds , 0 , "late thread" );
+                writer.stateChange( 42 , seconds , 1000 , 0x0401 );
+            }
+            // index written by a scan that ended before the records got appended
+            new FileIndex( file , index.dataInterval , index.recordCount , index.threadNamesByID , index.threadLifetimes , index.keyframes ,
+                    index.dataEnd , index.resumeOffset , index.deadThreadIds , index.threadStates ).save( file );
+            assertNotNull( FileIndex.load( file ) );
+
+            final FileReader reader = new FileReader( file , mode );
+            assertEquals( "late thread" , reader.getThreadNamesByID().get( 42 ) );
+            assertEquals( 0 , new HiResTimestamp( seconds , 1000 , false ).compareTo( reader.getInterval().end ) );
+
+            FileIndex.getIndexFile( file ).delete();
+            assertEquals( readAll( new FileReader( file , ReadMode.STREAM ) ) , readAll( reader ) );
+            tearDown();
+            setUp();
+        }
+    }
+
+    public void testIntervalVisitStartsWithInitialStates() throws IOException
+    {
+        final FileReader reader = new FileReader( file );
+        final HiResTimestamp start = reader.getInterval().start.plusMilliseconds( 1000 );
+        final HiResInterval interval = new HiResInterval( start , start.plusMilliseconds( 10 ) );
+
+        final Set<Integer> threadIds = new HashSet<>();
+        threadIds.add( 2 );
+        threadIds.add( 3 );
+
+        final List<ThreadEvent> events = new ArrayList<>();
+        reader.visit( new FileVisitor() {
+            @Override
+            public void visit(ThreadEvent event) {
+                events.add( new ThreadEvent( event ) );
+            }
+        } , interval , threadIds );
+
+        assertTrue( events.size() > 2 );
+        for ( int i = 0 ; i < 2 ; i++ )
+        {
+            assertEquals( ThreadEvent.THREAD_STATE_CHANGE , events.get(i).type );
+            assertEquals( start.secondsSinceEpoch , events.get(i).timestampSeconds );
+            assertEquals( start.nanoseconds , events.get(i).timestampNanos );
+        }
+        for ( ThreadEvent event : events ) {
+            assertTrue( threadIds.contains( event.threadId ) );
+            assertFalse( event.isAfter( interval.end ) );
+        }
+    }
+
+    public void testIntervalVisitAfterKeyframeYieldsSameStatesAsFullReplay() throws IOException
+    {
+        for ( ReadMode mode : ReadMode.values() )
+        {
+            final FileReader reader = new FileReader( file , mode );
+            final HiResTimestamp start = reader.getInterval().start.plusMilliseconds( 4200 );
+
+            // determine expected states by replaying everything
+            final Map<Integer,Integer> expectedStates = new HashMap<>();
+            reader.visit( new FileVisitor() {
+                @Override
+                public void visit(ThreadEvent event) {
+                    if ( event.isBefore( start ) && event.type == ThreadEvent.THREAD_STATE_CHANGE ) {
+                        expectedStates.put( event.threadId , event.threadStateMask );
+                    }
+                }
+            } );
+
+            final Map<Integer,Integer> actualStates = new HashMap<>();
+            reader.visit( new FileVisitor() {
+                @Override
+                public void visit(ThreadEvent event) {
+                    if ( ! event.isAfter( start ) && ! event.isBefore( start ) ) {
+                        actualStates.put( event.threadId , event.threadStateMask );
+                    }
+                }
+            } , new HiResInterval( start , start.plusMilliseconds( 1 ) ) , reader.getThreadNamesByID().keySet() );
+
+            assertEquals( THREAD_COUNT , expectedStates.size() );
+            assertEquals( expectedStates , actualStates );
+            assertTrue( FileIndex.load( file ).keyframes.findLastBefore( start ).position > 4 );
+        }
+    }
+
+    public void testRefreshPicksUpAppendedRecords() throws Exception
+    {
+        for ( ReadMode mode : ReadMode.values() )
+        {
+            setUp();
+            new FileReader( file , mode );
+            // resume scanning from the index file
+            final FileReader reader = new FileReader( file , mode );
+            final HiResTimestamp previousEnd = reader.getInterval().end;
+            assertFalse( reader.refresh() );
+
+            final long seconds = previousEnd.secondsSinceEpoch+1;
+            try ( RecordingWriter writer = new RecordingWriter( file , true ) )
+            {
+                writer.threadStart( 42 , seconds , 0 , "late thread" );
+                writer.stateChange( 2 , seconds , 1000 , 0x0401 );
+                writer.partialStateChange( 42 , seconds , 2000 );
+            }
+            assertTrue( reader.refresh() );
+            assertEquals( "late thread" , reader.getThreadNamesByID().get( 42 ) );
+            assertEquals( 0 , new HiResTimestamp( seconds , 1000 , false ).compareTo( reader.getInterval().end ) );
+
+            try ( RecordingWriter writer = new RecordingWriter( file , true ) ) {
+                writer.finishStateChange( 0x0005 );
+                writer.threadDeath( 42 , seconds , 3000 );
+            }
+            assertTrue( reader.refresh() );
+            assertFalse( reader.refresh() );
+
+            // compare with a reader that scans the file from scratch
+            FileIndex.getIndexFile( file ).delete();
+            final FileReader expected = new FileReader( file , mode );
+            assertEquals( 0 , expected.getInterval().end.compareTo( reader.getInterval().end ) );
+            assertEquals( expected.getThreadNamesByID() , reader.getThreadNamesByID() );
+            assertEquals( 0 , expected.getThreadLifetime( 42 ).end.compareTo( reader.getThreadLifetime( 42 ).end ) );
+            assertEquals( 0 , expected.getThreadLifetime( 2 ).end.compareTo( reader.getThreadLifetime( 2 ).end ) );
+            assertEquals( readAll( expected ) , readAll( reader ) );
+
+            final HiResInterval interval = new HiResInterval( previousEnd , reader.getInterval().end );
+            assertEquals( readInterval( expected , interval ) , readInterval( reader , interval ) );
+            tearDown();
+        }
+    }
+
+    public void testCompactFormatYieldsSameEvents() throws Exception
+    {
+        assertFormatYieldsSameEvents( 2 );
+    }
+
+    public void testBlockFormatYieldsSameEvents() throws Exception
+    {
+        assertFormatYieldsSameEvents( 3 );
+    }
+
+    private void assertFormatYieldsSameEvents(int formatVersion) throws Exception
+    {
+        final File compact = File.createTempFile("threadwatcher", ".out");
+        compact.deleteOnExit();
+        try 
+        {
+            writeSamples( compact , formatVersion );
+            assertTrue( compact.length() * 3 < file.length() );
+
+            final FileReader expected = new FileReader( file , ReadMode.STREAM );
+            final List<String> expectedEvents = readAll( expected );
+            final HiResTimestamp start = expected.getInterval().start.plusMilliseconds( 2345 );
+            final HiResInterval interval = new HiResInterval( start , start.plusMilliseconds( 20 ) );
+            for ( ReadMode mode : ReadMode.values() )
+            {
+                final FileReader reader = new FileReader( compact , mode );
+                assertEquals( expected.getThreadNamesByID() , reader.getThreadNamesByID() );
+                assertEquals( 0 , expected.getInterval().end.compareTo( reader.getInterval().end ) );
+                assertEquals( expectedEvents , readAll( reader ) );
+                assertEquals( readInterval( expected , interval ) , readInterval( reader , interval ) );
+            }
+        } 
+        finally 
+        {
+            compact.delete();
+            FileIndex.getIndexFile( compact ).delete();
+        }
+    }
+
+    public void testRefreshPicksUpAppendedCompactRecords() throws Exception
+    {
+        writeSamples( file , 2 );
+        final FileReader reader = new FileReader( file , ReadMode.MEMORY_MAPPED );
+        final HiResTimestamp previousEnd = reader.getInterval().end;
+
+        final long seconds = previousEnd.secondsSinceEpoch+1;
+        try ( RecordingWriter writer = new RecordingWriter( file , true , 2 ) ) 
+        {
+            writer.threadStart( 42 , seconds , 0 , "late thread" );
+            writer.partialStateChange( 42 , seconds , 2000 );
+        }
+        assertTrue( reader.refresh() );
+        assertEquals( "late thread" , reader.getThreadNamesByID().get( 42 ) );
+
+        try ( RecordingWriter writer = new RecordingWriter( file , true , 2 ) ) {
+            writer.finishStateChange( 0x0005 );
+        }
+        assertTrue( reader.refresh() );
+        assertEquals( 0 , new HiResTimestamp( seconds , 2000 , false ).compareTo( reader.getInterval().end ) );
+
+        FileIndex.getIndexFile( file ).delete();
+        assertEquals( readAll( new FileReader( file , ReadMode.STREAM ) ) , readAll( reader ) );
+    }
+
+    private static List<String> readInterval(FileReader reader,HiResInterval interval) throws IOException
+    {
+        final List<String> result = new ArrayList<>();
+        reader.visit( new FileVisitor() {
+            @Override
+            public void visit(ThreadEvent event) {
+                result.add( event.toString() );
+            }
+        } , interval , reader.getThreadNamesByID().keySet() );
+        return result;
+    }
+
+    private static List<String> readAll(FileReader reader) throws IOException
+    {
+        final List<String> result = new ArrayList<>();
+        reader.visit( new FileVisitor() {
+            @Override
+            public void visit(ThreadEvent event) {
+                result.add( event.toString() );
+            }
+        } );
+        return result;
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import de.codesourcery.threadwatcher.FileReader.FileScanner;
+import de.codesourcery.threadwatcher.FileReader.LookAheadFileVisitor;
+import de.codesourcery.threadwatcher.FileReader.ReadMode;
+
+public class ParallelFileScannerTest extends TestCase {
+
+    private static final long START_SECONDS = 1380000000L;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("threadwatcher", ".out");
+        file.deleteOnExit();
+        writeSamples( 1 );
+    }
+
+    private void writeSamples(int formatVersion) throws IOException
+    {
+        try ( RecordingWriter writer = new RecordingWriter( file , false , formatVersion ) )
+        {
+            long seconds = START_SECONDS;
+            long nanos = 0;
+            for ( int i = 0 ; i < 40000 ; i++ )
+            {
+                final int threadId = i % 10;
+                if ( i % 500 == 0 ) {
+                    writer.startBatch();
+                }
+                if ( i < 10 ) {
+                    writer.threadStart( threadId , seconds , nanos , "thread #"+threadId );
+                } else if ( i == 30000 ) {
+                    writer.threadDeath( threadId , seconds , nanos );
+                } else if ( i > 30000 && threadId == 0 ) {
+                    writer.threadStart( 100+i , seconds , nanos , "short-lived #"+i );
+                } else {
+                    writer.stateChange( threadId , seconds , nanos , i % 3 == 0 ? 0x0005 : 0x0401 );
+                }
+                nanos += 250000;
+                if ( nanos >= 1000000000 ) {
+                    seconds++;
+                    nanos -= 1000000000;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        FileIndex.getIndexFile( file ).delete();
+    }
+
+    public void testParallelScanYieldsSameResultsAsSequentialScan() throws IOException
+    {
+        assertParallelScanYieldsSameResultsAsSequentialScan( 1 );
+    }
+
+    public void testParallelScanOfCompactFormat() throws IOException
+    {
+        writeSamples( 2 );
+        assertParallelScanYieldsSameResultsAsSequentialScan( 2 );
+    }
+
+    public void testParallelScanOfBlockFormat() throws IOException
+    {
+        writeSamples( 3 );
+        assertParallelScanYieldsSameResultsAsSequentialScan( 3 );
+    }
+
+    private void assertParallelScanYieldsSameResultsAsSequentialScan(int formatVersion) throws IOException
+    {
+        final FileScanner sequential = new FileScanner();
+        final FileReader reader = new FileReader( file , ReadMode.STREAM );
+        reader.visit( sequential );
+        final BlockIndex blocks = reader.getBlockIndex();
+        if ( formatVersion == 3 ) {
+            assertTrue( blocks.size() > 1 );
+        }
+
+        final FileScanner parallel = new ParallelFileScanner( new MappedFile( file ) , formatVersion , blocks , 4 , 4096 ).scan( 4 );
+        assertNotNull( parallel );
+
+        final FileIndex expected = sequential.createIndex( file );
+        final FileIndex actual = parallel.createIndex( file );
+
+        assertEquals( 0 , expected.dataInterval.start.compareTo( actual.dataInterval.start ) );
+        assertEquals( 0 , expected.dataInterval.end.compareTo( actual.dataInterval.end ) );
+        assertEquals( expected.threadNamesByID , actual.threadNamesByID );
+        assertEquals( expected.threadLifetimes.keySet() , actual.threadLifetimes.keySet() );
+        for ( Integer threadId : expected.threadLifetimes.keySet() )
+        {
+            assertEquals( 0 , expected.threadLifetimes.get( threadId ).start.compareTo( actual.threadLifetimes.get( threadId ).start ) );
+            assertEquals( 0 , expected.threadLifetimes.get( threadId ).end.compareTo( actual.threadLifetimes.get( threadId ).end ) );
+        }
+
+        assertEquals( expected.resumeOffset , actual.resumeOffset );
+        assertEquals( expected.recordCount , actual.recordCount );
+    }
+
+    public void testKeyframesOfParallelScanHoldCorrectStates() throws IOException
+    {
+        final StateKeyframes keyframes = new ParallelFileScanner( new MappedFile( file ) , 1 , null , 4 , 4096 ).scan( 4 ).keyframes.build();
+        assertTrue( keyframes.size() > 1 );
+        assertKeyframesHoldCorrectStates( keyframes );
+    }
+
+    public void testKeyframesOfManyThreadsOnlyStoreChanges() throws IOException
+    {
+        try ( RecordingWriter writer = new RecordingWriter( file , false , 1 ) )
+        {
+            long nanos = 0;
+            for ( int i = 0 ; i < 200000 ; i++ )
+            {
+                if ( i < 2000 ) {
+                    writer.threadStart( i , START_SECONDS + nanos / 1000000000 , nanos % 1000000000 , "thread #"+i );
+                } else if ( i >= 100000 && i < 100100 ) {
+                    writer.threadDeath( i - 99900 , START_SECONDS + nanos / 1000000000 , nanos % 1000000000 );
+                } else {
+                    writer.stateChange( i % 10 , START_SECONDS + nanos / 1000000000 , nanos % 1000000000 , i % 3 == 0 ? 0x0005 : 0x0401 );
+                }
+                nanos += 250000;
+            }
+        }
+
+        final StateKeyframes keyframes = new ParallelFileScanner( new MappedFile( file ) , 1 , null , 4 , 4096 ).scan( 4 ).keyframes.build();
+        assertTrue( keyframes.size() > 3 );
+        // all threads get started before the second keyframe, afterwards only changes are stored
+        int died = 0;
+        for ( int i = 2 ; i < keyframes.size() ; i++ ) 
+        {
+            died += keyframes.getKeyframe( i ).getDiedThreadCount();
+            assertFalse( keyframes.getKeyframe( i ).full );
+            assertTrue( keyframes.getKeyframe( i ).getThreadCount() <= 10 );
+        }
+        assertEquals( 100 , died );
+        assertKeyframesHoldCorrectStates( keyframes );
+    }
+
+    private void assertKeyframesHoldCorrectStates(final StateKeyframes keyframes) throws IOException
+    {
+
+        final Map<Long,Integer> keyframesByPosition = new HashMap<>();
+        for ( int i = 0 ; i < keyframes.size() ; i++ ) {
+            keyframesByPosition.put( keyframes.getKeyframe( i ).position , i );
+        }
+
+        final Map<Integer,Integer> states = new HashMap<>();
+        final int[] checked = { 0 };
+        new FileReader( file , ReadMode.STREAM ).visit( new LookAheadFileVisitor() {
+
+            @Override
+            public boolean visit(ThreadEvent event, long fileoffset, boolean seekable, boolean hasMore)
+            {
+                final Integer keyframe = keyframesByPosition.get( fileoffset );
+                if ( keyframe != null )
+                {
+                    assertEquals( states , keyframes.getStates( keyframe ) );
+                    checked[0]++;
+                }
+                switch( event.type )
+                {
+                    case ThreadEvent.THREAD_START:
+                        states.put( event.threadId , JVMTIThreadState.ALIVE.getBitMask() | JVMTIThreadState.RUNNABLE.getBitMask() );
+                        break;
+                    case ThreadEvent.THREAD_DEATH:
+                        states.remove( event.threadId );
+                        break;
+                    default:
+                        states.put( event.threadId , event.threadStateMask );
+                }
+                return true;
+            }
+        } );
+        assertEquals( keyframes.size() , checked[0] );
+    }
+
+    public void testSmallFilesAreNotScannedInParallel() throws IOException
+    {
+        assertNull( new ParallelFileScanner( new MappedFile( file ) , 1 , null , 4 , file.length() ).scan( 4 ) );
+    }
+}
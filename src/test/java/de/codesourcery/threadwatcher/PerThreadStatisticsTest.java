@@ -0,0 +1,60 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import junit.framework.TestCase;
+import de.codesourcery.threadwatcher.ui.UIConstants;
+
+public class PerThreadStatisticsTest extends TestCase {
+
+    private static final int RUNNABLE = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_RUNNABLE );
+    private static final int BLOCKED = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_BLOCKED );
+    private static final int DEAD = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_DEAD );
+
+    public void testDurations()
+    {
+        final PerThreadStatistics stats = new PerThreadStatistics( 1 );
+        assertFalse( stats.containsData );
+        final long[] durations = new long[ StatePyramid.STATE_COUNT ];
+        durations[ RUNNABLE ] = 601;
+        durations[ BLOCKED ] = 1999998599L;
+        stats.setDurations( durations );
+
+        assertTrue( stats.containsData );
+        assertEquals( 601 , stats.getDurationNanos( RUNNABLE ) );
+        assertEquals( 1999998599L , stats.getDurationNanos( BLOCKED ) );
+        assertEquals( 0 , stats.getDurationNanos( DEAD ) );
+        assertEquals( 0.000601 , stats.getDurationMillisFor( UIConstants.LEGENDITEM_RUNNABLE ) , 1e-12 );
+    }
+
+    public void testRunsAreRecordedPerState()
+    {
+        final PerThreadStatistics stats = new PerThreadStatistics( 1 );
+        stats.addRun( RUNNABLE , 500 );
+        stats.addRun( BLOCKED , 1999998499L );
+        stats.addRun( RUNNABLE , 101 );
+        stats.addRun( BLOCKED , 100 );
+
+        final DurationHistogram runnable = stats.getRuns( RUNNABLE );
+        assertEquals( 2 , runnable.getCount() );
+        assertEquals( 101 , runnable.getMin() );
+        assertEquals( 500 , runnable.getMax() );
+        assertEquals( 2 , stats.getRuns( BLOCKED ).getCount() );
+        assertNull( stats.getRuns( DEAD ) );
+        assertTrue( stats.getRunsAsString().contains( UIConstants.LEGENDITEM_BLOCKED.title ) );
+        assertFalse( stats.getRunsAsString().contains( UIConstants.LEGENDITEM_DEAD.title ) );
+    }
+}
@@ -0,0 +1,348 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes recordings in the same binary formats the JVMTI agent uses.
+ */
+public final class RecordingWriter implements AutoCloseable
+{
+    private final FileChannel out;
+    private final ByteBuffer buffer = ByteBuffer.allocate( RecordDecoder.MAX_RECORD_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+    private final int formatVersion;
+
+    // upper bound for the size of a record (including a sync record) in the compact encoding
+    private static final int MAX_COMPACT_RECORD_SIZE = 128;
+
+    // compact format state, mirrors writerthread.c
+    private boolean syncPending = true;
+    private int recordsSinceSync;
+    private long previousSeconds;
+    private long previousNanos;
+    private final int[] dictionary = new int[ RecordDecoder.STATE_DICTIONARY_SIZE ];
+    private int dictionarySize;
+
+    // block format state
+    private final ByteBuffer block = ByteBuffer.allocate( BlockIndex.MAX_BLOCK_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+    private final ByteArrayOutputStream footer = new ByteArrayOutputStream();
+    private int blockCount;
+    private int blockRecordCount;
+    private long blockMinTimestamp;
+    private long blockMaxTimestamp;
+    private final long[] blockThreadBitmap = new long[4];
+    private boolean writeFooter;
+
+    public RecordingWriter(File file) throws IOException
+    {
+        this(file,false);
+    }
+
+    /**
+     * @param file
+     * @param append whether to append records to an existing recording
+     * @throws IOException
+     */
+    public RecordingWriter(File file,boolean append) throws IOException
+    {
+        this(file,append,1);
+    }
+
+    /**
+     * @param file
+     * @param append whether to append records to an existing recording (like a new batch of the agent's writer thread)
+     * @param formatVersion file format version (1, 2 or 3)
+     * @throws IOException
+     */
+    public RecordingWriter(File file,boolean append,int formatVersion) throws IOException
+    {
+        if ( formatVersion < 1 || formatVersion > 3 ) {
+            throw new IllegalArgumentException("Unsupported format version "+formatVersion);
+        }
+        this.formatVersion = formatVersion;
+        out = new FileOutputStream( file , append ).getChannel();
+        if ( ! append )
+        {
+            buffer.clear();
+            buffer.putInt( formatVersion == 1 ? 0xdeadbeef : ( formatVersion == 2 ? 0xdeadbef2 : 0xdeadbef3 ) );
+            flush();
+        }
+        // footer requires the offsets of all blocks
+        writeFooter = formatVersion == 3 && ! append;
+        block.position( BlockIndex.HEADER_SIZE );
+    }
+
+    /**
+     * Sets whether a footer is written when the writer is closed, like the agent does when it terminates.
+     * 
+     * @param writeFooter
+     */
+    public void setWriteFooter(boolean writeFooter) {
+        this.writeFooter = writeFooter && formatVersion == 3;
+    }
+
+    /**
+     * Makes the next record start with a sync record, like the agent
+     * does whenever its writer thread wakes up.
+     */
+    public void startBatch() {
+        if ( formatVersion == 2 ) {
+            syncPending = true;
+        }
+    }
+
+    /**
+     * Writes the current block (block format only).
+     */
+    public void flushBlock() throws IOException
+    {
+        if ( blockRecordCount == 0 ) {
+            return;
+        }
+        final int dataLength = block.position() - BlockIndex.HEADER_SIZE;
+        block.putInt( 0 , BlockIndex.BLOCK_MAGIC );
+        block.putInt( 4 , dataLength );
+        block.putInt( 8 , blockRecordCount );
+        block.putInt( 12 , 0 );
+        block.putLong( 16 , blockMinTimestamp );
+        block.putLong( 24 , blockMaxTimestamp );
+        for ( int i = 0 ; i < blockThreadBitmap.length ; i++ ) {
+            block.putLong( 32 + i * 8 , blockThreadBitmap[i] );
+        }
+
+        final ByteBuffer entry = ByteBuffer.allocate( 8 + BlockIndex.HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+        entry.putLong( out.position() );
+        for ( int i = 0 ; i < BlockIndex.HEADER_SIZE ; i++ ) {
+            entry.put( block.get( i ) );
+        }
+        footer.write( entry.array() );
+        blockCount++;
+
+        block.flip();
+        while ( block.hasRemaining() ) {
+            out.write( block );
+        }
+        block.clear();
+        block.position( BlockIndex.HEADER_SIZE );
+        blockRecordCount = 0;
+        blockMinTimestamp = Long.MAX_VALUE;
+        blockMaxTimestamp = Long.MIN_VALUE;
+        Arrays.fill( blockThreadBitmap , 0 );
+        syncPending = true;
+    }
+
+    /**
+     * Writes only the first bytes of a state-change record,
+     * like a writer that has not finished writing the record yet.
+     */
+    public void partialStateChange(int threadId,long seconds,long nanos) throws IOException
+    {
+        if ( formatVersion >= 2 ) {
+            writeCompactFields(ThreadEvent.THREAD_STATE_CHANGE,threadId,seconds,nanos);
+        } else {
+            writeCommonFields(ThreadEvent.THREAD_STATE_CHANGE,threadId,seconds,nanos);
+        }
+        flush();
+    }
+
+    /**
+     * Writes the remaining bytes of a record started with {@link #partialStateChange(int, long, long)}.
+     */
+    public void finishStateChange(int stateMask) throws IOException
+    {
+        buffer.clear();
+        if ( formatVersion == 1 ) {
+            buffer.putInt( stateMask );
+        } else {
+            writeVarLong( stateMask & 0xffffffffL );
+            addToDictionary( stateMask );
+        }
+        flush();
+    }
+
+    public void threadStart(int threadId,long seconds,long nanos,String name) throws IOException
+    {
+        final byte[] bytes = name.getBytes("UTF-8");
+        if ( formatVersion >= 2 ) 
+        {
+            writeCompactFields(ThreadEvent.THREAD_START,threadId,seconds,nanos);
+            final int length = Math.min( bytes.length , ThreadEvent.MAX_THREADNAME_LENGTH-1 );
+            writeVarLong( length );
+            buffer.put( bytes , 0 , length );
+            flush();
+            return;
+        }
+        writeCommonFields(ThreadEvent.THREAD_START,threadId,seconds,nanos);
+        for ( int i = 0 ; i < ThreadEvent.MAX_THREADNAME_LENGTH ; i++ ) {
+            buffer.put( i < bytes.length ? bytes[i] : 0 );
+        }
+        flush();
+    }
+
+    public void threadDeath(int threadId,long seconds,long nanos) throws IOException
+    {
+        if ( formatVersion >= 2 ) {
+            writeCompactFields(ThreadEvent.THREAD_DEATH,threadId,seconds,nanos);
+            flush();
+            return;
+        }
+        writeCommonFields(ThreadEvent.THREAD_DEATH,threadId,seconds,nanos);
+        flush();
+    }
+
+    public void stateChange(int threadId,long seconds,long nanos,int stateMask) throws IOException
+    {
+        if ( formatVersion >= 2 ) 
+        {
+            int index = 0;
+            ensureBlockCapacity();
+            if ( ! isSyncDue() ) 
+            {
+                for ( int i = 0 ; i < dictionarySize ; i++ ) {
+                    if ( dictionary[i] == stateMask ) {
+                        index = i+1;
+                        break;
+                    }
+                }
+            }
+            writeCompactFields(ThreadEvent.THREAD_STATE_CHANGE | index << 2 ,threadId,seconds,nanos);
+            if ( index == 0 ) {
+                writeVarLong( stateMask & 0xffffffffL );
+                addToDictionary( stateMask );
+            }
+            flush();
+            return;
+        }
+        writeCommonFields(ThreadEvent.THREAD_STATE_CHANGE,threadId,seconds,nanos);
+        buffer.putInt( stateMask );
+        flush();
+    }
+
+    private void ensureBlockCapacity() throws IOException
+    {
+        if ( formatVersion == 3 && block.remaining() < MAX_COMPACT_RECORD_SIZE ) {
+            flushBlock();
+        }
+    }
+
+    private boolean isSyncDue() {
+        return syncPending || ( formatVersion == 2 && recordsSinceSync >= RecordDecoder.SYNC_INTERVAL_RECORDS );
+    }
+
+    // writes an optional sync record plus tag, thread ID and time delta of the next record
+    private void writeCompactFields(int tag,int threadId,long seconds,long nanos) throws IOException
+    {
+        ensureBlockCapacity();
+        if ( formatVersion == 3 ) 
+        {
+            final long timestamp = seconds * 1000000000L + nanos;
+            blockMinTimestamp = blockRecordCount == 0 ? timestamp : Math.min( blockMinTimestamp , timestamp );
+            blockMaxTimestamp = blockRecordCount == 0 ? timestamp : Math.max( blockMaxTimestamp , timestamp );
+            blockThreadBitmap[ ( threadId & 0xff ) >>> 6 ] |= 1L << ( threadId & 0xff );
+            blockRecordCount++;
+        }
+        buffer.clear();
+        if ( isSyncDue() )
+        {
+            buffer.put( (byte) RecordDecoder.TAG_SYNC );
+            writeVarLong( seconds );
+            writeVarLong( nanos );
+            previousSeconds = seconds;
+            previousNanos = nanos;
+            dictionarySize = 0;
+            recordsSinceSync = 0;
+            syncPending = false;
+        }
+        buffer.put( (byte) tag );
+        writeVarLong( threadId & 0xffffffffL );
+        final long delta = ( seconds - previousSeconds ) * 1000000000L + ( nanos - previousNanos );
+        writeVarLong( ( delta << 1 ) ^ ( delta >> 63 ) );
+        previousSeconds = seconds;
+        previousNanos = nanos;
+        recordsSinceSync++;
+    }
+
+    private void addToDictionary(int stateMask) 
+    {
+        if ( dictionarySize < dictionary.length ) {
+            dictionary[ dictionarySize++ ] = stateMask;
+        }
+    }
+
+    private void writeVarLong(long value)
+    {
+        while ( ( value & ~0x7fL ) != 0 ) 
+        {
+            buffer.put( (byte) ( ( value & 0x7f ) | 0x80 ) );
+            value >>>= 7;
+        }
+        buffer.put( (byte) value );
+    }
+
+    private void writeCommonFields(int type,int threadId,long seconds,long nanos)
+    {
+        buffer.clear();
+        buffer.putInt( type );
+        buffer.putInt( threadId );
+        buffer.putLong( seconds );
+        buffer.putLong( nanos );
+    }
+
+    private void flush() throws IOException
+    {
+        buffer.flip();
+        if ( formatVersion == 3 && blockRecordCount > 0 ) {
+            block.put( buffer );
+            return;
+        }
+        while ( buffer.hasRemaining() ) {
+            out.write( buffer );
+        }
+    }
+
+    @Override
+    public void close() throws IOException 
+    {
+        if ( formatVersion == 3 ) 
+        {
+            flushBlock();
+            if ( writeFooter ) 
+            {
+                final ByteBuffer trailer = ByteBuffer.allocate( 8 + footer.size() + 16 ).order( ByteOrder.LITTLE_ENDIAN );
+                final long footerOffset = out.position();
+                trailer.putInt( BlockIndex.FOOTER_MAGIC );
+                trailer.putInt( blockCount );
+                trailer.put( footer.toByteArray() );
+                trailer.putLong( footerOffset );
+                trailer.putInt( blockCount );
+                trailer.putInt( BlockIndex.FOOTER_MAGIC );
+                trailer.flip();
+                while ( trailer.hasRemaining() ) {
+                    out.write( trailer );
+                }
+            }
+        }
+        out.close();
+    }
+}
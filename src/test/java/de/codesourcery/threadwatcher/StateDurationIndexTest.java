@@ -0,0 +1,257 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import de.codesourcery.threadwatcher.FileReader.FileVisitor;
+import de.codesourcery.threadwatcher.FileReader.ReadMode;
+import de.codesourcery.threadwatcher.ui.UIConstants;
+
+public class StateDurationIndexTest extends TestCase {
+
+    private static final long START_SECONDS = 1380000000L;
+
+    private static final int[] STATE_MASKS = { 0x0005 , 0x0401 , 0x0005 };
+
+    private static final int DEAD = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_DEAD );
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("threadwatcher", ".out");
+        file.deleteOnExit();
+        try ( RecordingWriter writer = new RecordingWriter( file , false , 3 ) ) 
+        {
+            writer.setWriteFooter( false );
+            writeSamples( writer , 0 , new Random( 42 ) );
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+        FileIndex.getIndexFile( file ).delete();
+    }
+
+    // thread #1 runs all the time, #2 dies early and #3 starts late
+    private static void writeSamples(RecordingWriter writer,long firstMillis,Random rnd) throws IOException
+    {
+        long nanos = firstMillis * 1000000L;
+        if ( firstMillis == 0 ) {
+            writer.threadStart( 1 , START_SECONDS , 0 , "thread #1" );
+            writer.threadStart( 2 , START_SECONDS , 0 , "thread #2" );
+        }
+        for ( int i = 0 ; i < 3000 ; i++ )
+        {
+            nanos += 1 + rnd.nextInt( 1000000 );
+            final int threadId = 1 + rnd.nextInt( 3 );
+            final long seconds = START_SECONDS + nanos / 1000000000L;
+            if ( firstMillis == 0 && i == 1000 ) {
+                writer.threadDeath( 2 , seconds , nanos % 1000000000L );
+            } else if ( firstMillis == 0 && i == 2000 ) {
+                writer.threadStart( 3 , seconds , nanos % 1000000000L , "thread #3" );
+            } else if ( ( threadId != 2 || i < 1000 ) && ( threadId != 3 || i > 2000 || firstMillis > 0 ) ) {
+                writer.stateChange( threadId , seconds , nanos % 1000000000L , STATE_MASKS[ rnd.nextInt( STATE_MASKS.length ) ] );
+            }
+        }
+    }
+
+    public void testDurationsMatchVisitingRecords() throws IOException
+    {
+        final FileReader reader = new FileReader( file , ReadMode.MEMORY_MAPPED );
+        assertIntervalsMatch( reader , new Random( 7 ) );
+    }
+
+    public void testIndexIsCreatedWhileLoadingRecordsIntoMemory() throws IOException
+    {
+        final FileReader reader = new FileReader( file , ReadMode.IN_MEMORY );
+        assertNotNull( reader.getStateDurationIndex() );
+        assertIntervalsMatch( reader , new Random( 9 ) );
+    }
+
+    public void testRefreshUpdatesIndex() throws IOException
+    {
+        final FileReader reader = new FileReader( file , ReadMode.MEMORY_MAPPED );
+        assertNotNull( reader.getStateDurationIndex() );
+        final long millis = (long) reader.getInterval().getDurationInMilliseconds() + 10;
+        try ( RecordingWriter writer = new RecordingWriter( file , true , 3 ) ) {
+            writeSamples( writer , millis , new Random( 43 ) );
+        }
+        assertTrue( reader.refresh() );
+        assertIntervalsMatch( reader , new Random( 8 ) );
+    }
+
+    public void testRunsMatchVisitingRecords() throws IOException
+    {
+        final FileReader reader = new FileReader( file , ReadMode.MEMORY_MAPPED );
+        final HiResInterval all = reader.getInterval();
+        final long length = (long) all.getDurationInMilliseconds();
+        final Random rnd = new Random( 9 );
+        for ( int i = 0 ; i < 50 ; i++ )
+        {
+            // FileReader#visit() fakes thread deaths after the end of the recording, stay within it
+            final HiResTimestamp start = all.start.plusMilliseconds( rnd.nextInt( (int) length / 2 ) );
+            final HiResInterval interval = new HiResInterval( start , start.plusMilliseconds( 1 + rnd.nextInt( (int) length / 2 ) ) );
+            final Set<Integer> threadIds = reader.getAliveThreadsInInterval( interval );
+            final Map<Integer,PerThreadStatistics> expected = new HashMap<>();
+            for ( int threadId : threadIds ) {
+                expected.put( threadId , new PerThreadStatistics( threadId ) );
+            }
+            // state and start time of the current run of each thread
+            final Map<Integer,long[]> openRuns = new HashMap<>();
+            reader.visit( new FileVisitor() {
+                @Override
+                public void visit(ThreadEvent event) 
+                {
+                    final long time = StatePyramid.toEpochNanos( event.timestampSeconds , event.timestampNanos );
+                    final int state = StatePyramid.getState( event );
+                    final long[] run = openRuns.get( event.threadId );
+                    if ( run == null ) {
+                        openRuns.put( event.threadId , new long[] { state , time } );
+                    } 
+                    else if ( run[0] != state ) 
+                    {
+                        expected.get( event.threadId ).addRun( (int) run[0] , time - run[1] );
+                        run[0] = state;
+                        run[1] = time;
+                    }
+                }
+            } , interval , threadIds );
+            for ( Entry<Integer, long[]> entry : openRuns.entrySet() ) {
+                expected.get( entry.getKey() ).addRun( (int) entry.getValue()[0] , StatePyramid.toEpochNanos( interval.end ) - entry.getValue()[1] );
+            }
+
+            for ( PerThreadStatistics stats : expected.values() )
+            {
+                final PerThreadStatistics actual = new PerThreadStatistics( stats.threadId );
+                reader.getStateDurationIndex().addRuns( stats.threadId , StatePyramid.toEpochNanos( interval.start ) , StatePyramid.toEpochNanos( interval.end ) , actual );
+                for ( int state = 0 ; state < StatePyramid.STATE_COUNT ; state++ ) 
+                {
+                    assertEquals( interval+", thread "+stats.threadId+", state "+state , toString( stats.getRuns( state ) ) , toString( actual.getRuns( state ) ) );
+                }
+            }
+        }
+    }
+
+    public void testRunsIncludeDeathAfterEndOfRecording() throws IOException
+    {
+        final FileReader reader = new FileReader( file , ReadMode.MEMORY_MAPPED );
+        final StateDurationIndex index = reader.getStateDurationIndex();
+        final long end = StatePyramid.toEpochNanos( reader.getInterval().end );
+        final long start = end - 1000000;
+
+        final long[] durations = new long[ StatePyramid.STATE_COUNT ];
+        assertTrue( index.getDurations( 1 , start , end + 5000000 , durations ) );
+        assertEquals( 5000000 , durations[ DEAD ] );
+
+        final PerThreadStatistics stats = new PerThreadStatistics( 1 );
+        index.addRuns( 1 , start , end + 5000000 , stats );
+        assertEquals( 1 , stats.getRuns( DEAD ).getCount() );
+        assertEquals( 5000000 , stats.getRuns( DEAD ).getMax() );
+
+        // thread #2 died long before, its death is not counted twice
+        final PerThreadStatistics died = new PerThreadStatistics( 2 );
+        index.addRuns( 2 , start , end + 5000000 , died );
+        assertEquals( 1 , died.getRuns( DEAD ).getCount() );
+        assertEquals( 6000000 , died.getRuns( DEAD ).getMax() );
+    }
+
+    private static String toString(DurationHistogram histogram)
+    {
+        if ( histogram == null ) {
+            return "no runs";
+        }
+        return histogram.getCount()+" runs, min "+histogram.getMin()+", p50 "+histogram.getPercentile( 50 )+", max "+histogram.getMax();
+    }
+
+    private static void assertIntervalsMatch(FileReader reader,Random rnd) throws IOException
+    {
+        final HiResInterval all = reader.getInterval();
+        final long length = (long) all.getDurationInMilliseconds();
+        for ( int i = 0 ; i < 50 ; i++ )
+        {
+            // intervals may extend beyond both ends of the recording
+            final HiResTimestamp start = all.start.plusMilliseconds( rnd.nextInt( (int) length + 100 ) - 50 );
+            final HiResInterval interval = new HiResInterval( start , start.plusMilliseconds( 1 + rnd.nextInt( (int) length ) ) );
+            final Map<Integer, long[]> expected = visitInterval( reader , interval );
+            final long[] durations = new long[ StatePyramid.STATE_COUNT ];
+            for ( Entry<Integer, long[]> entry : expected.entrySet() )
+            {
+                final boolean containsData = reader.getStateDurationIndex().getDurations( entry.getKey() , StatePyramid.toEpochNanos( interval.start ) ,
+                        StatePyramid.toEpochNanos( interval.end ) , durations );
+                assertEquals( interval+", thread "+entry.getKey() , entry.getValue() != null , containsData );
+                if ( containsData ) {
+                    assertEquals( interval+", thread "+entry.getKey() , Arrays.toString( entry.getValue() ) , Arrays.toString( durations ) );
+                }
+            }
+        }
+    }
+
+    // replays the interval like PerThreadStatistics does
+    private static Map<Integer, long[]> visitInterval(FileReader reader,final HiResInterval interval) throws IOException
+    {
+        final Map<Integer,long[]> result = new HashMap<>();
+        final Map<Integer,ThreadEvent> lastEvents = new HashMap<>();
+        final Set<Integer> threadIds = reader.getAliveThreadsInInterval( interval );
+        for ( int threadId : threadIds ) {
+            result.put( threadId , null );
+        }
+        reader.visit( new FileVisitor() {
+            @Override
+            public void visit(ThreadEvent event) 
+            {
+                if ( result.get( event.threadId ) == null ) {
+                    result.put( event.threadId , new long[ StatePyramid.STATE_COUNT ] );
+                }
+                addDuration( result , lastEvents.get( event.threadId ) , StatePyramid.toEpochNanos( event.timestampSeconds , event.timestampNanos ) );
+                lastEvents.put( event.threadId , new ThreadEvent( event ) );
+            }
+        } , interval , threadIds );
+        // FileReader#visit() only fakes the death of threads whose state was known at the start of the interval
+        final long dataEnd = StatePyramid.toEpochNanos( reader.getInterval().end );
+        final long end = StatePyramid.toEpochNanos( interval.end );
+        for ( ThreadEvent event : lastEvents.values() ) 
+        {
+            if ( end > dataEnd && event.type != ThreadEvent.THREAD_DEATH ) 
+            {
+                addDuration( result , event , dataEnd );
+                result.get( event.threadId )[ DEAD ] += end - dataEnd;
+            } else {
+                addDuration( result , event , end );
+            }
+        }
+        return result;
+    }
+
+    private static void addDuration(Map<Integer,long[]> result,ThreadEvent previous,long end)
+    {
+        if ( previous != null ) {
+            result.get( previous.threadId )[ StatePyramid.getState( previous ) ] += end - StatePyramid.toEpochNanos( previous.timestampSeconds , previous.timestampNanos );
+        }
+    }
+}
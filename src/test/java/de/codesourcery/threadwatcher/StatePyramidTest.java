@@ -0,0 +1,211 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import de.codesourcery.threadwatcher.FileReader.ReadMode;
+import de.codesourcery.threadwatcher.ui.UIConstants;
+
+public class StatePyramidTest extends TestCase {
+
+    private static final long START_SECONDS = 1380000000L;
+
+    private static final long MILLIS = 1000000L;
+
+    private static final int RUNNABLE = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_RUNNABLE );
+    private static final int BLOCKED = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_BLOCKED );
+    private static final int DEAD = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_DEAD );
+
+    private static final double DELTA = 2.0 / 255;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("threadwatcher", ".out");
+        file.deleteOnExit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+        FileIndex.getIndexFile( file ).delete();
+    }
+
+    private static long nanos(double millis) {
+        return StatePyramid.toEpochNanos( START_SECONDS , 0 ) + Math.round( millis * MILLIS );
+    }
+
+    private static ThreadEvent event(int type,int threadId,double millis,int stateMask)
+    {
+        final ThreadEvent event = new ThreadEvent();
+        event.type = (byte) type;
+        event.threadId = threadId;
+        event.timestampSeconds = nanos( millis ) / 1000000000L;
+        event.timestampNanos = nanos( millis ) % 1000000000L;
+        event.threadStateMask = stateMask;
+        return event;
+    }
+
+    public void testBucketWidthDependsOnRecordingLength()
+    {
+        assertEquals( MILLIS , new StatePyramid( nanos( 0 ) , nanos( 5000 ) ).getBucketWidth( 0 ) );
+        final StatePyramid pyramid = new StatePyramid( nanos( 0 ) , nanos( 3600 * 1000 ) );
+        assertEquals( 1000 * MILLIS , pyramid.getBucketWidth( 0 ) );
+        assertEquals( 10000 * MILLIS , pyramid.getBucketWidth( 1 ) );
+    }
+
+    public void testLevelSelection()
+    {
+        final StatePyramid pyramid = new StatePyramid( nanos( 0 ) , nanos( 5000 ) );
+        assertEquals( -1 , pyramid.getLevel( MILLIS / 2 ) );
+        assertEquals( 0 , pyramid.getLevel( MILLIS ) );
+        assertEquals( 1 , pyramid.getLevel( 50 * MILLIS ) );
+        assertEquals( StatePyramid.LEVEL_COUNT - 1 , pyramid.getLevel( 1e15 ) );
+    }
+
+    public void testBucketContents()
+    {
+        final StatePyramid pyramid = new StatePyramid( nanos( 0 ) , nanos( 5000 ) );
+        pyramid.add( event( ThreadEvent.THREAD_START , 1 , 0 , 0 ) );
+        pyramid.add( event( ThreadEvent.THREAD_STATE_CHANGE , 1 , 2.25 , 0x0401 ) );
+        pyramid.add( event( ThreadEvent.THREAD_STATE_CHANGE , 1 , 3.25 , 0x0005 ) );
+        pyramid.add( event( ThreadEvent.THREAD_START , 2 , 1000 , 0 ) );
+        pyramid.add( event( ThreadEvent.THREAD_DEATH , 1 , 4000 , 0 ) );
+        pyramid.finish( nanos( 5000 ) );
+
+        assertEquals( 5000 , pyramid.getBucketCount( 0 ) );
+        assertEquals( 500 , pyramid.getBucketCount( 1 ) );
+        assertFalse( pyramid.isFull() );
+
+        assertEquals( RUNNABLE , pyramid.getDominantState( 1 , 0 , 0 ) );
+        assertEquals( 1.0 , pyramid.getFraction( 1 , 0 , 0 , RUNNABLE ) , DELTA );
+        assertEquals( 0.25 , pyramid.getFraction( 1 , 0 , 2 , RUNNABLE ) , DELTA );
+        assertEquals( 0.75 , pyramid.getFraction( 1 , 0 , 2 , BLOCKED ) , DELTA );
+        assertEquals( BLOCKED , pyramid.getDominantState( 1 , 0 , 2 ) );
+        assertEquals( 0.25 , pyramid.getFraction( 1 , 0 , 3 , BLOCKED ) , DELTA );
+        assertEquals( RUNNABLE , pyramid.getDominantState( 1 , 0 , 3 ) );
+
+        assertEquals( RUNNABLE , pyramid.getDominantState( 1 , 1 , 0 ) );
+        assertEquals( 0.1 , pyramid.getFraction( 1 , 1 , 0 , BLOCKED ) , DELTA );
+        assertEquals( 0.9 , pyramid.getFraction( 1 , 1 , 0 , RUNNABLE ) , DELTA );
+
+        // thread death lasts until the end of the recording
+        assertEquals( DEAD , pyramid.getDominantState( 1 , 0 , 4999 ) );
+        assertEquals( RUNNABLE , pyramid.getDominantState( 1 , 3 , 3 ) );
+        assertEquals( DEAD , pyramid.getDominantState( 1 , 3 , 4 ) );
+        assertEquals( 0.4 , pyramid.getFraction( 1 , 4 , 0 , RUNNABLE ) , DELTA );
+
+        // no data before the thread has been started
+        assertEquals( StatePyramid.NO_STATE , pyramid.getDominantState( 2 , 0 , 999 ) );
+        assertEquals( RUNNABLE , pyramid.getDominantState( 2 , 0 , 1000 ) );
+        assertEquals( StatePyramid.NO_STATE , pyramid.getDominantState( 3 , 0 , 1000 ) );
+
+        final byte[] states = new byte[4];
+        pyramid.getDominantStates( 2 , 2 , 8 , states );
+        assertEquals( StatePyramid.NO_STATE , states[0] );
+        assertEquals( StatePyramid.NO_STATE , states[1] );
+        assertEquals( RUNNABLE , states[2] );
+        assertEquals( RUNNABLE , states[3] );
+        pyramid.getDominantStates( 2 , 2 , 48 , states );
+        assertEquals( RUNNABLE , states[1] );
+        assertEquals( StatePyramid.NO_STATE , states[2] );
+    }
+
+    public void testThreadStartingWithinCoarserBucket()
+    {
+        final StatePyramid pyramid = new StatePyramid( nanos( 0 ) , nanos( 5000 ) );
+        pyramid.add( event( ThreadEvent.THREAD_START , 1 , 1234.5 , 0 ) );
+        pyramid.finish( nanos( 2000 ) );
+
+        assertEquals( StatePyramid.NO_STATE , pyramid.getDominantState( 1 , 0 , 1233 ) );
+        assertEquals( 0.5 , pyramid.getFraction( 1 , 0 , 1234 , RUNNABLE ) , DELTA );
+        assertEquals( 1.0 , pyramid.getFraction( 1 , 0 , 1999 , RUNNABLE ) , DELTA );
+        assertEquals( StatePyramid.NO_STATE , pyramid.getDominantState( 1 , 1 , 122 ) );
+        assertEquals( 0.55 , pyramid.getFraction( 1 , 1 , 123 , RUNNABLE ) , DELTA );
+        assertEquals( 0.7655 , pyramid.getFraction( 1 , 3 , 1 , RUNNABLE ) , DELTA );
+
+        final long[] totals = pyramid.getTotals( 2 );
+        assertEquals( 20 * StatePyramid.STATE_COUNT , totals.length );
+        assertEquals( 0 , totals[ 11 * StatePyramid.STATE_COUNT + RUNNABLE ] );
+        assertEquals( 166 , totals[ 12 * StatePyramid.STATE_COUNT + RUNNABLE ] , 2 );
+        assertEquals( 255 , totals[ 19 * StatePyramid.STATE_COUNT + RUNNABLE ] );
+    }
+
+    public void testTotals()
+    {
+        final StatePyramid pyramid = new StatePyramid( nanos( 0 ) , nanos( 5000 ) );
+        pyramid.add( event( ThreadEvent.THREAD_START , 1 , 0 , 0 ) );
+        pyramid.add( event( ThreadEvent.THREAD_START , 2 , 500 , 0 ) );
+        pyramid.add( event( ThreadEvent.THREAD_STATE_CHANGE , 1 , 1000 , 0x0401 ) );
+        pyramid.finish( nanos( 2000 ) );
+
+        final long[] totals = pyramid.getTotals( 3 );
+        assertEquals( 2 * StatePyramid.STATE_COUNT , totals.length );
+        // first second: thread #1 runnable, thread #2 runnable for half of it
+        assertEquals( 255 + 128 , totals[ RUNNABLE ] , 1 );
+        assertEquals( 0 , totals[ BLOCKED ] );
+        // second second: thread #1 blocked, thread #2 runnable
+        assertEquals( 255 , totals[ StatePyramid.STATE_COUNT + RUNNABLE ] , 1 );
+        assertEquals( 255 , totals[ StatePyramid.STATE_COUNT + BLOCKED ] , 1 );
+    }
+
+    public void testRefreshExtendsPyramid() throws IOException
+    {
+        try ( RecordingWriter writer = new RecordingWriter( file ) )
+        {
+            writer.threadStart( 1 , START_SECONDS , 0 , "thread #1" );
+            for ( int i = 1 ; i < 2000 ; i++ ) {
+                writer.stateChange( 1 , START_SECONDS , i * 300000 , i % 3 == 0 ? 0x0005 : 0x0401 );
+            }
+        }
+        final FileReader reader = new FileReader( file , ReadMode.MEMORY_MAPPED );
+        assertNotNull( reader.getStatePyramid() );
+
+        try ( RecordingWriter writer = new RecordingWriter( file , true ) )
+        {
+            writer.threadStart( 2 , START_SECONDS + 1 , 0 , "thread #2" );
+            for ( int i = 1 ; i < 2000 ; i++ ) {
+                writer.stateChange( i % 2 + 1 , START_SECONDS + 1 , i * 300000 , i % 5 == 0 ? 0x0005 : 0x0401 );
+            }
+        }
+        assertTrue( reader.refresh() );
+        final StatePyramid actual = reader.getStatePyramid();
+
+        FileIndex.getIndexFile( file ).delete();
+        final StatePyramid expected = new FileReader( file , ReadMode.STREAM ).getStatePyramid();
+        assertEquals( expected.getBucketWidth( 0 ) , actual.getBucketWidth( 0 ) );
+        for ( int level = 0 ; level < StatePyramid.LEVEL_COUNT ; level++ )
+        {
+            assertEquals( expected.getBucketCount( level ) , actual.getBucketCount( level ) );
+            for ( int bucket = 0 ; bucket < expected.getBucketCount( level ) ; bucket++ )
+            {
+                for ( int thread = 1 ; thread <= 2 ; thread++ )
+                {
+                    assertEquals( expected.getDominantState( thread , level , bucket ) , actual.getDominantState( thread , level , bucket ) );
+                    for ( int state = 0 ; state < StatePyramid.STATE_COUNT ; state++ ) {
+                        assertEquals( expected.getFraction( thread , level , bucket , state ) , actual.getFraction( thread , level , bucket , state ) );
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher.ui;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+import de.codesourcery.threadwatcher.ui.RenderStatistics.Frame;
+import de.codesourcery.threadwatcher.ui.RenderStatistics.Phase;
+
+public class RenderStatisticsTest extends TestCase {
+
+    private static final long MILLIS = 1000000L;
+
+    private static Frame frame(long readMillis)
+    {
+        final Frame result = new Frame();
+        result.addTime( Phase.READ , readMillis * MILLIS );
+        result.addTime( Phase.TOTAL , ( readMillis + 1 ) * MILLIS );
+        result.addEventsVisited( readMillis * 100 );
+        return result;
+    }
+
+    public void testPercentilesOfRecentFrames()
+    {
+        final RenderStatistics statistics = new RenderStatistics( 4 );
+        assertNull( statistics.getLastFrame() );
+        assertEquals( 0 , statistics.getPercentile( Phase.READ , 50 ) );
+
+        for ( int i = 1 ; i <= 6 ; i++ ) {
+            statistics.addFrame( frame( i ) );
+        }
+        // only frames 3 to 6 are kept
+        assertEquals( 4 , statistics.getFrameCount() );
+        assertEquals( 600 , statistics.getLastFrame().getEventsVisited() );
+        assertEquals( 3 * MILLIS , statistics.getPercentile( Phase.READ , 0 ) );
+        assertEquals( 4 * MILLIS , statistics.getPercentile( Phase.READ , 50 ) );
+        assertEquals( 6 * MILLIS , statistics.getPercentile( Phase.READ , 100 ) );
+        assertEquals( 7 * MILLIS , statistics.getPercentile( Phase.TOTAL , 99 ) );
+
+        statistics.addPaint( 2 * MILLIS );
+        statistics.addPaint( 5 * MILLIS );
+        assertEquals( 5 * MILLIS , statistics.getLastPaintTime() );
+        assertEquals( 2 * MILLIS , statistics.getPercentile( Phase.PAINT , 50 ) );
+    }
+
+    public void testDump()
+    {
+        final RenderStatistics statistics = new RenderStatistics();
+        statistics.addFrame( frame( 3 ) );
+        statistics.addPaint( 100 );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        statistics.dump( new PrintStream( out , true ) );
+        final String[] lines = out.toString().split("\n");
+        // title, histogram header, one line per phase, counter header and four counters
+        assertEquals( 2 + Phase.values().length + 1 + 4 , lines.length );
+        assertTrue( lines[ 2 + Phase.READ.ordinal() ].startsWith( "read" ) );
+        // 3 ms fall into the [2,4) ms bucket
+        assertTrue( lines[ 2 + Phase.READ.ordinal() ].trim().endsWith( "0     0     1     0     0     0     0     0     0     0     0" ) );
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher.ui;
+
+import de.codesourcery.threadwatcher.StatePyramid;
+
+import junit.framework.TestCase;
+
+public class StateCoalescerTest extends TestCase {
+
+    private static final int RUNNABLE = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_RUNNABLE );
+    private static final int BLOCKED = UIConstants.getLegendItemIndex( UIConstants.LEGENDITEM_BLOCKED );
+
+    public void testLongestStateWinsRegardlessOfOrder()
+    {
+        // 100 ns per pixel
+        final StateCoalescer coalescer = new StateCoalescer( 2 , 4 , 100 );
+        coalescer.stateChanged( 0 , 0 , RUNNABLE );
+        coalescer.stateChanged( 0 , 30 , BLOCKED );
+        coalescer.stateChanged( 0 , 40 , RUNNABLE );
+        coalescer.stateChanged( 0 , 100 , BLOCKED );
+        coalescer.stateChanged( 0 , 190 , RUNNABLE );
+
+        coalescer.stateChanged( 1 , 0 , BLOCKED );
+        coalescer.stateChanged( 1 , 60 , RUNNABLE );
+        coalescer.finish( 300 );
+
+        assertEquals( RUNNABLE , coalescer.getDominantState( 0 , 0 ) );
+        assertEquals( BLOCKED , coalescer.getDominantState( 0 , 1 ) );
+        assertEquals( RUNNABLE , coalescer.getDominantState( 0 , 2 ) );
+        assertEquals( StatePyramid.NO_STATE , coalescer.getDominantState( 0 , 3 ) );
+
+        assertEquals( BLOCKED , coalescer.getDominantState( 1 , 0 ) );
+        assertEquals( RUNNABLE , coalescer.getDominantState( 1 , 1 ) );
+    }
+
+    public void testTiesAndClipping()
+    {
+        final StateCoalescer coalescer = new StateCoalescer( 1 , 2 , 100 );
+        // starts left of the first column and ends right of the last one
+        coalescer.stateChanged( 0 , -500 , BLOCKED );
+        coalescer.stateChanged( 0 , 150 , RUNNABLE );
+        coalescer.finish( 1000 );
+
+        final int[] states = new int[2];
+        coalescer.getDominantStates( 0 , states );
+        assertEquals( BLOCKED , states[0] );
+        assertEquals( Math.min( RUNNABLE , BLOCKED ) , states[1] );
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher.ui;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TileCacheTest extends TestCase {
+
+    private static final List<Integer> THREADS = Arrays.asList( 1 , 2 , 3 );
+
+    // 10x10 pixels at 4 bytes each
+    private static final int TILE_SIZE = 400;
+
+    private static TileCache.Key key(long tileIndex) {
+        return new TileCache.Key( 0.5 , tileIndex , THREADS , 20 );
+    }
+
+    private static BufferedImage tile() {
+        return new BufferedImage( 10 , 10 , BufferedImage.TYPE_INT_RGB );
+    }
+
+    public void testKeys()
+    {
+        assertEquals( key( 1 ) , key( 1 ) );
+        assertEquals( key( 1 ).hashCode() , key( 1 ).hashCode() );
+        assertFalse( key( 1 ).equals( key( 2 ) ) );
+        assertFalse( key( 1 ).equals( new TileCache.Key( 0.25 , 1 , THREADS , 20 ) ) );
+        assertFalse( key( 1 ).equals( new TileCache.Key( 0.5 , 1 , Arrays.asList( 2 , 1 , 3 ) , 20 ) ) );
+        assertFalse( key( 1 ).equals( new TileCache.Key( 0.5 , 1 , THREADS , 21 ) ) );
+    }
+
+    public void testEvictsLeastRecentlyUsedTiles()
+    {
+        final TileCache cache = new TileCache( 3 * TILE_SIZE );
+        final BufferedImage first = tile();
+        cache.put( key( 1 ) , first , 100 );
+        cache.put( key( 2 ) , tile() , 200 );
+        cache.put( key( 3 ) , tile() , 300 );
+        assertEquals( 3 * TILE_SIZE , cache.getSizeInBytes() );
+
+        assertSame( first , cache.get( key( 1 ) ) );
+        cache.put( key( 4 ) , tile() , 400 );
+        assertEquals( 3 , cache.size() );
+        assertNull( cache.get( key( 2 ) ) );
+        assertSame( first , cache.get( key( 1 ) ) );
+        assertNotNull( cache.get( key( 3 ) ) );
+        assertNotNull( cache.get( key( 4 ) ) );
+
+        // replacing a tile does not count twice
+        cache.put( key( 4 ) , tile() , 400 );
+        assertEquals( 3 * TILE_SIZE , cache.getSizeInBytes() );
+    }
+
+    public void testKeepsLatestTileEvenIfTooLarge()
+    {
+        final TileCache cache = new TileCache( TILE_SIZE / 2 );
+        cache.put( key( 1 ) , tile() , 100 );
+        cache.put( key( 2 ) , tile() , 200 );
+        assertEquals( 1 , cache.size() );
+        assertNotNull( cache.get( key( 2 ) ) );
+    }
+
+    public void testRemoveTilesEndingAfter()
+    {
+        final TileCache cache = new TileCache();
+        cache.put( key( 1 ) , tile() , 100 );
+        cache.put( key( 2 ) , tile() , 200 );
+        cache.put( key( 3 ) , tile() , 300 );
+        cache.removeTilesEndingAfter( 200 );
+        assertEquals( 2 , cache.size() );
+        assertEquals( 2 * TILE_SIZE , cache.getSizeInBytes() );
+        assertNull( cache.get( key( 3 ) ) );
+
+        cache.clear();
+        assertEquals( 0 , cache.size() );
+        assertEquals( 0 , cache.getSizeInBytes() );
+    }
+}
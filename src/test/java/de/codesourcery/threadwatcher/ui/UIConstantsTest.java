@@ -0,0 +1,51 @@
+/**
+ * Copyright 2013 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.threadwatcher.ui;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import de.codesourcery.threadwatcher.JVMTIThreadState;
+import de.codesourcery.threadwatcher.ThreadEvent;
+
+public class UIConstantsTest extends TestCase {
+
+    public void testStateMaskLookupMatchesClassification()
+    {
+        final ThreadEvent event = new ThreadEvent();
+        event.type = ThreadEvent.THREAD_STATE_CHANGE;
+
+        final JVMTIThreadState[] states = JVMTIThreadState.values();
+        for ( int combination = 0 ; combination < 1 << states.length ; combination++ )
+        {
+            int mask = 0;
+            for ( int i = 0 ; i < states.length ; i++ ) {
+                if ( ( combination & 1 << i ) != 0 ) {
+                    mask |= states[i].getBitMask();
+                }
+            }
+            event.threadStateMask = mask;
+            assertSame( Integer.toHexString( mask ) , UIConstants.getLegendItemForStateMask( mask ) , UIConstants.getLegendItemForEvent( event ) );
+        }
+
+        final Random rnd = new Random( 42 );
+        for ( int i = 0 ; i < 100000 ; i++ )
+        {
+            event.threadStateMask = rnd.nextInt();
+            assertSame( UIConstants.getLegendItemForStateMask( event.threadStateMask ) , UIConstants.getLegendItemForEvent( event ) );
+        }
+    }
+}